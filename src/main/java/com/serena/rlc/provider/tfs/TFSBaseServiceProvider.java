@@ -17,13 +17,17 @@ import com.serena.rlc.provider.domain.*;
 import com.serena.rlc.provider.exceptions.ProviderException;
 import com.serena.rlc.provider.spi.IBaseServiceProvider;
 import com.serena.rlc.provider.tfs.client.TFSClient;
+import com.serena.rlc.provider.tfs.client.TFSMetadataCatalog;
+import com.serena.rlc.provider.tfs.client.TFSWireTap;
 import com.serena.rlc.provider.tfs.domain.*;
 import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -94,6 +98,60 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
             dataType = DataType.PASSWORD)
     private String servicePassword;
 
+    @ConfigProperty(name = "tfs_wire_tap_capacity", displayName = "Wire Tap Capacity",
+            description = "Number of recent TFS requests to retain for diagnostics, 0 to disable.",
+            defaultValue = "0",
+            dataType = DataType.TEXT)
+    private String wireTapCapacity;
+
+    @ConfigProperty(name = "tfs_wire_tap_sample_rate", displayName = "Wire Tap Sample Rate",
+            description = "Record one in every N TFS requests.",
+            defaultValue = "1",
+            dataType = DataType.TEXT)
+    private String wireTapSampleRate;
+
+    @ConfigProperty(name = "tfs_wire_tap_body_limit", displayName = "Wire Tap Body Limit",
+            description = "Maximum number of response body characters to retain per request.",
+            defaultValue = "512",
+            dataType = DataType.TEXT)
+    private String wireTapBodyLimit;
+
+    @ConfigProperty(name = "tfs_metadata_refresh_interval", displayName = "Metadata Refresh Interval",
+            description = "Seconds between background refreshes of shared TFS metadata (projects, queries, definitions and queues).",
+            defaultValue = "300",
+            dataType = DataType.TEXT)
+    private String metadataRefreshInterval;
+
+    @ConfigProperty(name = "tfs_metadata_snapshot_dir", displayName = "Metadata Snapshot Directory",
+            description = "Directory for the warm start snapshot of TFS metadata, leave empty to disable.",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String metadataSnapshotDir;
+
+    @ConfigProperty(name = "tfs_response_cache_dir", displayName = "Response Cache Directory",
+            description = "Directory for the off-heap cache of large TFS responses, leave empty to disable.",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String responseCacheDir;
+
+    @ConfigProperty(name = "tfs_response_cache_size", displayName = "Response Cache Size (MB)",
+            description = "Maximum size of the off-heap cache of large TFS responses in megabytes.",
+            defaultValue = "256",
+            dataType = DataType.TEXT)
+    private String responseCacheSize;
+
+    @ConfigProperty(name = "tfs_json_codec", displayName = "JSON Codec",
+            description = "Engine used to decode TFS responses: json-simple or fast.",
+            defaultValue = "json-simple",
+            dataType = DataType.TEXT)
+    private String jsonCodec;
+
+    @ConfigProperty(name = "tfs_max_response_size", displayName = "Maximum Response Size (MB)",
+            description = "Maximum size of a TFS response in megabytes, optionally followed by limits per operation, e.g. 32,releases=64. Build and release lists over the limit are truncated, other requests fail.",
+            defaultValue = "32",
+            dataType = DataType.TEXT)
+    private String maxResponseSize;
+
     private SessionData session;
     private Long providerId;
     private String providerUuid;
@@ -102,6 +160,10 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
     @Autowired
     TFSClient tfsClient;
 
+    // the wire tap, response cache, codec and response limits are shared by all clients,
+    // they are only configured again once one of their settings has changed
+    private volatile boolean clientSettingsChanged = true;
+
     public SessionData getSession() {
         return session;
     }
@@ -222,6 +284,131 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         }
     }
 
+    public String getWireTapCapacity() {
+        return wireTapCapacity;
+    }
+
+    @Autowired(required = false)
+    public void setWireTapCapacity(String wireTapCapacity) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(wireTapCapacity) && !wireTapCapacity.startsWith("${")) {
+            this.wireTapCapacity = wireTapCapacity.trim();
+        } else {
+            this.wireTapCapacity = null;
+        }
+    }
+
+    public String getWireTapSampleRate() {
+        return wireTapSampleRate;
+    }
+
+    @Autowired(required = false)
+    public void setWireTapSampleRate(String wireTapSampleRate) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(wireTapSampleRate) && !wireTapSampleRate.startsWith("${")) {
+            this.wireTapSampleRate = wireTapSampleRate.trim();
+        } else {
+            this.wireTapSampleRate = null;
+        }
+    }
+
+    public String getWireTapBodyLimit() {
+        return wireTapBodyLimit;
+    }
+
+    @Autowired(required = false)
+    public void setWireTapBodyLimit(String wireTapBodyLimit) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(wireTapBodyLimit) && !wireTapBodyLimit.startsWith("${")) {
+            this.wireTapBodyLimit = wireTapBodyLimit.trim();
+        } else {
+            this.wireTapBodyLimit = null;
+        }
+    }
+
+    public String getMetadataRefreshInterval() {
+        return metadataRefreshInterval;
+    }
+
+    @Autowired(required = false)
+    public void setMetadataRefreshInterval(String metadataRefreshInterval) {
+        if (StringUtils.isNotBlank(metadataRefreshInterval) && !metadataRefreshInterval.startsWith("${")) {
+            this.metadataRefreshInterval = metadataRefreshInterval.trim();
+        } else {
+            this.metadataRefreshInterval = null;
+        }
+    }
+
+    public String getMetadataSnapshotDir() {
+        return metadataSnapshotDir;
+    }
+
+    @Autowired(required = false)
+    public void setMetadataSnapshotDir(String metadataSnapshotDir) {
+        if (StringUtils.isNotBlank(metadataSnapshotDir) && !metadataSnapshotDir.startsWith("${")) {
+            this.metadataSnapshotDir = metadataSnapshotDir.trim();
+        } else {
+            this.metadataSnapshotDir = null;
+        }
+        clientSettingsChanged = true;
+    }
+
+    public String getResponseCacheDir() {
+        return responseCacheDir;
+    }
+
+    @Autowired(required = false)
+    public void setResponseCacheDir(String responseCacheDir) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(responseCacheDir) && !responseCacheDir.startsWith("${")) {
+            this.responseCacheDir = responseCacheDir.trim();
+        } else {
+            this.responseCacheDir = null;
+        }
+    }
+
+    public String getResponseCacheSize() {
+        return responseCacheSize;
+    }
+
+    @Autowired(required = false)
+    public void setResponseCacheSize(String responseCacheSize) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(responseCacheSize) && !responseCacheSize.startsWith("${")) {
+            this.responseCacheSize = responseCacheSize.trim();
+        } else {
+            this.responseCacheSize = null;
+        }
+    }
+
+    public String getJsonCodec() {
+        return jsonCodec;
+    }
+
+    @Autowired(required = false)
+    public void setJsonCodec(String jsonCodec) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(jsonCodec) && !jsonCodec.startsWith("${")) {
+            this.jsonCodec = jsonCodec.trim();
+        } else {
+            this.jsonCodec = null;
+        }
+    }
+
+    public String getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    @Autowired(required = false)
+    public void setMaxResponseSize(String maxResponseSize) {
+        clientSettingsChanged = true;
+        if (StringUtils.isNotBlank(maxResponseSize) && !maxResponseSize.startsWith("${")) {
+            this.maxResponseSize = maxResponseSize.trim();
+        } else {
+            this.maxResponseSize = null;
+        }
+    }
+
     //================================================================================
     // Getter Methods
     // -------------------------------------------------------------------------------
@@ -236,7 +423,7 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         setTFSClientConnectionDetails();
 
         try {
-            List<Project> tfsProjects = tfsClient.getProjects();
+            List<Project> tfsProjects = getMetadataCatalog().getProjects();
             if (tfsProjects == null || tfsProjects.size() < 1) {
                 return null;
             }
@@ -277,7 +464,7 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         String projectId = field.getValue();
 
         try {
-            List<Query> tfsQueries = tfsClient.getQueries(projectId, "Shared Queries");
+            List<Query> tfsQueries = getMetadataCatalog().getQueries(projectId, "Shared Queries");
             if (tfsQueries == null || tfsQueries.size() < 1) {
                 return null;
             }
@@ -285,13 +472,14 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
             List<FieldValueInfo> values = new ArrayList<>();
             FieldValueInfo value;
             for (Query tfsQuery : tfsQueries) {
-
-                value = new FieldValueInfo(tfsQuery.getId(), tfsQuery.getTitle());
+                // queries of all sub folders are listed, named by their path below Shared Queries
+                String name = StringUtils.defaultIfEmpty(StringUtils.removeStart(tfsQuery.getPath(), "Shared Queries/"), tfsQuery.getTitle());
+                value = new FieldValueInfo(tfsQuery.getId(), name);
                 if (tfsQuery.getId() == null || StringUtils.isEmpty(tfsQuery.getId())) {
                     value.setId(tfsQuery.getTitle());
                 }
 
-                value.setDescription(tfsQuery.getTitle());
+                value.setDescription(StringUtils.defaultIfEmpty(tfsQuery.getPath(), tfsQuery.getTitle()));
                 values.add(value);
             }
 
@@ -318,7 +506,7 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         String projectId = field.getValue();
 
         try {
-            List<ReleaseDefinition> tfsReleaseDefs = tfsClient.getReleaseDefinitions(projectId);
+            List<ReleaseDefinition> tfsReleaseDefs = getMetadataCatalog().getReleaseDefinitions(projectId);
             if (tfsReleaseDefs == null || tfsReleaseDefs.size() < 1) {
                 return null;
             }
@@ -461,7 +649,7 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         }
 */
         try {
-            List<BuildDefinition> tfsBuildDefs = tfsClient.getBuildDefinitions(projectId, startsWith);
+            List<BuildDefinition> tfsBuildDefs = getMetadataCatalog().getBuildDefinitions(projectId, startsWith);
             if (tfsBuildDefs == null || tfsBuildDefs.size() < 1) {
                 return null;
             }
@@ -510,7 +698,7 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         //}
 
         try {
-            List<BuildQueue> tfsBuildQueues = tfsClient.getBuildQueues(queueType, startsWith);
+            List<BuildQueue> tfsBuildQueues = getMetadataCatalog().getBuildQueues(queueType, startsWith);
             if (tfsBuildQueues == null || tfsBuildQueues.size() < 1) {
                 return null;
             }
@@ -568,10 +756,34 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         if (tfsClient == null) {
             tfsClient = new TFSClient();
         }
+        if (clientSettingsChanged) {
+            clientSettingsChanged = false;
+            applyClientSettings();
+        }
 
         return tfsClient;
     }
 
+    public TFSMetadataCatalog getMetadataCatalog() {
+        TFSMetadataCatalog catalog = TFSMetadataCatalog.forConnection(getTFSClient());
+        catalog.setRefreshInterval(parseIntSetting(metadataRefreshInterval, (int) TFSMetadataCatalog.DEFAULT_REFRESH_INTERVAL));
+        return catalog;
+    }
+
+    /**
+     * Format the recent TFS requests retained by the wire tap, also logged at info level.
+     *
+     * @return one block per request, empty if the wire tap is disabled
+     */
+    public String getWireTapDump() {
+        getTFSClient();
+        String dump = TFSClient.getWireTap().dump();
+        if (!dump.isEmpty()) {
+            logger.info("Recent TFS requests:{}{}", System.lineSeparator(), dump);
+        }
+        return dump;
+    }
+
     public void addField(List<Field> fieldCollection, String fieldName, String fieldDisplayName, String fieldValue) {
         if (StringUtils.isNotEmpty(fieldValue)) {
             Field field = new Field(fieldName, fieldDisplayName);
@@ -584,4 +796,39 @@ public abstract class TFSBaseServiceProvider implements IBaseServiceProvider {
         getTFSClient().createConnection(getSession(), getTfsUrl(), getTfsApiVersion(), null, null, null, getTfsCollection(), getServiceUser(), getServicePassword());
     }
 
+    //================================================================================
+    // Private Methods
+    //================================================================================
+
+    private void applyClientSettings() {
+        TFSClient.getWireTap().configure(
+                parseIntSetting(wireTapCapacity, 0),
+                parseIntSetting(wireTapSampleRate, 1),
+                parseIntSetting(wireTapBodyLimit, TFSWireTap.DEFAULT_BODY_LIMIT));
+        TFSClient.getResponseCache().configure(
+                StringUtils.isEmpty(responseCacheDir) ? null : new File(responseCacheDir),
+                parseIntSetting(responseCacheSize, 256) * 1024L * 1024L);
+        if (jsonCodec != null) {
+            // the codec is shared by all providers, leave it to the one that configured it
+            JsonCodecs.select(jsonCodec);
+        }
+        TFSClient.getResponseLimits().configure(maxResponseSize);
+        if (StringUtils.isEmpty(metadataSnapshotDir) || metadataSnapshotDir.equalsIgnoreCase("none")) {
+            TFSMetadataCatalog.setSnapshotDirectory(null);
+        } else {
+            TFSMetadataCatalog.setSnapshotDirectory(new File(metadataSnapshotDir));
+        }
+    }
+
+    int parseIntSetting(String value, int defaultValue) {
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid numeric setting \"{}\", using {}", value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
 }
@@ -14,13 +14,16 @@ import com.serena.rlc.provider.domain.*;
 import com.serena.rlc.provider.exceptions.ProviderException;
 import com.serena.rlc.provider.spi.IExecutionProvider;
 import com.serena.rlc.provider.tfs.client.TFSClient;
+import com.serena.rlc.provider.tfs.client.TFSWorkItemUpdater;
 import com.serena.rlc.provider.tfs.domain.Build;
+import com.serena.rlc.provider.tfs.domain.TFSObject;
 import com.serena.rlc.provider.tfs.exception.TFSClientException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -34,6 +37,11 @@ public class TFSExecutionProvider extends TFSBaseServiceProvider implements IExe
 
     final static String DEPLOY_RELEASE = "deployRelease";
     final static String QUEUE_BUILD = "queueBuild";
+    final static String UPDATE_WORK_ITEM_STATE = "updateWorkItemState";
+
+    final static String WORK_ITEMS = "workItems";
+    final static String WORK_ITEM_STATE = "workItemState";
+    final static String WORK_ITEM_COMMENT = "workItemComment";
 
     //================================================================================
     // Configuration Properties
@@ -153,6 +161,8 @@ public class TFSExecutionProvider extends TFSBaseServiceProvider implements IExe
             return deployRelease(properties, false);
         else if (action.equalsIgnoreCase(QUEUE_BUILD))
             return queueBuild(properties, false);
+        else if (action.equalsIgnoreCase(UPDATE_WORK_ITEM_STATE))
+            return updateWorkItemState(properties, false);
 
         throw new ProviderException("Unsupported execution action: " + action);
     }
@@ -168,6 +178,8 @@ public class TFSExecutionProvider extends TFSBaseServiceProvider implements IExe
             return deployRelease(properties, true);
         else if (action.equalsIgnoreCase(QUEUE_BUILD))
             return queueBuild(properties, true);
+        else if (action.equalsIgnoreCase(UPDATE_WORK_ITEM_STATE))
+            return updateWorkItemState(properties, true);
 
         throw new ProviderException("Unsupported execution action: " + action);
     }
@@ -360,6 +372,69 @@ public class TFSExecutionProvider extends TFSBaseServiceProvider implements IExe
         return retVal;
     }
 
+    @Action(name = UPDATE_WORK_ITEM_STATE, displayName = "Update Work Item State", description = "Move TFS Work Items to a new state, e.g. after a deployment")
+        @Params(params = {
+            @Param(fieldName = WORK_ITEMS, displayName = "Work Items", description = "Comma separated ids of the TFS Work Items to update", required = true),
+            @Param(fieldName = WORK_ITEM_STATE, displayName = "State", description = "State to move the Work Items to", required = true, defaultValue = "Deployed"),
+            @Param(fieldName = WORK_ITEM_COMMENT, displayName = "Comment", description = "Comment to add to the history of the Work Items")
+        })
+    public ExecutionInfo updateWorkItemState(List<Field> properties, Boolean validateOnly) throws ProviderException {
+        ExecutionInfo retVal = new ExecutionInfo();
+
+        Field field = Field.getFieldByName(properties, WORK_ITEMS);
+        if (field == null || StringUtils.isBlank(field.getValue()))
+            throw new ProviderException("Missing required property: " + WORK_ITEMS);
+        String[] values = field.getValue().trim().split("[,;\\s]+");
+        int[] ids = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ids[i] = TFSObject.parseId(values[i]);
+            if (ids[i] == TFSObject.NO_ID)
+                throw new ProviderException("Invalid Work Item id: " + values[i]);
+        }
+
+        field = Field.getFieldByName(properties, WORK_ITEM_STATE);
+        if (field == null || StringUtils.isBlank(field.getValue()))
+            throw new ProviderException("Missing required property: " + WORK_ITEM_STATE);
+        String state = field.getValue().trim();
+
+        field = Field.getFieldByName(properties, WORK_ITEM_COMMENT);
+        String comment = (field == null ? null : field.getValue());
+
+        if (validateOnly) {
+            retVal.setSuccess(true);
+            retVal.setMessage("Valid TFS Execution action: " + UPDATE_WORK_ITEM_STATE);
+            return retVal;
+        }
+
+        setTFSClientConnectionDetails();
+        logger.debug("Moving {} Work Items to state: {}", ids.length, state);
+        List<TFSWorkItemUpdater.Result> results = new TFSWorkItemUpdater(getTFSClient()).setState(ids, state, comment);
+
+        // report the result of each Work Item, failures do not undo the updates that succeeded
+        List<Field> fields = new ArrayList<>();
+        int failed = 0;
+        for (TFSWorkItemUpdater.Result result : results) {
+            if (result.isSuccess()) {
+                addField(fields, String.valueOf(result.getId()), "Work Item " + result.getId(), "Updated to revision " + result.getRev());
+            } else {
+                failed++;
+                addField(fields, String.valueOf(result.getId()), "Work Item " + result.getId(), "Failed: " + result.getMessage());
+            }
+        }
+        ProviderInfo pResultInfo = new ProviderInfo(UPDATE_WORK_ITEM_STATE, "Update Work Item State", "workItemState", state);
+        pResultInfo.setProperties(fields);
+        retVal.setProviderInfo(pResultInfo);
+        retVal.setExecutionId("tfswit-" + state + "-" + System.currentTimeMillis());
+        retVal.setMessage(String.format("Moved %d of %d Work Items to %s, %d failed", results.size() - failed, results.size(), state, failed));
+        retVal.setSuccess(failed == 0);
+        retVal.setStatus(failed == 0 ? ExecutionStatus.COMPLETED : ExecutionStatus.FAILED);
+        if (failed > 0) {
+            logger.warn(retVal.getMessage());
+        }
+
+        return retVal;
+    }
+
 /*    private boolean matchesReleaseFilter(String releaseName) {
         String pattern = getReleaseDefinitionFilter();
 
@@ -13,15 +13,31 @@ import com.serena.rlc.provider.annotations.*;
 import com.serena.rlc.provider.domain.*;
 import com.serena.rlc.provider.exceptions.ProviderException;
 import com.serena.rlc.provider.spi.IRequestProvider;
+import com.serena.rlc.provider.tfs.client.TFSAnalytics;
+import com.serena.rlc.provider.tfs.client.TFSClient;
+import com.serena.rlc.provider.tfs.client.TFSIdentityCache;
+import com.serena.rlc.provider.tfs.client.TFSQuerySync;
+import com.serena.rlc.provider.tfs.client.TFSTitleIndex;
+import com.serena.rlc.provider.tfs.client.TFSWiqlResultCache;
+import com.serena.rlc.provider.tfs.client.TFSWiqlTemplate;
+import com.serena.rlc.provider.tfs.client.TFSWorkItemCache;
+import com.serena.rlc.provider.tfs.client.TFSWorkItemExporter;
+import com.serena.rlc.provider.tfs.client.TFSWorkItemLoader;
 import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.domain.WorkItemCounts;
 import com.serena.rlc.provider.tfs.exception.TFSClientException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * TFS Request Provider
@@ -32,6 +48,16 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
     final static Logger logger = LoggerFactory.getLogger(TFSRequestProvider.class);
 
     final static String TITLE_FILTER = "titleFilter";
+    final static String COUNT_REQUESTS = "countRequests";
+    final static String EXPORT_REQUESTS = "exportRequests";
+    final static String FILE_PATH = "filePath";
+    final static String AREA_PATH = "areaPath";
+    final static String TAGS = "tags";
+    final static String STATE = "state";
+
+    final static String DEFAULT_WIQL_TEMPLATE = "SELECT [System.Id] FROM WorkItems WHERE [System.TeamProject] = @project" +
+            "{? AND [System.AreaPath] UNDER {areaPath}?}{? AND [System.Tags] CONTAINS {tags}?}{? AND [System.State] IN ({state*})?}" +
+            " ORDER BY [System.ChangedDate] DESC";
 
     private Integer resultLimit;
 
@@ -56,12 +82,78 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
             dataType = DataType.TEXT)
     private String providerDescription;
 
+    @ConfigProperty(name = "request_work_item_fields", displayName = "Work Item Fields",
+            description = "Comma separated list of Work Item fields to retrieve, leave empty for the default fields",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String workItemFields;
+
     @ConfigProperty(name = "request_result_limit", displayName = "Result Limit",
             description = "Result limit for find requests action",
             defaultValue = "200",
             dataType = DataType.TEXT)
     private String requestResultLimit;
 
+    @ConfigProperty(name = "request_work_item_cache_size", displayName = "Work Item Cache Size",
+            description = "Maximum number of Work Items to cache, cached Work Items are only retrieved again when their revision has changed. Set to 0 to disable.",
+            defaultValue = "1000",
+            dataType = DataType.TEXT)
+    private String workItemCacheSize;
+
+    @ConfigProperty(name = "request_batch_window", displayName = "Work Item Batch Window",
+            description = "Milliseconds concurrent Work Item lookups are collected for before they are retrieved in one request, 0 to disable.",
+            defaultValue = "10",
+            dataType = DataType.TEXT)
+    private String batchWindow;
+
+    @ConfigProperty(name = "request_work_item_batch_threshold", displayName = "Work Item Batch Threshold",
+            description = "Number of Work Items from which they are retrieved with the work items batch endpoint (TFS API version 4.1 or later), 0 to disable.",
+            defaultValue = "100",
+            dataType = DataType.TEXT)
+    private String workItemBatchThreshold;
+
+    @ConfigProperty(name = "request_query_reconcile_interval", displayName = "Query Reconcile Interval",
+            description = "Seconds between full runs of a query whose results are otherwise only updated with the Work Items changed since the previous run, 0 to always run queries in full. Requires the Work Item cache.",
+            defaultValue = "0",
+            dataType = DataType.TEXT)
+    private String queryReconcileInterval;
+
+    @ConfigProperty(name = "request_analytics_url", displayName = "Analytics URL",
+            description = "URL of the TFS Analytics service used to count Work Items, leave empty if it is hosted by TFS. Work Items are counted with WIQL if Analytics is not available.",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String analyticsUrl;
+
+    @ConfigProperty(name = "request_title_index_max_age", displayName = "Title Filter Index Age",
+            description = "Seconds the last result of a query is used to serve Title Filter changes without running the query again, 0 to always run the query.",
+            defaultValue = "30",
+            dataType = DataType.TEXT)
+    private String titleIndexMaxAge;
+
+    @ConfigProperty(name = "request_wiql_template", displayName = "Ad-hoc WIQL Template",
+            description = "WIQL query run by Find Work Items when no Query is selected. Parameters {project}, {areaPath}, {tags} and {state*} are bound as string literals, clauses between {? and ?} are left out if their parameter is empty. Leave empty for the default template.",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String wiqlTemplate;
+
+    @ConfigProperty(name = "request_wiql_cache_granularity", displayName = "Ad-hoc WIQL Cache Granularity",
+            description = "Seconds ad-hoc WIQL results are shared for, queries are run as of the start of each period. Set to 0 to disable.",
+            defaultValue = "60",
+            dataType = DataType.TEXT)
+    private String wiqlCacheGranularity;
+
+    @ConfigProperty(name = "request_identity_cache_size", displayName = "Identity Cache Size",
+            description = "Maximum number of identities to keep the email address of, the owners, creators and last editors of Work Items are resolved in bulk. Set to 0 to disable.",
+            defaultValue = "1000",
+            dataType = DataType.TEXT)
+    private String identityCacheSize;
+
+    @ConfigProperty(name = "request_export_dir", displayName = "Export Directory",
+            description = "Directory Export Work Items writes its files to, file paths are resolved within it. Leave empty to disable exports.",
+            defaultValue = "",
+            dataType = DataType.TEXT)
+    private String exportDir;
+
     @Override
     public String getProviderName() {
         return this.providerName;
@@ -90,6 +182,19 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
         this.providerDescription = providerDescription;
     }
 
+    public String getWorkItemFields() {
+        return workItemFields;
+    }
+
+    @Autowired(required = false)
+    public void setWorkItemFields(String workItemFields) {
+        if (StringUtils.isNotBlank(workItemFields) && !workItemFields.startsWith("${")) {
+            this.workItemFields = workItemFields.trim();
+        } else {
+            this.workItemFields = null;
+        }
+    }
+
     public String getRequestResultLimit() {
         return requestResultLimit;
     }
@@ -108,8 +213,11 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
     @Service(name = FIND_REQUESTS, displayName = "Find Work Items", description = "Find TFS Work Items")
         @Params(params = {
             @Param(fieldName = PROJECT, displayName = "Project", description = "TFS project", required = true, dataType = DataType.SELECT),
-            @Param(fieldName = QUERY, displayName = "Query", description = "TFS Query", required = true, dataType = DataType.SELECT),
-            @Param(fieldName = TITLE_FILTER, displayName = "Title Filter", description = "Work Item Title filter")
+            @Param(fieldName = QUERY, displayName = "Query", description = "TFS Query, leave empty to run the ad-hoc WIQL template", dataType = DataType.SELECT),
+            @Param(fieldName = TITLE_FILTER, displayName = "Title Filter", description = "Work Item Title filter"),
+            @Param(fieldName = AREA_PATH, displayName = "Area Path", description = "Area Path of the ad-hoc query"),
+            @Param(fieldName = TAGS, displayName = "Tag", description = "Tag of the ad-hoc query"),
+            @Param(fieldName = STATE, displayName = "States", description = "Comma separated states of the ad-hoc query")
     })
     public ProviderInfoResult findRequests(List<Field> properties, Long startIndex, Long resultCount) throws ProviderException {
         Field field = Field.getFieldByName(properties, PROJECT);
@@ -120,12 +228,11 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
         String projectId = field.getValue();
         logger.debug("Filtering on project: " + projectId);
 
+        String queryId = null;
         field = Field.getFieldByName(properties, QUERY);
-        if (field == null) {
-            throw new ProviderException("Missing required property: " + QUERY);
+        if (field != null) {
+            queryId = field.getValue();
         }
-
-        String queryId = field.getValue();
         logger.debug("Using query: " + queryId);
 
         String titleFilter = null;
@@ -138,8 +245,27 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
 
         setTFSClientConnectionDetails();
         try {
-            List<WorkItem> requests = getTFSClient().getWorkItems(queryId, titleFilter, getResultLimit());
+            TFSTitleIndex titleIndex = (StringUtils.isEmpty(queryId) ? null : getTitleIndex());
+            List<WorkItem> requests = null;
+            if (titleIndex != null && StringUtils.isNotBlank(titleFilter)) {
+                // served from the last result of the query while the user narrows the filter
+                requests = titleIndex.search(queryId, titleFilter);
+            }
+            if (requests == null) {
+                requests = (StringUtils.isEmpty(queryId) ? retrieveAdHocRequests(projectId, properties) : retrieveRequests(projectId, queryId));
+                if (requests != null && titleIndex != null) {
+                    titleIndex.update(queryId, requests);
+                }
+                if (requests != null && StringUtils.isNotBlank(titleFilter)) {
+                    requests = TFSTitleIndex.filter(requests, titleFilter);
+                }
+            }
             if (requests != null) {
+                getMetadataCatalog().assignStateCategories(requests);
+                TFSIdentityCache identityCache = getIdentityCache();
+                if (identityCache != null) {
+                    identityCache.resolve(requests);
+                }
                 ProviderInfo pReqInfo;
                 for (WorkItem request : requests) {
                     pReqInfo = new ProviderInfo(request.getId(), request.getTitle(), request.getType(), request.getTitle(), request.getUrl());
@@ -156,7 +282,9 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
                     List<Field> fields = new ArrayList<>();
                     addField(fields, "project", "Project", request.getProject());
                     addField(fields, "owner", "Owner", request.getAssignedTo());
+                    addField(fields, "ownerEmail", "Owner Email", request.getAssignedToIdentity() == null ? null : request.getAssignedToIdentity().getMail());
                     addField(fields, "status", "Status", request.getState());
+                    addField(fields, "statusCategory", "Status Category", request.getStateCategory());
                     addField(fields, "severity", "Severity", request.getSeverity());
                     addField(fields, "creator", "Creator", request.getCreatedBy());
                     addField(fields, "dateCreated", "Date Created", request.getDateCreated());
@@ -185,10 +313,19 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
 
         setTFSClientConnectionDetails();
         try {
-            WorkItem request = getTFSClient().getWorkItem(property.getValue());
+            TFSWorkItemCache workItemCache = getWorkItemCache();
+            WorkItem request = (workItemCache != null ?
+                    workItemCache.getWorkItem(getTFSClient(), property.getValue()) :
+                    getTFSClient().getWorkItem(property.getValue()));
             if (request == null) {
                 throw new ProviderException("Unable to find request: " + property.getValue());
             }
+            getTFSClient().loadHeavyFields(request);
+            getMetadataCatalog().assignStateCategories(Collections.singletonList(request));
+            TFSIdentityCache identityCache = getIdentityCache();
+            if (identityCache != null) {
+                identityCache.resolve(Collections.singletonList(request));
+            }
 
             ProviderInfo pReqInfo = new ProviderInfo(request.getId(), request.getTitle(), request.getType(), request.getTitle(), request.getUrl());
             pReqInfo.setId(request.getId());
@@ -204,7 +341,9 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
             List<Field> fields = new ArrayList<>();
             addField(fields, "project", "Project", request.getProject());
             addField(fields, "owner", "Owner", request.getAssignedTo());
+            addField(fields, "ownerEmail", "Owner Email", request.getAssignedToIdentity() == null ? null : request.getAssignedToIdentity().getMail());
             addField(fields, "status", "Status", request.getState());
+            addField(fields, "statusCategory", "Status Category", request.getStateCategory());
             addField(fields, "severity", "Severity", request.getSeverity());
             addField(fields, "creator", "Creator", request.getCreatedBy());
             addField(fields, "dateCreated", "Date Created", request.getDateCreated());
@@ -218,6 +357,259 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
         }
     }
 
+    @Service(name = COUNT_REQUESTS, displayName = "Count Work Items", description = "Count TFS Work Items by type and state")
+        @Params(params = {
+            @Param(fieldName = PROJECT, displayName = "Project", description = "TFS project", required = true, dataType = DataType.SELECT),
+            @Param(fieldName = QUERY, displayName = "Query", description = "TFS Query, leave empty to count all Work Items of the project", dataType = DataType.SELECT)
+    })
+    public ProviderInfoResult countRequests(List<Field> properties) throws ProviderException {
+        Field field = Field.getFieldByName(properties, PROJECT);
+        if (field == null) {
+            throw new ProviderException("Missing required property: " + PROJECT);
+        }
+        String projectId = field.getValue();
+
+        String queryId = null;
+        field = Field.getFieldByName(properties, QUERY);
+        if (field != null) {
+            queryId = field.getValue();
+        }
+
+        List<ProviderInfo> list = new ArrayList<>();
+
+        setTFSClientConnectionDetails();
+        try {
+            WorkItemCounts counts = TFSAnalytics.forConnection(getTFSClient()).getWorkItemCounts(getTFSClient(), projectId, queryId);
+            for (WorkItemCounts.Group group : counts.getGroups()) {
+                String name = group.getType() + " - " + group.getState();
+                ProviderInfo pCountInfo = new ProviderInfo(name, name, group.getType(), name, null);
+
+                List<Field> fields = new ArrayList<>();
+                addField(fields, "type", "Type", group.getType());
+                addField(fields, "status", "Status", group.getState());
+                addField(fields, "count", "Count", String.valueOf(group.getCount()));
+
+                pCountInfo.setProperties(fields);
+                list.add(pCountInfo);
+            }
+
+            ProviderInfo pTotalInfo = new ProviderInfo("total", "Total", null, "Total", null);
+            List<Field> fields = new ArrayList<>();
+            addField(fields, "count", "Count", String.valueOf(counts.getTotal()));
+            pTotalInfo.setProperties(fields);
+            list.add(pTotalInfo);
+        } catch (TFSClientException ex) {
+            logger.error("Unable to count TFS Work Items: {}", ex.getLocalizedMessage());
+            throw new ProviderException(ex.getLocalizedMessage());
+        }
+
+        return new ProviderInfoResult(0, list.size(), list.toArray(new ProviderInfo[list.size()]));
+    }
+
+    @Service(name = EXPORT_REQUESTS, displayName = "Export Work Items", description = "Export the TFS Work Items of a query to a file")
+        @Params(params = {
+            @Param(fieldName = PROJECT, displayName = "Project", description = "TFS project", required = true, dataType = DataType.SELECT),
+            @Param(fieldName = QUERY, displayName = "Query", description = "TFS Query", required = true, dataType = DataType.SELECT),
+            @Param(fieldName = FILE_PATH, displayName = "File", description = "Path of the file to write, relative to the export directory", required = true)
+    })
+    public ProviderInfoResult exportRequests(List<Field> properties) throws ProviderException {
+        Field field = Field.getFieldByName(properties, PROJECT);
+        if (field == null) {
+            throw new ProviderException("Missing required property: " + PROJECT);
+        }
+        String projectId = field.getValue();
+
+        field = Field.getFieldByName(properties, QUERY);
+        if (field == null) {
+            throw new ProviderException("Missing required property: " + QUERY);
+        }
+        String queryId = field.getValue();
+
+        field = Field.getFieldByName(properties, FILE_PATH);
+        if (field == null || StringUtils.isBlank(field.getValue())) {
+            throw new ProviderException("Missing required property: " + FILE_PATH);
+        }
+        File file = resolveExportFile(field.getValue().trim());
+
+        long count = exportRequests(projectId, queryId, file);
+
+        ProviderInfo pExportInfo = new ProviderInfo(file.getName(), file.getName(), null, file.getPath(), null);
+        List<Field> fields = new ArrayList<>();
+        addField(fields, "file", "File", file.getPath());
+        addField(fields, "count", "Count", String.valueOf(count));
+        pExportInfo.setProperties(fields);
+
+        return new ProviderInfoResult(0, 1, new ProviderInfo[] { pExportInfo });
+    }
+
+    /**
+     * Export all the Work Items returned by a query to a file as newline delimited JSON. An interrupted
+     * export of the same query to the same file is resumed.
+     *
+     * @param projectId  the id of the project the query belongs to
+     * @param queryId  the id of the query to run
+     * @param file  the file to write to
+     * @return the number of Work Items exported
+     * @throws ProviderException
+     */
+    public long exportRequests(String projectId, String queryId, File file) throws ProviderException {
+        if (StringUtils.isEmpty(projectId)) {
+            throw new ProviderException("Missing required property: " + PROJECT);
+        }
+        if (StringUtils.isEmpty(queryId)) {
+            throw new ProviderException("Missing required property: " + QUERY);
+        }
+
+        setTFSClientConnectionDetails();
+        try {
+            long count = new TFSWorkItemExporter(getTFSClient()).export(projectId, queryId, file);
+            logger.debug("Exported {} TFS Work Items to {}", count, file);
+            return count;
+        } catch (TFSClientException | IOException ex) {
+            logger.error("Unable to export TFS Work Items: {}", ex.getLocalizedMessage());
+            throw new ProviderException(ex.getLocalizedMessage());
+        }
+    }
+
+    public String getExportDir() {
+        return exportDir;
+    }
+
+    @Autowired(required = false)
+    public void setExportDir(String exportDir) {
+        if (StringUtils.isNotBlank(exportDir) && !exportDir.startsWith("${")) {
+            this.exportDir = exportDir.trim();
+        } else {
+            this.exportDir = null;
+        }
+    }
+
+    public String getWorkItemCacheSize() {
+        return workItemCacheSize;
+    }
+
+    @Autowired(required = false)
+    public void setWorkItemCacheSize(String workItemCacheSize) {
+        if (StringUtils.isNotBlank(workItemCacheSize) && !workItemCacheSize.startsWith("${")) {
+            this.workItemCacheSize = workItemCacheSize.trim();
+        } else {
+            this.workItemCacheSize = null;
+        }
+    }
+
+    public String getBatchWindow() {
+        return batchWindow;
+    }
+
+    @Autowired(required = false)
+    public void setBatchWindow(String batchWindow) {
+        if (StringUtils.isNotBlank(batchWindow) && !batchWindow.startsWith("${")) {
+            this.batchWindow = batchWindow.trim();
+        } else {
+            this.batchWindow = null;
+        }
+    }
+
+    public String getWorkItemBatchThreshold() {
+        return workItemBatchThreshold;
+    }
+
+    @Autowired(required = false)
+    public void setWorkItemBatchThreshold(String workItemBatchThreshold) {
+        if (StringUtils.isNotBlank(workItemBatchThreshold) && !workItemBatchThreshold.startsWith("${")) {
+            this.workItemBatchThreshold = workItemBatchThreshold.trim();
+        } else {
+            this.workItemBatchThreshold = null;
+        }
+    }
+
+    public String getQueryReconcileInterval() {
+        return queryReconcileInterval;
+    }
+
+    @Autowired(required = false)
+    public void setQueryReconcileInterval(String queryReconcileInterval) {
+        if (StringUtils.isNotBlank(queryReconcileInterval) && !queryReconcileInterval.startsWith("${")) {
+            this.queryReconcileInterval = queryReconcileInterval.trim();
+        } else {
+            this.queryReconcileInterval = null;
+        }
+    }
+
+    public String getAnalyticsUrl() {
+        return analyticsUrl;
+    }
+
+    @Autowired(required = false)
+    public void setAnalyticsUrl(String analyticsUrl) {
+        if (StringUtils.isNotBlank(analyticsUrl) && !analyticsUrl.startsWith("${")) {
+            this.analyticsUrl = analyticsUrl.trim();
+        } else {
+            this.analyticsUrl = null;
+        }
+    }
+
+    public String getTitleIndexMaxAge() {
+        return titleIndexMaxAge;
+    }
+
+    @Autowired(required = false)
+    public void setTitleIndexMaxAge(String titleIndexMaxAge) {
+        if (StringUtils.isNotBlank(titleIndexMaxAge) && !titleIndexMaxAge.startsWith("${")) {
+            this.titleIndexMaxAge = titleIndexMaxAge.trim();
+        } else {
+            this.titleIndexMaxAge = null;
+        }
+    }
+
+    public String getWiqlTemplate() {
+        return wiqlTemplate;
+    }
+
+    @Autowired(required = false)
+    public void setWiqlTemplate(String wiqlTemplate) {
+        if (StringUtils.isNotBlank(wiqlTemplate) && !wiqlTemplate.startsWith("${")) {
+            this.wiqlTemplate = wiqlTemplate.trim();
+        } else {
+            this.wiqlTemplate = null;
+        }
+    }
+
+    public String getWiqlCacheGranularity() {
+        return wiqlCacheGranularity;
+    }
+
+    @Autowired(required = false)
+    public void setWiqlCacheGranularity(String wiqlCacheGranularity) {
+        if (StringUtils.isNotBlank(wiqlCacheGranularity) && !wiqlCacheGranularity.startsWith("${")) {
+            this.wiqlCacheGranularity = wiqlCacheGranularity.trim();
+        } else {
+            this.wiqlCacheGranularity = null;
+        }
+    }
+
+    public String getIdentityCacheSize() {
+        return identityCacheSize;
+    }
+
+    @Autowired(required = false)
+    public void setIdentityCacheSize(String identityCacheSize) {
+        if (StringUtils.isNotBlank(identityCacheSize) && !identityCacheSize.startsWith("${")) {
+            this.identityCacheSize = identityCacheSize.trim();
+        } else {
+            this.identityCacheSize = null;
+        }
+    }
+
+    @Override
+    public void setTFSClientConnectionDetails() {
+        super.setTFSClientConnectionDetails();
+        getTFSClient().setWorkItemFields(getWorkItemFields());
+        getTFSClient().setBatchWindow(parseIntSetting(batchWindow, TFSWorkItemLoader.DEFAULT_WINDOW));
+        getTFSClient().setWorkItemBatchThreshold(parseIntSetting(workItemBatchThreshold, TFSClient.DEFAULT_WORK_ITEM_BATCH_THRESHOLD));
+        getTFSClient().setAnalyticsUrl(analyticsUrl);
+    }
+
     @Override
     public FieldInfo getFieldValues(String fieldName, List<Field> properties)
             throws ProviderException {
@@ -235,6 +627,138 @@ public class TFSRequestProvider extends TFSBaseServiceProvider implements IReque
     // Private Methods
     //================================================================================
 
+    /**
+     * Run a query with the incremental query synchronization or the Work Item cache if they are enabled.
+     *
+     * @return the Work Items of the query up to the result limit, may be null if there are none
+     */
+    private List<WorkItem> retrieveRequests(String projectId, String queryId) throws TFSClientException {
+        TFSQuerySync querySync = getQuerySync();
+        TFSWorkItemCache workItemCache = getWorkItemCache();
+        if (querySync != null) {
+            return querySync.getWorkItems(getTFSClient(), workItemCache, projectId, queryId, getResultLimit());
+        } else if (workItemCache != null) {
+            int[] ids = getTFSClient().getQueryIds(queryId);
+            return workItemCache.getWorkItems(getTFSClient(), ids, Math.min(ids.length, getResultLimit()));
+        }
+        return getTFSClient().getWorkItems(queryId, null, getResultLimit());
+    }
+
+    /**
+     * Run the ad-hoc WIQL template bound with the find parameters, through the result cache if it is enabled.
+     *
+     * @return the Work Items of the query up to the result limit, may be null if there are none
+     */
+    private List<WorkItem> retrieveAdHocRequests(String projectId, List<Field> properties) throws TFSClientException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(PROJECT, projectId);
+        for (String name : new String[] { AREA_PATH, TAGS, STATE }) {
+            Field field = Field.getFieldByName(properties, name);
+            if (field != null) {
+                parameters.put(name, field.getValue());
+            }
+        }
+        String wiql = TFSWiqlTemplate.compile(StringUtils.defaultIfEmpty(wiqlTemplate, DEFAULT_WIQL_TEMPLATE)).bind(parameters);
+        logger.debug("Running ad-hoc WIQL query: {}", wiql);
+
+        int granularity = parseIntSetting(wiqlCacheGranularity, (int) TFSWiqlResultCache.DEFAULT_GRANULARITY);
+        if (granularity > 0) {
+            TFSWiqlResultCache resultCache = TFSWiqlResultCache.forConnection(getTFSClient());
+            resultCache.setGranularity(granularity);
+            return resultCache.getWorkItems(getTFSClient(), projectId, wiql, getResultLimit());
+        }
+        int[] ids = WorkItem.parseQueryIds(getTFSClient().runQuery(projectId, wiql));
+        return (ids.length == 0 ? null : getTFSClient().getWorkItems(ids, Math.min(ids.length, getResultLimit()), null));
+    }
+
+    /**
+     * Get the title index for the current connection and Work Item fields.
+     *
+     * @return the index, or null if it is disabled
+     */
+    private TFSTitleIndex getTitleIndex() {
+        int maxAge = parseIntSetting(titleIndexMaxAge, (int) TFSTitleIndex.DEFAULT_MAX_AGE);
+        if (maxAge <= 0) {
+            return null;
+        }
+        TFSTitleIndex index = TFSTitleIndex.forConnection(getTFSClient());
+        index.setMaxAge(maxAge);
+        return index;
+    }
+
+    /**
+     * Get the incremental synchronization of query results for the current connection.
+     *
+     * @return the query synchronization, or null if queries are always run in full
+     */
+    private TFSQuerySync getQuerySync() {
+        int interval = parseIntSetting(queryReconcileInterval, 0);
+        if (interval <= 0) {
+            return null;
+        }
+        if (parseIntSetting(workItemCacheSize, TFSWorkItemCache.DEFAULT_CAPACITY) <= 0) {
+            // without the cache every Work Item of the result would be retrieved on each run, delta runs would not save anything
+            logger.debug("Query synchronization is disabled because the Work Item cache is disabled");
+            return null;
+        }
+        TFSQuerySync querySync = TFSQuerySync.forConnection(getTFSClient());
+        querySync.setReconcileInterval(interval);
+        return querySync;
+    }
+
+    /**
+     * Get the Work Item cache for the current connection and Work Item fields.
+     *
+     * @return the cache, or null if it is disabled
+     */
+    private TFSWorkItemCache getWorkItemCache() {
+        int capacity = parseIntSetting(workItemCacheSize, TFSWorkItemCache.DEFAULT_CAPACITY);
+        if (capacity <= 0) {
+            return null;
+        }
+        TFSWorkItemCache workItemCache = TFSWorkItemCache.forConnection(getTFSClient());
+        workItemCache.setCapacity(capacity);
+        return workItemCache;
+    }
+
+    /**
+     * Get the identity cache for the current connection.
+     *
+     * @return the cache, or null if identities are not resolved
+     */
+    private TFSIdentityCache getIdentityCache() {
+        int capacity = parseIntSetting(identityCacheSize, TFSIdentityCache.DEFAULT_CAPACITY);
+        if (capacity <= 0) {
+            return null;
+        }
+        TFSIdentityCache identityCache = TFSIdentityCache.forConnection(getTFSClient());
+        identityCache.setCapacity(capacity);
+        return identityCache;
+    }
+
+    /**
+     * Resolve the path of an export file within the export directory.
+     *
+     * @param path  the path of the file, relative to the export directory
+     * @return the file
+     * @throws ProviderException if exports are disabled or the path is outside of the export directory
+     */
+    private File resolveExportFile(String path) throws ProviderException {
+        if (exportDir == null) {
+            throw new ProviderException("Exports are disabled, set request_export_dir to enable them");
+        }
+        try {
+            File dir = new File(exportDir).getCanonicalFile();
+            File file = new File(dir, path).getCanonicalFile();
+            if (!file.toPath().startsWith(dir.toPath()) || file.equals(dir)) {
+                throw new ProviderException("Invalid export file: " + path);
+            }
+            return file;
+        } catch (IOException ex) {
+            throw new ProviderException("Invalid export file: " + path);
+        }
+    }
+
     private int getResultLimit() {
         if (resultLimit == null) {
             resultLimit = 200;
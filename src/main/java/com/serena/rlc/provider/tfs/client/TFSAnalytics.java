@@ -0,0 +1,169 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.client.TFSResponseLimits.Operation;
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.domain.WorkItemCounts;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregate Work Item counts from the Analytics OData endpoint, shared by all providers using the same TFS connection.
+ * Counts by Work Item type and state are computed by the server with a groupby/aggregate query, so only the groups
+ * are transferred instead of the Work Items. If Analytics is not available (the endpoint is not found because it is
+ * not installed or TFS is an older version) only the total is counted from the ids returned by WIQL, and Analytics
+ * is not tried again until the retry interval has passed. Other errors, e.g. authorization failures or bad requests,
+ * are not a sign that Analytics is missing and are thrown to the caller.
+ * @author klee@serena.com
+ */
+public class TFSAnalytics {
+    private static final Logger logger = LoggerFactory.getLogger(TFSAnalytics.class);
+
+    public static final String ODATA_VERSION = "v3.0-preview";
+    public static final long RETRY_INTERVAL = 3600;
+
+    private static final String GROUP_BY = "groupby((WorkItemType, State), aggregate($count as Count))";
+    private static final String PROJECT_QUERY = "SELECT [System.Id] FROM WorkItems WHERE [System.TeamProject] = @project";
+
+    private static final ConcurrentMap<String, TFSAnalytics> analytics = new ConcurrentHashMap<>();
+
+    private final String connectionKey;
+    private volatile long unavailableUntil;
+
+    private final AtomicLong aggregateRuns = new AtomicLong();
+    private final AtomicLong fallbackRuns = new AtomicLong();
+
+    private TFSAnalytics(String connectionKey) {
+        this.connectionKey = connectionKey;
+    }
+
+    /**
+     * Get the Analytics access for the connection the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared Analytics access for the connection
+     */
+    public static TFSAnalytics forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source);
+        TFSAnalytics instance = analytics.get(key);
+        if (instance == null) {
+            TFSAnalytics newInstance = new TFSAnalytics(key);
+            instance = analytics.putIfAbsent(key, newInstance);
+            if (instance == null) {
+                instance = newInstance;
+            }
+        }
+        return instance;
+    }
+
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Count the Work Items of a project, or of the result of a stored query, by Work Item type and state.
+     *
+     * @param client  the client to send requests with
+     * @param projectId  the id or name of the project
+     * @param queryId  the id of the query to count the result of, null to count all Work Items of the project
+     * @return the counts, with only a total if Analytics is not available
+     * @throws TFSClientException
+     */
+    public WorkItemCounts getWorkItemCounts(TFSClient client, String projectId, String queryId) throws TFSClientException {
+        int[] ids = (StringUtils.isEmpty(queryId) ? null : client.getQueryIds(queryId));
+        if (ids != null && ids.length == 0) {
+            return new WorkItemCounts();
+        }
+
+        if (isAvailable()) {
+            try {
+                aggregateRuns.incrementAndGet();
+                return aggregate(client, projectId, ids);
+            } catch (TFSClientException ex) {
+                if (!isNotInstalledError(ex)) {
+                    throw ex;
+                }
+                unavailableUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RETRY_INTERVAL);
+                logger.warn("TFS Analytics is not available, counting Work Items with WIQL: {}", ex.getMessage());
+            }
+        }
+
+        fallbackRuns.incrementAndGet();
+        if (ids == null) {
+            ids = WorkItem.parseQueryIds(client.runQuery(projectId, PROJECT_QUERY));
+        }
+        return new WorkItemCounts(ids.length);
+    }
+
+    public long getAggregateRunCount() {
+        return aggregateRuns.get();
+    }
+
+    public long getFallbackRunCount() {
+        return fallbackRuns.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSAnalytics{" + "connection=" + connectionKey + ", available=" + isAvailable() +
+                ", aggregateRuns=" + getAggregateRunCount() + ", fallbackRuns=" + getFallbackRunCount() + '}';
+    }
+
+    //
+
+    /**
+     * Run the aggregation, restricted to the ids of a query result if any. The ids are sent in chunks so
+     * that the request URL stays within the limits of the server.
+     */
+    private WorkItemCounts aggregate(TFSClient client, String projectId, int[] ids) throws TFSClientException {
+        String path = client.getTFSCollection() + "/" + projectId + "/_odata/" + ODATA_VERSION + "/WorkItems";
+        WorkItemCounts counts = new WorkItemCounts();
+        if (ids == null) {
+            counts.addAggregates(client.processGet(Operation.OTHER, TFSClient.VisualStudioApi.ANALYTICS_API, path, "$apply=" + encode(GROUP_BY)));
+            return counts;
+        }
+
+        for (int from = 0; from < ids.length; from += TFSClient.MAX_IDS_PER_REQUEST) {
+            int to = Math.min(from + TFSClient.MAX_IDS_PER_REQUEST, ids.length);
+            StringBuilder apply = new StringBuilder(32 + (to - from) * 8).append("filter(WorkItemId in (");
+            for (int i = from; i < to; i++) {
+                if (i > from) apply.append(',');
+                apply.append(ids[i]);
+            }
+            apply.append("))/").append(GROUP_BY);
+            counts.addAggregates(client.processGet(Operation.OTHER, TFSClient.VisualStudioApi.ANALYTICS_API, path, "$apply=" + encode(apply.toString())));
+        }
+        logger.debug("Counted {} Work Items of {} with TFS Analytics", counts.getTotal(), projectId);
+        return counts;
+    }
+
+    /**
+     * An Analytics endpoint that is not installed or not supported by the server version is not found.
+     */
+    private static boolean isNotInstalledError(TFSClientException ex) {
+        int statusCode = ex.getStatusCode();
+        return statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_GONE;
+    }
+
+    private static String encode(String value) {
+        return value.replace(" ", "%20");
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide pool of reusable byte arrays that TFS response bodies are read into.
+ * Only a limited number of buffers up to {@link #MAX_POOLED_SIZE} bytes are retained.
+ * @author klee@serena.com
+ */
+public final class TFSBufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    public static final int MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private TFSBufferPool() {
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if no pooled buffer is large enough.
+     *
+     * @param minSize  the minimum size of the buffer
+     * @return a buffer of at least minSize bytes
+     */
+    public static byte[] acquire(int minSize) {
+        byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            if (buffer.length >= minSize) {
+                return buffer;
+            }
+            release(buffer);
+        }
+        return new byte[Math.max(minSize, DEFAULT_BUFFER_SIZE)];
+    }
+
+    /**
+     * Return a buffer to the pool, the caller must not use it afterwards.
+     *
+     * @param buffer  the buffer to return
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length > MAX_POOLED_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+}
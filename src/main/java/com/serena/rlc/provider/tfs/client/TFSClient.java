@@ -10,30 +10,42 @@
 package com.serena.rlc.provider.tfs.client;
 
 import com.serena.rlc.provider.domain.SessionData;
+import com.serena.rlc.provider.tfs.client.TFSResponseLimits.Operation;
 import com.serena.rlc.provider.tfs.domain.*;
 import com.serena.rlc.provider.tfs.exception.TFSClientException;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import java.io.BufferedReader;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * TFS Client
@@ -44,10 +56,29 @@ public class TFSClient {
     private static final Logger logger = LoggerFactory.getLogger(TFSClient.class);
 
     public static String DEFAULT_HTTP_CONTENT_TYPE = "application/json";
-    public enum VisualStudioApi { TFS_API, TFSBUILD_API, RM_API }
+    public enum VisualStudioApi { TFS_API, TFSBUILD_API, RM_API, ANALYTICS_API }
+
+    private static final int MAX_LOGGED_BODY = 4096;
+
+    private static final TFSWireTap wireTap = new TFSWireTap();
+    private static final TFSResponseCache responseCache = new TFSResponseCache();
+    private static final TFSResponseLimits responseLimits = new TFSResponseLimits();
+
+    public static final int MAX_IDS_PER_REQUEST = 200;
+    public static final int DEFAULT_WORK_ITEM_BATCH_THRESHOLD = 100;
+
+    private static final ExecutorService pipeline = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tfs-work-item-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private String tfsUrl;
     private String vsrmUrl;
+    private String analyticsUrl;
     private String tfsUsername;
     private String tfsPassword;
     private String tfsCollection;
@@ -55,6 +86,9 @@ public class TFSClient {
     private String tfsApiVersion;
     private String vsrmApiVersion;
     private String tfsBuildApiVersion;
+    private String workItemFields = WorkItem.DEFAULT_FIELDS;
+    private int batchWindow;
+    private int workItemBatchThreshold = DEFAULT_WORK_ITEM_BATCH_THRESHOLD;
     private SessionData session;
 
     public TFSClient() {
@@ -88,6 +122,19 @@ public class TFSClient {
         this.vsrmUrl = url;
     }
 
+    public String getAnalyticsUrl() {
+        return analyticsUrl;
+    }
+
+    /**
+     * Set the url of the Analytics service, e.g. https://servername.analytics, if it is not hosted by TFS.
+     *
+     * @param url  the url, null to use the TFS url
+     */
+    public void setAnalyticsUrl(String url) {
+        this.analyticsUrl = url;
+    }
+
     public String getTFSCollection() {
         return tfsCollection;
     }
@@ -128,6 +175,50 @@ public class TFSClient {
         return tfsBuildApiVersion;
     }
 
+    public String getWorkItemFields() {
+        return workItemFields;
+    }
+
+    /**
+     * Set the Work Item fields to request when retrieving Work Items.
+     *
+     * @param workItemFields  a comma separated list of field reference names, empty for the default fields
+     */
+    public void setWorkItemFields(String workItemFields) {
+        if (StringUtils.isBlank(workItemFields)) {
+            this.workItemFields = WorkItem.DEFAULT_FIELDS;
+        } else {
+            this.workItemFields = workItemFields.replaceAll("\\s+", "");
+        }
+    }
+
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Set how long single Work Item lookups wait for concurrent lookups to be retrieved with them in one request.
+     *
+     * @param batchWindow  the window in milliseconds, 0 to retrieve each Work Item on its own
+     */
+    public void setBatchWindow(int batchWindow) {
+        this.batchWindow = Math.max(batchWindow, 0);
+    }
+
+    public int getWorkItemBatchThreshold() {
+        return workItemBatchThreshold;
+    }
+
+    /**
+     * Set the number of Work Items from which they are retrieved with the work items batch endpoint
+     * instead of a list of ids in the URL. The endpoint requires API version 4.1 or later.
+     *
+     * @param workItemBatchThreshold  the number of Work Items, 0 to never use the batch endpoint
+     */
+    public void setWorkItemBatchThreshold(int workItemBatchThreshold) {
+        this.workItemBatchThreshold = Math.max(workItemBatchThreshold, 0);
+    }
+
     public String getTFSUsername() {
         return tfsUsername;
     }
@@ -144,6 +235,33 @@ public class TFSClient {
         this.tfsPassword = password;
     }
 
+    /**
+     * Get the process wide wire tap of recent requests to TFS/VSRM.
+     *
+     * @return the wire tap
+     */
+    public static TFSWireTap getWireTap() {
+        return wireTap;
+    }
+
+    /**
+     * Get the process wide cache of large TFS response bodies.
+     *
+     * @return the response cache
+     */
+    public static TFSResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Get the process wide limits on the size of TFS responses.
+     *
+     * @return the response limits
+     */
+    public static TFSResponseLimits getResponseLimits() {
+        return responseLimits;
+    }
+
     /**
      * Create a new connection to TFS/VSRM.
      *
@@ -169,6 +287,29 @@ public class TFSClient {
         this.tfsPassword = password;
     }
 
+    /**
+     * Create a client with the connection details of this one, for a component shared by all providers with the
+     * same connection key. The copy is never changed afterwards, providers with other credentials or API
+     * versions get components of their own.
+     *
+     * @return a new client with the same connection details
+     */
+    TFSClient copyConnection() {
+        TFSClient copy = new TFSClient(null, tfsUrl, tfsApiVersion, vsrmUrl, vsrmApiVersion, tfsBuildApiVersion,
+                tfsCollection, tfsUsername, tfsPassword);
+        copy.setWorkItemBatchThreshold(workItemBatchThreshold);
+        return copy;
+    }
+
+    /**
+     * Release the process wide metadata catalogs when the container closes the context of the providers, the
+     * providers themselves are prototypes that the container never destroys.
+     */
+    @PreDestroy
+    public void destroy() {
+        TFSMetadataCatalog.shutdown();
+    }
+
     /**
      * Get a list of Work Items from a Query.
      *
@@ -183,30 +324,235 @@ public class TFSClient {
         logger.debug("Using Title Filter: " + titleFilter);
         logger.debug("Limiting results to: " + resultLimit.toString());
 
-        String queryResponse = processGet(VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/wiql/" + queryId, "");
-        logger.debug(queryResponse);
-
         List<WorkItem> workItems = null;
-        List<WorkItem> workItemsTmp = WorkItem.parseQuery(queryResponse);
-
-        String idList = "";
-        int count = 0;
-        if (!workItemsTmp.isEmpty()) {
-            idList="ids=";
-            for (WorkItem wi : workItemsTmp) {
-                if (count++ > resultLimit) break;
-                idList += wi.getId() + ",";
+        int[] ids = getQueryIds(queryId);
+
+        if (ids.length > 0) {
+            workItems = getWorkItems(ids, Math.min(ids.length, resultLimit), null);
+        }
+
+        return workItems;
+
+    }
+
+    /**
+     * Get the ids of the Work Items returned by a Query.
+     *
+     * @param queryId  the id of the query to run
+     * @return the Work Item ids in query order
+     * @throws TFSClientException
+     */
+    public int[] getQueryIds(String queryId) throws TFSClientException {
+        JSONObject queryResponse = processGet(Operation.WORK_ITEM_QUERY, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/wiql/" + queryId, "");
+        return WorkItem.parseQueryIds(queryResponse);
+    }
+
+    /**
+     * Get the details of a list of Work Items.
+     *
+     * @param ids  the ids of the Work Items
+     * @param count  the number of ids to retrieve, starting with the first
+     * @param asOf  the point in time to retrieve the Work Items as of, null for their latest revision
+     * @return  a list of Work Items
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItems(int[] ids, int count, String asOf) throws TFSClientException {
+        return getWorkItems(ids, count, asOf, getWorkItemFields());
+    }
+
+    /**
+     * Get the current revision of a list of Work Items, without any of their other fields.
+     *
+     * @param ids  the ids of the Work Items
+     * @param count  the number of ids to retrieve, starting with the first
+     * @return  a list of Work Items with only their id and revision set
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItemRevisions(int[] ids, int count) throws TFSClientException {
+        return getWorkItems(ids, count, null, "System.Rev");
+    }
+
+    /**
+     * Get the current revision of a Work Item, batched with concurrent lookups if a batch window is set.
+     *
+     * @param id  the id of the Work Item
+     * @return the Work Item with only its id and revision set, or null if it was not found
+     * @throws TFSClientException
+     */
+    public WorkItem getWorkItemRevision(int id) throws TFSClientException {
+        if (batchWindow > 0) {
+            return await(TFSWorkItemLoader.forConnection(this, "System.Rev").load(id, batchWindow));
+        }
+        List<WorkItem> revisions = getWorkItemRevisions(new int[] { id }, 1);
+        return (revisions.isEmpty() ? null : revisions.get(0));
+    }
+
+    List<WorkItem> getWorkItems(final int[] ids, int count, final String asOf, final String fields) throws TFSClientException {
+        if (count <= MAX_IDS_PER_REQUEST) {
+            return getWorkItems(ids, 0, count, asOf, fields);
+        }
+
+        // retrieve the chunks concurrently so that decoding a chunk overlaps the transfer of the next ones
+        List<Future<List<WorkItem>>> chunks = new ArrayList<>(count / MAX_IDS_PER_REQUEST + 1);
+        for (int from = 0; from < count; from += MAX_IDS_PER_REQUEST) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(from + MAX_IDS_PER_REQUEST, count);
+            chunks.add(pipeline.submit(new Callable<List<WorkItem>>() {
+                @Override
+                public List<WorkItem> call() throws TFSClientException {
+                    return getWorkItems(ids, chunkFrom, chunkTo, asOf, fields);
+                }
+            }));
+        }
+        List<WorkItem> workItems = new ArrayList<>(count);
+        try {
+            for (Future<List<WorkItem>> chunk : chunks) {
+                workItems.addAll(await(chunk));
             }
-            if (idList.endsWith(",")) {
-                idList = idList.substring(0, idList.length() - 1);
+        } finally {
+            for (Future<List<WorkItem>> chunk : chunks) {
+                chunk.cancel(false);
             }
-            logger.debug("Retrieving TFS Item Details for Work Items \"{}\"", idList);
-            String wiResponse = processGet(VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitems", idList);
-            workItems = WorkItem.parseDetails(wiResponse);
         }
-
         return workItems;
+    }
+
+    /**
+     * Retrieve a range of Work Item ids in the background with the configured Work Item fields.
+     *
+     * @return the pending retrieval, see {@link #await(Future)}
+     */
+    Future<List<WorkItem>> submitWorkItems(final int[] ids, final int from, final int to, final String asOf) {
+        final String fields = getWorkItemFields();
+        return pipeline.submit(new Callable<List<WorkItem>>() {
+            @Override
+            public List<WorkItem> call() throws TFSClientException {
+                return getWorkItems(ids, from, to, asOf, fields);
+            }
+        });
+    }
+
+    /**
+     * Send a post request in the background, e.g. one chunk of a batch update.
+     *
+     * @param operation  the operation, limits the size of the response
+     * @return the pending request, see {@link #await(Future)}
+     */
+    Future<JSONObject> submitPost(final Operation operation, final VisualStudioApi whichApi, final String path, final String parameters, final String body) {
+        return pipeline.submit(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() throws TFSClientException {
+                return processPost(operation, whichApi, path, parameters, body);
+            }
+        });
+    }
+
+    /**
+     * Retrieve a range of Work Item ids with a single request, using the work items batch endpoint if the
+     * range is above the batch threshold and the API version supports it.
+     */
+    private List<WorkItem> getWorkItems(int[] ids, int from, int to, String asOf, String fields) throws TFSClientException {
+        int count = to - from;
+        if (workItemBatchThreshold > 0 && count >= workItemBatchThreshold && isApiVersionAtLeast(getTfsApiVersion(), 4, 1)) {
+            return postWorkItems(ids, from, to, asOf, fields);
+        }
+
+        StringBuilder idList = new StringBuilder(4 + count * 8).append("ids=");
+        for (int i = from; i < to; i++) {
+            if (i > from) idList.append(',');
+            idList.append(ids[i]);
+        }
+        logger.debug("Retrieving TFS Item Details for Work Items \"{}\"", idList);
+        if (asOf != null) {
+            idList.append("&asOf=").append(asOf);
+        }
+        if (isApiVersionAtLeast(getTfsApiVersion(), 4, 1)) {
+            // unknown ids are omitted instead of failing the request
+            idList.append("&errorPolicy=omit");
+        }
+        JSONObject wiResponse = processGet(Operation.WORK_ITEMS, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitems", idList + "&fields=" + fields);
+        return WorkItem.parseDetails(wiResponse);
+    }
+
+    /**
+     * Retrieve a range of Work Item ids with the work items batch endpoint, which takes the ids, fields and
+     * point in time in its body. Unknown ids are omitted instead of failing the request.
+     */
+    @SuppressWarnings("unchecked")
+    private List<WorkItem> postWorkItems(int[] ids, int from, int to, String asOf, String fields) throws TFSClientException {
+        logger.debug("Retrieving TFS Item Details for {} Work Items in batch", to - from);
+
+        JSONArray idArray = new JSONArray();
+        for (int i = from; i < to; i++) {
+            idArray.add(ids[i]);
+        }
+        JSONArray fieldArray = new JSONArray();
+        for (String field : fields.split(",")) {
+            fieldArray.add(field);
+        }
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("ids", idArray);
+        jsonBody.put("fields", fieldArray);
+        if (asOf != null) {
+            jsonBody.put("asOf", asOf);
+        }
+        jsonBody.put("errorPolicy", "omit");
+
+        JSONObject wiResponse = processPost(Operation.WORK_ITEMS, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitemsbatch", "", jsonBody.toJSONString());
+        return WorkItem.parseDetails(wiResponse);
+    }
+
+    /**
+     * Get the WIQL text of a stored Query.
+     *
+     * @param projectId  the id of the project the query belongs to
+     * @param queryId  the id of the query
+     * @return the WIQL text, or null if the query has none (e.g. a folder)
+     * @throws TFSClientException
+     */
+    public String getQueryWiql(String projectId, String queryId) throws TFSClientException {
+        logger.debug("Retrieving TFS Query \"{}\" WIQL", queryId);
+
+        JSONObject queryResponse = processGet(Operation.QUERY, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/queries/" + queryId, "$expand=wiql");
+
+        return (queryResponse == null ? null : (String) queryResponse.get("wiql"));
+    }
+
+    /**
+     * Run a WIQL query in the context of a project.
+     *
+     * @param projectId  the id of the project to run the query in
+     * @param wiql  the WIQL text of the query
+     * @return the query result
+     * @throws TFSClientException
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject runQuery(String projectId, String wiql) throws TFSClientException {
+        logger.debug("Running TFS WIQL query: {}", wiql);
+
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("query", wiql);
 
+        return processPost(Operation.WORK_ITEM_QUERY, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/wiql", "timePrecision=true", jsonBody.toJSONString());
+    }
+
+    /**
+     * Run a WIQL query in the context of a project, returning only the first Work Items.
+     *
+     * @param projectId  the id of the project to run the query in
+     * @param wiql  the WIQL text of the query
+     * @param top  the maximum number of Work Items to return
+     * @return the query result
+     * @throws TFSClientException
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject runQuery(String projectId, String wiql, int top) throws TFSClientException {
+        logger.debug("Running TFS WIQL query for {} Work Items: {}", top, wiql);
+
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("query", wiql);
+
+        return processPost(Operation.WORK_ITEM_QUERY, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/wiql", "timePrecision=true&$top=" + top, jsonBody.toJSONString());
     }
 
     /**
@@ -220,13 +566,45 @@ public class TFSClient {
         logger.debug("Retrieving TFS Work Item \"{}\"", workItemId);
         logger.debug("Using TFS Work Item Id: " + workItemId);
 
-        String wiResponse = processGet(VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitems/" + workItemId, "");
-        logger.debug(wiResponse);
+        int id = TFSObject.parseId(workItemId);
+        if (batchWindow > 0 && id != TFSObject.NO_ID) {
+            return await(TFSWorkItemLoader.forConnection(this, getWorkItemFields()).load(id, batchWindow));
+        }
+
+        JSONObject wiResponse = processGet(Operation.WORK_ITEM, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitems/" + workItemId, "fields=" + getWorkItemFields());
 
         WorkItem workItem = WorkItem.parseSingle(wiResponse);
         return workItem;
     }
 
+    /**
+     * Retrieve the large fields of a Work Item (e.g. its description) that are not fetched with the Work Item itself.
+     * With a batch window the lookup goes through the loader for {@link WorkItem#HEAVY_FIELDS}, see {@link #setBatchWindow(int)}.
+     *
+     * @param workItem  the Work Item to complete
+     * @throws TFSClientException
+     */
+    public void loadHeavyFields(WorkItem workItem) throws TFSClientException {
+        if (workItem.isHeavyFieldsLoaded()) {
+            return;
+        }
+        logger.debug("Retrieving TFS Work Item \"{}\" fields \"{}\"", workItem.getId(), WorkItem.HEAVY_FIELDS);
+
+        WorkItem heavyItem;
+        int id = workItem.getNumericId();
+        if (batchWindow > 0 && id != TFSObject.NO_ID) {
+            // batched with the heavy fields of other Work Items requested at the same time
+            heavyItem = await(TFSWorkItemLoader.forConnection(this, WorkItem.HEAVY_FIELDS).load(id, batchWindow));
+        } else {
+            JSONObject wiResponse = processGet(Operation.WORK_ITEM, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/wit/workitems/" + workItem.getId(), "fields=" + WorkItem.HEAVY_FIELDS);
+            heavyItem = WorkItem.parseSingle(wiResponse);
+        }
+        if (heavyItem != null) {
+            workItem.setDescription(heavyItem.getDescription());
+            workItem.setHeavyFieldsLoaded(true);
+        }
+    }
+
     /**
      * Get a list of Projects in the Collection.
      *
@@ -236,8 +614,7 @@ public class TFSClient {
     public List<Project> getProjects() throws TFSClientException {
         logger.debug("Retrieving TFS Projects");
 
-        String projResponse = processGet(VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/projects", "statefilter=All");
-        logger.debug(projResponse);
+        JSONObject projResponse = processGet(Operation.PROJECTS, VisualStudioApi.TFS_API, getTFSCollection() + "/_apis/projects", "statefilter=All");
 
         List<Project> projects = Project.parse(projResponse);
         return projects;
@@ -256,13 +633,39 @@ public class TFSClient {
         logger.debug("Retrieving TFS Queries for Project \"{}\" in folder path \"{}\"", projectId, folderPath);
         this.setTFSProject(projectId);
 
-        String queryResponse = processGet(VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/queries/" + folderPath, "$depth=2");
-        logger.debug(queryResponse);
+        JSONObject queryResponse = processGet(Operation.QUERIES, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/queries/" + folderPath, "$depth=2");
 
         List<Query> queries = Query.parse(queryResponse);
         return queries;
     }
 
+    /**
+     * Get a query folder with two levels of its children.
+     *
+     * @param projectId  the id of the project
+     * @param folder  the id or path of the folder, e.g. "Shared Queries"
+     * @return the folder, its sub folders beyond the second level are returned without their children
+     * @throws TFSClientException
+     */
+    public Query getQueryFolder(String projectId, String folder) throws TFSClientException {
+        logger.debug("Retrieving TFS Query folder \"{}\" of Project \"{}\"", folder, projectId);
+        JSONObject queryResponse = processGet(Operation.QUERIES, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/queries/" + folder, "$depth=2");
+        return (queryResponse == null ? null : Query.parseSingle(queryResponse));
+    }
+
+    /**
+     * Get the Work Item types of a Project with the category of their states, in a single request.
+     *
+     * @param projectId  the id or name of the project
+     * @return a list of work item types, without states if the server does not return them
+     * @throws TFSClientException
+     */
+    public List<WorkItemType> getWorkItemTypes(String projectId) throws TFSClientException {
+        logger.debug("Retrieving TFS Work Item types of Project \"{}\"", projectId);
+        JSONObject typeResponse = processGet(Operation.WORK_ITEM_TYPES, VisualStudioApi.TFS_API, getTFSCollection() + "/" + projectId + "/_apis/wit/workitemtypes", "");
+        return WorkItemType.parse(typeResponse);
+    }
+
     /**
      * Get a list of Build Definitions for the specified Project.
      *
@@ -278,8 +681,7 @@ public class TFSClient {
             params = "name="+startsWith;
         }
 
-        String buildResponse = processGet(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/definitions", params);
-        logger.debug(buildResponse);
+        JSONObject buildResponse = processGet(Operation.BUILD_DEFINITIONS, VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/definitions", params);
 
         List<BuildDefinition> buildDefinitions = BuildDefinition.parse(buildResponse);
         return buildDefinitions;
@@ -301,8 +703,7 @@ public class TFSClient {
         if (startsWith != null && StringUtils.isNotEmpty(startsWith)) {
             params += "&name="+startsWith;
         }
-        String queueResponse = processGet(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/_apis/build/queues", params);
-        logger.debug(queueResponse);
+        JSONObject queueResponse = processGet(Operation.BUILD_QUEUES, VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/_apis/build/queues", params);
 
         List<BuildQueue> buildQueues = BuildQueue.parse(queueResponse);
         return buildQueues;
@@ -325,9 +726,8 @@ public class TFSClient {
             maxBuilds = String.valueOf(resultLimit);
         }
 
-        String buildResponse = processGet(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds",
+        JSONObject buildResponse = processGet(Operation.BUILDS, VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds",
                 "definitions="+buildDefinitionId+"&statusFilter="+statusFilter+"&resultFilter="+resultFilter+"&maxBuildsPerDefinition="+maxBuilds);
-        logger.debug(buildResponse);
 
         List<Build> builds = Build.parse(buildResponse);
         return builds;
@@ -344,8 +744,7 @@ public class TFSClient {
         logger.debug("Retrieving TFS Build \"{}\" in Project \"{}\"", buildId, projectId);
         this.setTFSProject(projectId);
 
-        String buildResponse = processGet(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds/" + buildId, "");
-        logger.debug(buildResponse);
+        JSONObject buildResponse = processGet(Operation.BUILD, VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds/" + buildId, "");
 
         Build build = Build.parseSingle(buildResponse);
         return build;
@@ -378,9 +777,8 @@ public class TFSClient {
             jsonBody.put("sourceBranch", branchId);
         }
 
-        String buildResponse = processPost(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds",
+        JSONObject buildResponse = processPost(VisualStudioApi.TFSBUILD_API, getTFSCollection() + "/" + projectId + "/_apis/build/builds",
                 "", jsonBody.toJSONString());
-        logger.debug(buildResponse);
 
         Build build = Build.parseSingle(buildResponse);
         return build;
@@ -396,8 +794,7 @@ public class TFSClient {
         logger.debug("Retrieving TFS Release Definitions for Project \"{}\"", projectId);
         this.setTFSProject(projectId);
 
-        String releaseResponse = processGet(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/definitions", "$expand=environments");
-        logger.debug(releaseResponse);
+        JSONObject releaseResponse = processGet(Operation.RELEASE_DEFINITIONS, VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/definitions", "$expand=environments");
 
         List<ReleaseDefinition> releaseDefinitions = ReleaseDefinition.parse(releaseResponse);
         return releaseDefinitions;
@@ -414,8 +811,7 @@ public class TFSClient {
         logger.debug("Retrieving TFS Releases for Release Definition \"{}\" in Project \"{}\"", releaseDefinitionId, projectId);
         this.setTFSProject(projectId);
 
-        String releaseResponse = processGet(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases", "definitionId="+releaseDefinitionId+"&$expand=environments");
-        logger.debug(releaseResponse);
+        JSONObject releaseResponse = processGet(Operation.RELEASES, VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases", "definitionId="+releaseDefinitionId+"&$expand=environments");
 
         List<Release> releases = Release.parse(releaseResponse);
         return releases;
@@ -432,8 +828,7 @@ public class TFSClient {
         logger.debug("Retrieving TFS Release \"{}\" in Project \"{}\"", releaseId, projectId);
         this.setTFSProject(projectId);
 
-        String releaseResponse = processGet(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" + releaseId, "");
-        logger.debug(releaseResponse);
+        JSONObject releaseResponse = processGet(Operation.RELEASE, VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" + releaseId, "");
 
         Release release = Release.parseSingle(releaseResponse);
         return release;
@@ -451,13 +846,13 @@ public class TFSClient {
         logger.debug("Retrieving TFS Release \"{}\" status for Environment \"{}\" in Project \"{}\"", releaseId, environmentId, projectId);
         this.setTFSProject(projectId);
 
-        String releaseResponse = processGet(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" + releaseId, "");
-        logger.debug(releaseResponse);
+        JSONObject releaseResponse = processGet(Operation.RELEASE, VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" + releaseId, "");
 
         String status = "unknown";
         Release release = Release.parseSingle(releaseResponse);
+        int envId = TFSObject.parseId(environmentId);
         for (Environment e : release.getEnvironments()) {
-            if (e.getId().equals(environmentId)) {
+            if (envId != TFSObject.NO_ID ? e.getNumericId() == envId : environmentId.equals(e.getId())) {
                 status = e.getState();
                 logger.debug("Environment \"{}\" Environment \"{}\" in Release \"{}\" has status \"{}\"", environmentId, releaseId, status);
                 break;
@@ -483,10 +878,9 @@ public class TFSClient {
         JSONObject jsonBody = new JSONObject();
         jsonBody.put("status", "InProgress"); // 2=inprogress
 
-        String releaseResponse = processPatch(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" +
+        JSONObject releaseResponse = processPatch(VisualStudioApi.RM_API, getTFSCollection() + "/" + projectId + "/_apis/release/releases/" +
                 releaseId + "/environments/" + environmentId,
                 "", jsonBody.toJSONString());
-        logger.debug(releaseResponse);
 
         Release release = Release.parseSingle(releaseResponse);
         return release;
@@ -502,45 +896,96 @@ public class TFSClient {
      * @param whichApi  the API to use
      * @param path  the path for the specific request
      * @param parameters  parameters to send with the query
-     * @return String containing the response body
+     * @return the parsed response body, or null if it is not a JSON object
+     * @throws TFSClientException
+     */
+    protected JSONObject processGet(VisualStudioApi whichApi, String path, String parameters) throws TFSClientException {
+        return processGet(Operation.OTHER, whichApi, path, parameters);
+    }
+
+    /**
+     * Execute a get request to TFS, limiting the size of the response to the maximum size of the operation.
+     *
+     * @param operation  the operation, results over the limit fail unless the operation is truncatable
+     * @param whichApi  the API to use
+     * @param path  the path for the specific request
+     * @param parameters  parameters to send with the query
+     * @return the parsed response body, or null if it is not a JSON object
      * @throws TFSClientException
      */
-    protected String processGet(VisualStudioApi whichApi, String path, String parameters) throws TFSClientException {
+    protected JSONObject processGet(Operation operation, VisualStudioApi whichApi, String path, String parameters) throws TFSClientException {
         String uri = createUrl(whichApi, path, parameters);
 
         logger.debug("Start executing TFS GET request to url=\"{}\"", uri);
 
         DefaultHttpClient httpClient = new DefaultHttpClient();
         HttpGet getRequest = new HttpGet(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getTFSUsername(), getTFSPassword());
-        getRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        getRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        getRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
-        String result = "";
+        addDefaultHeaders(getRequest);
+
+        String cacheKey = null;
+        TFSResponseCache.CachedResponse cached = null;
+        if (responseCache.isEnabled()) {
+            cacheKey = getTFSUsername() + " " + uri;
+            cached = responseCache.get(cacheKey);
+            if (cached != null && cached.getETag() != null) {
+                getRequest.addHeader(HttpHeaders.IF_NONE_MATCH, cached.getETag());
+            } else if (cached != null) {
+                getRequest.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+            }
+        }
+
+        TFSResponseBody body;
+        boolean tap = wireTap.shouldRecord();
+        long startTime = (tap ? System.currentTimeMillis() : 0L);
 
         try {
             HttpResponse response = httpClient.execute(getRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.http.HttpStatus.SC_OK) {
-                throw createHttpError(response);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                byte[] cachedBody = cached.getBody();
+                if (cachedBody == null) {
+                    // cached body has gone, request it again without validators
+                    responseCache.remove(cacheKey);
+                    return processGet(operation, whichApi, path, parameters);
+                }
+                responseCache.recordHit();
+                body = TFSResponseBody.wrap(cachedBody);
+                logger.debug("Using cached response for url=\"{}\"", uri);
+            } else if (statusCode != HttpStatus.SC_OK) {
+                TFSClientException httpError = createHttpError(response);
+                if (tap) wireTap.record(getRequest, statusCode, startTime, httpError.getMessage());
+                logWireTap();
+                throw httpError;
+            } else {
+                body = TFSResponseBody.read(response.getEntity(), responseLimits.getMaxSize(operation), operation.isTruncatable());
+                if (body.isTruncated()) {
+                    TFSClientException sizeError = checkResponseSize(operation, uri, body);
+                    if (sizeError != null) {
+                        if (tap) wireTap.record(getRequest, statusCode, startTime, sizeError.getMessage());
+                        throw sizeError;
+                    }
+                } else if (cacheKey != null) {
+                    responseCache.recordMiss();
+                    responseCache.put(cacheKey, getHeaderValue(response, HttpHeaders.ETAG),
+                            getHeaderValue(response, HttpHeaders.LAST_MODIFIED), body.array(), body.length());
+                }
             }
-            result = sb.toString();
+            if (tap) wireTap.record(getRequest, statusCode, startTime, body);
         } catch (IOException ex) {
             logger.error(ex.getMessage(), ex);
+            if (tap) wireTap.record(getRequest, -1, startTime, ex.getMessage());
             throw new TFSClientException("Server not available", ex);
         } finally {
             httpClient.getConnectionManager().shutdown();
         }
 
-        logger.debug("End executing TFS GET request to url=\"{}\" and receive this result={}", uri, result);
+        logger.debug("End executing TFS GET request to url=\"{}\" and received {} bytes", uri, body.length());
 
-        return result;
+        try {
+            return parseBody(body, uri);
+        } finally {
+            body.close();
+        }
     }
 
     /**
@@ -550,51 +995,27 @@ public class TFSClient {
      * @param path  the path for the specific request
      * @param parameters  parameters to send with the query
      * @param body  the body to send with the request
-     * @return String containing the response body
+     * @return the parsed response body, or null if it is not a JSON object
      * @throws TFSClientException
      */
-    public String processPost(VisualStudioApi whichApi, String path, String parameters, String body) throws TFSClientException {
-        String uri = createUrl(whichApi, path, parameters);
-
-        logger.debug("Start executing TFS POST request to url=\"{}\" with data: {}", uri, body);
-
-        DefaultHttpClient httpClient = new DefaultHttpClient();
-        HttpPost postRequest = new HttpPost(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getTFSUsername(), getTFSPassword());
-        postRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        postRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        postRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
-
-        try {
-            postRequest.setEntity(new StringEntity(body,"UTF-8"));
-        } catch (UnsupportedEncodingException ex) {
-            logger.error(ex.getMessage(), ex);
-            throw new TFSClientException("Error creating body for POST request", ex);
-        }
-        String result = "";
-
-        try {
-            HttpResponse response = httpClient.execute(postRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_OK && response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_CREATED &&
-                    response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_ACCEPTED) {
-                throw createHttpError(response);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
-            }
-            result = sb.toString();
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-            throw new TFSClientException("Server not available", e);
-        }
-
-        logger.debug("End executing TFS POST request to url=\"{}\" and received this result={}", uri, result);
+    public JSONObject processPost(VisualStudioApi whichApi, String path, String parameters, String body) throws TFSClientException {
+        return processPost(Operation.UPDATE, whichApi, path, parameters, body);
+    }
 
-        return result;
+    /**
+     * Execute a post request to TFS, limiting the size of the response to the maximum size of the operation.
+     *
+     * @param operation  the operation, results over the limit fail unless the operation is truncatable
+     * @param whichApi  the API to use
+     * @param path  the path for the specific request
+     * @param parameters  parameters to send with the query
+     * @param body  the body to send with the request
+     * @return the parsed response body, or null if it is not a JSON object
+     * @throws TFSClientException
+     */
+    public JSONObject processPost(Operation operation, VisualStudioApi whichApi, String path, String parameters, String body) throws TFSClientException {
+        String uri = createUrl(whichApi, path, parameters);
+        return processUpdate(operation, new HttpPost(uri), uri, body);
     }
 
     /**
@@ -604,51 +1025,76 @@ public class TFSClient {
      * @param path  the path for the specific request
      * @param parameters  parameters to send with the query
      * @param body  the body to send with the request
-     * @return String containing the response body
+     * @return the parsed response body, or null if it is not a JSON object
      * @throws TFSClientException
      */
-    public String processPatch(VisualStudioApi whichApi, String path, String parameters, String body) throws TFSClientException {
+    public JSONObject processPatch(VisualStudioApi whichApi, String path, String parameters, String body) throws TFSClientException {
         String uri = createUrl(whichApi, path, parameters);
+        return processUpdate(Operation.UPDATE, new HttpPatch(uri), uri, body);
+    }
 
-        logger.debug("Start executing TFS PATCH request to url=\"{}\" with data: {}", uri, body);
+    /**
+     * Execute a request that sends a body to TFS, e.g. a post or patch request.
+     *
+     * @param operation  the operation, results over the limit fail unless the operation is truncatable
+     * @param request  the request to execute
+     * @param uri  the url of the request
+     * @param body  the body to send with the request
+     * @return the parsed response body, or null if it is not a JSON object
+     * @throws TFSClientException
+     */
+    private JSONObject processUpdate(Operation operation, HttpEntityEnclosingRequestBase request, String uri, String body) throws TFSClientException {
+        String method = request.getMethod();
+
+        logger.debug("Start executing TFS {} request to url=\"{}\" with data: {}", method, uri, body);
 
         DefaultHttpClient httpClient = new DefaultHttpClient();
-        HttpPatch patchRequest = new HttpPatch(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getTFSUsername(), getTFSPassword());
-        patchRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        patchRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        patchRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
+        addDefaultHeaders(request);
 
         try {
-            patchRequest.setEntity(new StringEntity(body,"UTF-8"));
+            request.setEntity(new StringEntity(body,"UTF-8"));
         } catch (UnsupportedEncodingException ex) {
             logger.error(ex.getMessage(), ex);
-            throw new TFSClientException("Error creating body for PATCH request", ex);
+            throw new TFSClientException("Error creating body for " + method + " request", ex);
         }
-        String result = "";
+        TFSResponseBody result;
+        boolean tap = wireTap.shouldRecord();
+        long startTime = (tap ? System.currentTimeMillis() : 0L);
 
         try {
-            HttpResponse response = httpClient.execute(patchRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_OK && response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_CREATED &&
-                    response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_ACCEPTED) {
-                throw createHttpError(response);
+            HttpResponse response = httpClient.execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_CREATED && statusCode != HttpStatus.SC_ACCEPTED) {
+                TFSClientException httpError = createHttpError(response);
+                if (tap) wireTap.record(request, statusCode, startTime, httpError.getMessage());
+                logWireTap();
+                throw httpError;
             }
 
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
+            result = TFSResponseBody.read(response.getEntity(), responseLimits.getMaxSize(operation), operation.isTruncatable());
+            if (result.isTruncated()) {
+                TFSClientException sizeError = checkResponseSize(operation, uri, result);
+                if (sizeError != null) {
+                    if (tap) wireTap.record(request, statusCode, startTime, sizeError.getMessage());
+                    throw sizeError;
+                }
             }
-            result = sb.toString();
+            if (tap) wireTap.record(request, statusCode, startTime, result);
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
+            if (tap) wireTap.record(request, -1, startTime, e.getMessage());
             throw new TFSClientException("Server not available", e);
+        } finally {
+            httpClient.getConnectionManager().shutdown();
         }
 
-        logger.debug("End executing TFS PATCH request to url=\"{}\" and received this result={}", uri, result);
+        logger.debug("End executing TFS {} request to url=\"{}\" and received {} bytes", method, uri, result.length());
 
-        return result;
+        try {
+            return parseBody(result, uri);
+        } finally {
+            result.close();
+        }
     }
 
     /**
@@ -670,6 +1116,12 @@ public class TFSClient {
             apiVersion = getVsrmApiVersion();
         } else if (whichApi == VisualStudioApi.TFSBUILD_API) {
             apiVersion = getTfsBuildApiVersion();
+        } else if (whichApi == VisualStudioApi.ANALYTICS_API) {
+            // the OData version is part of the path
+            if (StringUtils.isNotEmpty(getAnalyticsUrl())) {
+                base = getAnalyticsUrl();
+            }
+            apiVersion = null;
         }
 
         // trim and encode path
@@ -680,49 +1132,144 @@ public class TFSClient {
         }
 
         // set parameters
-        if (StringUtils.isEmpty(parameters)) {
+        if (apiVersion == null) {
+            apiParams = (StringUtils.isEmpty(parameters) ? "" : "?" + parameters);
+        } else if (StringUtils.isEmpty(parameters)) {
             apiParams = "?api-version=" + apiVersion;
         } else {
             apiParams = "?" + parameters + "&api-version=" + apiVersion;
         }
 
-        System.out.println(base + path + apiParams);
         return base + path + apiParams;
     }
 
     /**
-     * Returns a TFS Client specific Client Exception
-     * @param response  the exception to throw
-     * @return
+     * Wait for a batched or pipelined Work Item retrieval to complete.
      */
-    private TFSClientException createHttpError(HttpResponse response) {
-        String message;
+    static <T> T await(Future<T> future) throws TFSClientException {
         try {
-            StatusLine statusLine = response.getStatusLine();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-            String line;
-            StringBuffer responsePayload = new StringBuffer();
-            // Read response until the end
-            while ((line = rd.readLine()) != null) {
-                responsePayload.append(line);
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TFSClientException("Interrupted while retrieving Work Items", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof TFSClientException) {
+                throw (TFSClientException) ex.getCause();
             }
+            throw new TFSClientException("Error retrieving Work Items", ex.getCause());
+        }
+    }
 
-            message = String.format(" request not successful: %d %s. Reason: %s", statusLine.getStatusCode(), statusLine.getReasonPhrase(), responsePayload);
+    /**
+     * Check whether an API version, e.g. "4.1-preview", is at least the specified version.
+     */
+    static boolean isApiVersionAtLeast(String apiVersion, int major, int minor) {
+        if (apiVersion == null) {
+            return false;
+        }
+        String[] parts = apiVersion.trim().split("[.-]");
+        try {
+            int versionMajor = Integer.parseInt(parts[0]);
+            int versionMinor = (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+            return versionMajor > major || (versionMajor == major && versionMinor >= minor);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
-            logger.debug(message);
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return (header == null ? null : header.getValue());
+    }
 
-            if (new Integer(HttpStatus.SC_UNAUTHORIZED).equals(statusLine.getStatusCode())) {
-                return new TFSClientException("TFS: Invalid credentials provided.");
-            } else if (new Integer(HttpStatus.SC_NOT_FOUND).equals(statusLine.getStatusCode())) {
-                return new TFSClientException("TFS: Request URL not found.");
-            } else if (new Integer(HttpStatus.SC_BAD_REQUEST).equals(statusLine.getStatusCode())) {
-                return new TFSClientException("TFS: Bad request. " + responsePayload);
+    private void addDefaultHeaders(HttpRequestBase request) {
+        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getTFSUsername(), getTFSPassword());
+        request.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
+        request.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
+        request.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
+    }
+
+    /**
+     * Parse a response body with the configured JSON codec.
+     *
+     * @param body  the response body
+     * @param uri  the url the body was received from
+     * @return the JSON object, or null if the body is empty or not a JSON object
+     */
+    private JSONObject parseBody(TFSResponseBody body, String uri) {
+        if (body.length() == 0) {
+            return null;
+        }
+        try {
+            Object parsedObject = body.parse();
+            if (parsedObject instanceof JSONObject) {
+                return (JSONObject) parsedObject;
             }
+            logger.error("Unexpected JSON response from url=\"{}\" - {}", uri, body.toString(MAX_LOGGED_BODY));
+        } catch (ParseException e) {
+            logger.error("Error while parsing JSON response from url=\"" + uri + "\" - " + body.toString(MAX_LOGGED_BODY), e);
+        }
+        return null;
+    }
+
+    /**
+     * Handle a response that crossed the maximum size of its operation, results of truncatable operations are
+     * cut back to their last complete element and any other response is released.
+     *
+     * @param operation  the operation
+     * @param uri  the url the body was received from
+     * @param body  the truncated body
+     * @return the exception to throw, or null if the truncated list can be used
+     */
+    private TFSClientException checkResponseSize(Operation operation, String uri, TFSResponseBody body) {
+        if (operation.isTruncatable() && body.truncateToLastElement()) {
+            responseLimits.recordOverflow(operation, uri, true);
+            return null;
+        }
+        responseLimits.recordOverflow(operation, uri, false);
+        body.close();
+        return new TFSClientException("TFS: The " + operation.getKey() + " response exceeds the maximum size of " +
+                responseLimits.getMaxSize(operation) + " bytes, narrow the request or raise the limit with tfs_max_response_size.");
+    }
+
+    /**
+     * Returns a TFS Client specific Client Exception
+     * @param response  the exception to throw
+     * @return
+     */
+    private TFSClientException createHttpError(HttpResponse response) {
+        String message;
+        StatusLine statusLine = response.getStatusLine();
+        String responsePayload;
+        try (TFSResponseBody body = TFSResponseBody.read(response.getEntity(), MAX_LOGGED_BODY, true)) {
+            responsePayload = body.toString(MAX_LOGGED_BODY);
         } catch (IOException e) {
             return new TFSClientException("TFS: Can't read response");
         }
 
-        return new TFSClientException(message);
+        message = String.format(" request not successful: %d %s. Reason: %s", statusLine.getStatusCode(), statusLine.getReasonPhrase(), responsePayload);
+
+        logger.debug(message);
+
+        int statusCode = statusLine.getStatusCode();
+        if (HttpStatus.SC_UNAUTHORIZED == statusCode) {
+            return new TFSClientException("TFS: Invalid credentials provided.", statusCode);
+        } else if (HttpStatus.SC_NOT_FOUND == statusCode) {
+            return new TFSClientException("TFS: Request URL not found.", statusCode);
+        } else if (HttpStatus.SC_BAD_REQUEST == statusCode) {
+            return new TFSClientException("TFS: Bad request. " + responsePayload, statusCode);
+        }
+
+        return new TFSClientException(message, statusCode);
+    }
+
+    /**
+     * Log the requests that led to a failed request, if the wire tap is enabled.
+     */
+    private static void logWireTap() {
+        if (wireTap.isEnabled() && logger.isDebugEnabled()) {
+            logger.debug("Recent TFS requests:{}{}", System.lineSeparator(), wireTap.dump());
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
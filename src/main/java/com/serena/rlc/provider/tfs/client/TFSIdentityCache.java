@@ -0,0 +1,436 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.client.TFSResponseLimits.Operation;
+import com.serena.rlc.provider.tfs.domain.Identity;
+import com.serena.rlc.provider.tfs.domain.TFSObject;
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the email addresses of the identities referenced by Work Items, shared by all providers using the same TFS
+ * connection. The identities of a list of Work Items are resolved together: identities with an id are read in bulk
+ * from the identities endpoint. Identities without one (older API versions) can only be searched one by one by
+ * account name, so they are searched in the background and their addresses are seen by later requests; on hosted
+ * collections their unique name is already their email address. Resolved addresses, and identities that have none,
+ * are kept for the least recently used identities up to the capacity. If the identities endpoint can not be used it
+ * is not tried again until the retry interval has passed.
+ * @author klee@serena.com
+ */
+public class TFSIdentityCache {
+    private static final Logger logger = LoggerFactory.getLogger(TFSIdentityCache.class);
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final long RETRY_INTERVAL = 3600;
+    private static final int MAX_IDS_PER_REQUEST = 100;
+    private static final String NO_MAIL = "";
+
+    private static final ConcurrentMap<String, TFSIdentityCache> caches = new ConcurrentHashMap<>();
+    private static final ExecutorService searcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tfs-identity-search");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String connectionKey;
+    private final boolean hosted;
+    private final TFSClient client;
+    private final Set<String> searching = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int capacity = DEFAULT_CAPACITY;
+    private final Map<String, String> mails = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > capacity;
+        }
+    };
+    private volatile long unavailableUntil;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    private TFSIdentityCache(String connectionKey, TFSClient client) {
+        this.connectionKey = connectionKey;
+        this.client = client;
+        this.hosted = isHosted(client.getTFSUrl());
+    }
+
+    /**
+     * Get the identity cache for the connection the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared identity cache for the connection
+     */
+    public static TFSIdentityCache forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source);
+        TFSIdentityCache cache = caches.get(key);
+        if (cache == null) {
+            TFSIdentityCache newCache = new TFSIdentityCache(key, source.copyConnection());
+            cache = caches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Check whether a url is that of a hosted (Visual Studio Team Services / Azure DevOps) collection,
+     * where the unique name of an identity is its email address.
+     *
+     * @param url  the TFS url
+     * @return true for a hosted collection
+     */
+    public static boolean isHosted(String url) {
+        if (url == null) {
+            return false;
+        }
+        String host;
+        try {
+            host = new URI(url.trim()).getHost();
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+        if (host == null) {
+            return false;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        return host.endsWith(".visualstudio.com") || host.equals("dev.azure.com") || host.endsWith(".dev.azure.com");
+    }
+
+    /**
+     * Set the maximum number of identities to keep the email address of.
+     *
+     * @param capacity  the capacity
+     */
+    public void setCapacity(int capacity) {
+        if (capacity > 0) {
+            this.capacity = capacity;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Resolve the email addresses of the identities referenced by Work Items. Identities are shared, so each one is
+     * only resolved once however many Work Items reference it. Identities without an id are searched in the
+     * background and stay unresolved for this call. Failures are logged and leave the identities unresolved.
+     *
+     * @param workItems  the Work Items to resolve the identities of
+     */
+    public void resolve(Collection<WorkItem> workItems) {
+        Map<String, List<Identity>> pending = new LinkedHashMap<>();
+        for (WorkItem workItem : workItems) {
+            collect(workItem.getAssignedToIdentity(), pending);
+            collect(workItem.getCreatedByIdentity(), pending);
+            collect(workItem.getChangedByIdentity(), pending);
+        }
+        if (pending.isEmpty() || !isAvailable()) {
+            return;
+        }
+
+        Map<String, String> keysById = new HashMap<>();
+        Map<String, List<Identity>> withoutId = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, List<Identity>>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, List<Identity>> entry = it.next();
+            String id = getId(entry.getValue());
+            if (id != null) {
+                keysById.put(id.toLowerCase(Locale.ROOT), entry.getKey());
+            } else {
+                withoutId.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        if (!withoutId.isEmpty()) {
+            search(withoutId);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> found = new HashMap<>();
+        try {
+            lookup(pending, keysById, found);
+        } catch (TFSClientException ex) {
+            setUnavailable(ex);
+            logger.warn("Unable to resolve TFS identities: {}", ex.getMessage());
+            return;
+        }
+        store(pending, found);
+        logger.debug("Resolved {} TFS identities, {} with an email address", pending.size(), found.size());
+    }
+
+    /**
+     * Discard all resolved email addresses, the identities are resolved again when they are next referenced.
+     */
+    public void invalidate() {
+        synchronized (mails) {
+            mails.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getResolvedCount() {
+        return resolved.get();
+    }
+
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (mails) {
+            size = mails.size();
+        }
+        return "TFSIdentityCache{" + "connection=" + connectionKey + ", entries=" + size + ", hits=" + getHitCount() +
+                ", resolved=" + getResolvedCount() + ", lookups=" + getLookupCount() + '}';
+    }
+
+    //
+
+    /**
+     * Add an identity to the pending identities unless its address is in the cache. Identities are pooled and stay
+     * resolved, so the cache decides: an identity whose entry was evicted or invalidated is resolved again.
+     */
+    private void collect(Identity identity, Map<String, List<Identity>> pending) {
+        if (identity == null || identity.getUniqueName() == null) {
+            return;
+        }
+        String uniqueName = identity.getUniqueName();
+        if (hosted && uniqueName.indexOf('@') > 0 && uniqueName.indexOf('\\') < 0) {
+            // the unique name of a hosted identity is its email address
+            identity.setMail(uniqueName);
+            return;
+        }
+        String key = identity.getUniqueName().toLowerCase(Locale.ROOT);
+        List<Identity> identities = pending.get(key);
+        if (identities != null) {
+            if (!identities.contains(identity)) {
+                identities.add(identity);
+            }
+            return;
+        }
+        String mail;
+        synchronized (mails) {
+            mail = mails.get(key);
+        }
+        if (mail != null) {
+            hits.incrementAndGet();
+            identity.setMail(mail.isEmpty() ? null : mail);
+            return;
+        }
+        identities = new ArrayList<>(2);
+        identities.add(identity);
+        pending.put(key, identities);
+    }
+
+    private static String getId(List<Identity> identities) {
+        for (Identity identity : identities) {
+            if (identity.getId() != null) {
+                return identity.getId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the identities with an id in chunks.
+     */
+    private void lookup(Map<String, List<Identity>> pending, Map<String, String> keysById, Map<String, String> found) throws TFSClientException {
+        String path = client.getTFSCollection() + "/_apis/identities";
+        List<String> ids = new ArrayList<>(pending.size());
+        for (List<Identity> identities : pending.values()) {
+            ids.add(getId(identities));
+        }
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_REQUEST) {
+            StringBuilder params = new StringBuilder("identityIds=");
+            for (int i = from; i < Math.min(from + MAX_IDS_PER_REQUEST, ids.size()); i++) {
+                if (i > from) params.append(',');
+                params.append(ids.get(i));
+            }
+            lookups.incrementAndGet();
+            parse(client.processGet(Operation.OTHER, TFSClient.VisualStudioApi.TFS_API, path, params.toString()), keysById, found);
+        }
+    }
+
+    /**
+     * Search identities by account name in the background, one request each. Identities already being searched
+     * are skipped, and the search stops if the identities endpoint becomes unavailable.
+     */
+    private void search(Map<String, List<Identity>> withoutId) {
+        final Map<String, List<Identity>> accounts = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Identity>> entry : withoutId.entrySet()) {
+            if (searching.add(entry.getKey())) {
+                accounts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (accounts.isEmpty()) {
+            return;
+        }
+        searcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                String path = client.getTFSCollection() + "/_apis/identities";
+                try {
+                    for (Map.Entry<String, List<Identity>> entry : accounts.entrySet()) {
+                        if (!isAvailable()) {
+                            return;
+                        }
+                        Map<String, String> found = new HashMap<>(2);
+                        lookups.incrementAndGet();
+                        try {
+                            // the search is for a single account, so its result belongs to the identity searched
+                            String mail = getMail(client.processGet(Operation.OTHER, TFSClient.VisualStudioApi.TFS_API, path,
+                                    "searchFilter=AccountName&filterValue=" + encode(entry.getValue().get(0).getUniqueName())));
+                            if (mail != null) {
+                                found.put(entry.getKey(), mail);
+                            }
+                        } catch (TFSClientException ex) {
+                            setUnavailable(ex);
+                            logger.warn("Unable to search TFS identity \"{}\": {}", entry.getValue().get(0).getUniqueName(), ex.getMessage());
+                            return;
+                        }
+                        store(Collections.singletonMap(entry.getKey(), entry.getValue()), found);
+                    }
+                    logger.debug("Searched {} TFS identities by account name", accounts.size());
+                } finally {
+                    searching.removeAll(accounts.keySet());
+                }
+            }
+        });
+    }
+
+    /**
+     * Cache the email addresses found for pending identities and set them on the identities.
+     */
+    private void store(Map<String, List<Identity>> pending, Map<String, String> found) {
+        synchronized (mails) {
+            for (Map.Entry<String, List<Identity>> entry : pending.entrySet()) {
+                String mail = found.get(entry.getKey());
+                mails.put(entry.getKey(), mail == null ? NO_MAIL : mail);
+            }
+        }
+        for (Map.Entry<String, List<Identity>> entry : pending.entrySet()) {
+            for (Identity identity : entry.getValue()) {
+                identity.setMail(found.get(entry.getKey()));
+            }
+        }
+        resolved.addAndGet(pending.size());
+    }
+
+    /**
+     * Stop using the identities endpoint until the retry interval has passed, unless the server was not available.
+     */
+    private void setUnavailable(TFSClientException ex) {
+        if (!(ex.getCause() instanceof IOException)) {
+            unavailableUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RETRY_INTERVAL);
+        }
+    }
+
+    /**
+     * Collect the email addresses of the returned identities by the key of the pending identity with the same id.
+     */
+    private static void parse(JSONObject response, Map<String, String> keysById, Map<String, String> found) {
+        if (response == null || !(response.get("value") instanceof JSONArray)) {
+            return;
+        }
+        for (Object object : (JSONArray) response.get("value")) {
+            if (!(object instanceof JSONObject)) {
+                continue;  // unknown ids are returned as null
+            }
+            JSONObject identity = (JSONObject) object;
+            String mail = getProperty((JSONObject) TFSObject.getJSONValue(identity, "properties"), "Mail");
+            String id = (String) TFSObject.getJSONValue(identity, "id");
+            String key = (id == null ? null : keysById.get(id.toLowerCase(Locale.ROOT)));
+            if (key != null && mail != null && !mail.isEmpty()) {
+                found.put(key, mail);
+            }
+        }
+    }
+
+    /**
+     * Get the email address of the first identity returned by a search that has one.
+     */
+    private static String getMail(JSONObject response) {
+        if (response == null || !(response.get("value") instanceof JSONArray)) {
+            return null;
+        }
+        for (Object object : (JSONArray) response.get("value")) {
+            if (object instanceof JSONObject) {
+                String mail = getProperty((JSONObject) TFSObject.getJSONValue((JSONObject) object, "properties"), "Mail");
+                if (mail != null && !mail.isEmpty()) {
+                    return mail;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getProperty(JSONObject properties, String name) {
+        if (properties == null || !(properties.get(name) instanceof JSONObject)) {
+            return null;
+        }
+        Object value = ((JSONObject) properties.get(name)).get("$value");
+        return (value instanceof String ? (String) value : null);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return value;
+        }
+    }
+
+}
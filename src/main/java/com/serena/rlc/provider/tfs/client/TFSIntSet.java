@@ -0,0 +1,201 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive ints, e.g. Work Item ids, using open addressing with linear probing over a plain int array.
+ * Free slots hold 0, so whether 0 itself is a member is tracked separately. Iteration order is undefined.
+ * Not thread safe.
+ * @author klee@serena.com
+ */
+public class TFSIntSet {
+
+    private static final int MIN_CAPACITY = 8;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private boolean containsFree;
+    private int size;
+
+    public TFSIntSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create a set that holds the expected number of members without growing.
+     *
+     * @param expectedSize  the expected number of members
+     */
+    public TFSIntSet(int expectedSize) {
+        keys = new int[tableSize(expectedSize)];
+    }
+
+    public boolean contains(int key) {
+        return (key == FREE ? containsFree : find(key) >= 0);
+    }
+
+    /**
+     * Add a member.
+     *
+     * @param key  the member
+     * @return true if it was not a member yet
+     */
+    public boolean add(int key) {
+        if (key == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        if (++size > maxSize(keys.length)) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a member, later members of its probe sequence are shifted back so that lookups never need tombstones.
+     *
+     * @param key  the member
+     * @return true if it was a member
+     */
+    public boolean remove(int key) {
+        if (key == FREE) {
+            if (!containsFree) {
+                return false;
+            }
+            containsFree = false;
+            size--;
+            return true;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        int mask = keys.length - 1;
+        int gap = slot;
+        for (int i = (gap + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            // the member at i may only move back to the gap if the gap lies between its home slot and i
+            if (((i - (hash(keys[i]) & mask)) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                gap = i;
+            }
+        }
+        keys[gap] = FREE;
+        size--;
+        return true;
+    }
+
+    /**
+     * Get the members of the set.
+     *
+     * @return a new array of the members, in no particular order
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        int count = 0;
+        if (containsFree) {
+            result[count++] = FREE;
+        }
+        for (int key : keys) {
+            if (key != FREE) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        containsFree = false;
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    //
+
+    /**
+     * Spread the bits of a key so that consecutive ids do not fill consecutive slots (Fibonacci hashing).
+     */
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the power of two table size that holds the expected number of entries below the maximum load.
+     */
+    static int tableSize(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && maxSize(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Get the number of entries a table may hold before it grows, a load factor of 0.75.
+     */
+    static int maxSize(int capacity) {
+        return capacity - (capacity >>> 2);
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        keys = new int[capacity];
+        int mask = capacity - 1;
+        for (int key : oldKeys) {
+            if (key != FREE) {
+                int slot = hash(key) & mask;
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+
+}
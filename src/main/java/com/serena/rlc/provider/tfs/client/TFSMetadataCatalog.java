@@ -0,0 +1,537 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.*;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide catalog of TFS metadata (projects, queries, build definitions, build queues,
+ * release definitions and Work Item types) shared by all providers using the same TFS connection.
+ * Each entry is hydrated once on first use and then refreshed individually in the background,
+ * Work Item types only every twelfth refresh interval as they rarely change. Queries are the flattened leaves
+ * of the query tree of the connection, so listing them never walks the tree on the request thread once loaded.
+ * The background refresh and the snapshot on exit run until {@link #shutdown()} is called.
+ * @author klee@serena.com
+ */
+public class TFSMetadataCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(TFSMetadataCatalog.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 300;
+    private static final long REFRESH_TICK = 30;
+    private static final int IDLE_REFRESH_COUNT = 4;
+    private static final int TYPE_REFRESH_COUNT = 12;
+    private static final int SNAPSHOT_TICKS = 10;
+
+    static final String KEY_SEPARATOR = "|";
+    static final String PROJECTS = "projects";
+    static final String QUERIES = "queries";
+    static final String BUILD_DEFINITIONS = "buildDefinitions";
+    static final String BUILD_QUEUES = "buildQueues";
+    static final String RELEASE_DEFINITIONS = "releaseDefinitions";
+    static final String WORK_ITEM_TYPES = "workItemTypes";
+
+    private static final ConcurrentMap<String, TFSMetadataCatalog> catalogs = new ConcurrentHashMap<>();
+    private static volatile File snapshotDirectory;
+
+    // the refresh thread and the shutdown hook are created with the first catalog and released by shutdown()
+    private static final Object lifecycleLock = new Object();
+    private static ScheduledExecutorService refresher;
+    private static Thread snapshotHook;
+
+    private final String connectionKey;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile TFSClient client;
+    private volatile long refreshInterval = TimeUnit.SECONDS.toMillis(DEFAULT_REFRESH_INTERVAL);
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile boolean dirty;
+    private ScheduledFuture<?> refreshTask;
+    private int ticks;
+
+    private TFSMetadataCatalog(String connectionKey, TFSClient client) {
+        this.connectionKey = connectionKey;
+        this.client = client;
+    }
+
+    /**
+     * Get the catalog for the connection the specified client is configured for. The catalog is shared by all
+     * providers using the same connection, whatever API versions and VSRM url they are configured with.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared catalog for the connection
+     */
+    public static TFSMetadataCatalog forConnection(TFSClient source) {
+        String key = getConnectionKey(source);
+        TFSMetadataCatalog catalog = catalogs.get(key);
+        if (catalog == null) {
+            synchronized (lifecycleLock) {
+                catalog = catalogs.get(key);
+                if (catalog == null) {
+                    catalog = new TFSMetadataCatalog(key, source.copyConnection());
+                    catalogs.put(key, catalog);
+                    catalog.schedule(catalog.restore());
+                }
+            }
+        }
+        catalog.lastAccess = System.currentTimeMillis();
+        catalog.adopt(source);
+        return catalog;
+    }
+
+    /**
+     * Stop the background refresh, write the snapshots of all catalogs and release them, e.g. when the
+     * provider is undeployed. Catalogs requested afterwards are created again.
+     */
+    public static void shutdown() {
+        synchronized (lifecycleLock) {
+            if (refresher == null) {
+                return;
+            }
+            refresher.shutdownNow();
+            try {
+                Runtime.getRuntime().removeShutdownHook(snapshotHook);
+            } catch (IllegalStateException ex) {
+                // the JVM is already shutting down and runs the hook itself
+            }
+            refresher = null;
+            snapshotHook = null;
+
+            for (TFSMetadataCatalog catalog : catalogs.values()) {
+                catalog.persist();
+            }
+            catalogs.clear();
+        }
+        logger.debug("Stopped the TFS metadata refresh");
+    }
+
+    /**
+     * Set the directory warm start snapshots are written to and read from, null to disable snapshots.
+     *
+     * @param directory  the snapshot directory
+     */
+    public static void setSnapshotDirectory(File directory) {
+        snapshotDirectory = directory;
+    }
+
+    public static File getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Get the key of the connection a client is configured for: its url, collection and a digest of its
+     * credentials, so components shared per connection are never used with other credentials. API versions
+     * and the VSRM url are left out, they differ between the providers of the same connection.
+     *
+     * @param source  a client with its connection details set
+     * @return the connection key, e.g. "http://tfs:8080/tfs|DefaultCollection|" followed by the digest
+     */
+    public static String getConnectionKey(TFSClient source) {
+        return StringUtils.defaultString(source.getTFSUrl()) + KEY_SEPARATOR + StringUtils.defaultString(source.getTFSCollection()) +
+                KEY_SEPARATOR + digest(StringUtils.defaultString(source.getTFSUsername()) + ":" + StringUtils.defaultString(source.getTFSPassword()));
+    }
+
+    /**
+     * Get a SHA-256 digest of a value, truncated to 128 bits.
+     *
+     * @param value  the value
+     * @return the digest as 32 hex digits
+     */
+    static String digest(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public String getConnectionKey() {
+        return connectionKey;
+    }
+
+    /**
+     * Set how often entries are refreshed in the background.
+     *
+     * @param seconds  the refresh interval in seconds
+     */
+    public void setRefreshInterval(long seconds) {
+        if (seconds > 0) {
+            this.refreshInterval = TimeUnit.SECONDS.toMillis(seconds);
+        }
+    }
+
+    public List<Project> getProjects() throws TFSClientException {
+        return get(PROJECTS);
+    }
+
+    /**
+     * Get all the queries below a folder. The tree is only walked when the entry is first loaded without a
+     * snapshot, later walks are done by the background refresh, which only revalidates out of date folders.
+     *
+     * @param projectId  the id of the project
+     * @param folderPath  the path of the folder, e.g. "Shared Queries"
+     * @return the queries without the folders
+     * @throws TFSClientException
+     */
+    public List<Query> getQueries(String projectId, String folderPath) throws TFSClientException {
+        return get(QUERIES + KEY_SEPARATOR + projectId + KEY_SEPARATOR + folderPath);
+    }
+
+    public List<BuildDefinition> getBuildDefinitions(String projectId, String startsWith) throws TFSClientException {
+        return get(BUILD_DEFINITIONS + KEY_SEPARATOR + projectId + KEY_SEPARATOR + startsWith);
+    }
+
+    public List<BuildQueue> getBuildQueues(String queueType, String startsWith) throws TFSClientException {
+        return get(BUILD_QUEUES + KEY_SEPARATOR + queueType + KEY_SEPARATOR + startsWith);
+    }
+
+    public List<ReleaseDefinition> getReleaseDefinitions(String projectId) throws TFSClientException {
+        return get(RELEASE_DEFINITIONS + KEY_SEPARATOR + projectId);
+    }
+
+    public List<WorkItemType> getWorkItemTypes(String projectId) throws TFSClientException {
+        return get(WORK_ITEM_TYPES + KEY_SEPARATOR + projectId);
+    }
+
+    /**
+     * Set the state category of Work Items from the cached types of their projects, without any request
+     * once the types are loaded. States that are not defined by a type get the category of the standard
+     * state of that name, if any.
+     *
+     * @param workItems  the Work Items to update
+     */
+    public void assignStateCategories(Collection<WorkItem> workItems) {
+        Map<String, Map<String, WorkItemType>> typesByProject = new HashMap<>();
+        for (WorkItem workItem : workItems) {
+            String state = workItem.getState();
+            if (state == null) {
+                continue;
+            }
+            WorkItemType type = null;
+            if (workItem.getProject() != null && workItem.getType() != null) {
+                Map<String, WorkItemType> types = typesByProject.get(workItem.getProject());
+                if (types == null) {
+                    types = indexTypes(workItem.getProject());
+                    typesByProject.put(workItem.getProject(), types);
+                }
+                type = types.get(workItem.getType());
+            }
+            workItem.setStateCategory(type != null ? type.getStateCategory(state) : WorkItemType.getDefaultCategory(state));
+        }
+    }
+
+    /**
+     * Discard all cached metadata so that it is reloaded on next use.
+     */
+    public void invalidate() {
+        entries.clear();
+    }
+
+    /**
+     * Refresh entries that are older than the refresh interval and drop entries that have not been used recently.
+     * A catalog without entries that has not been requested recently is released.
+     */
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        long interval = refreshInterval;
+        if (entries.isEmpty() && now - lastAccess > interval * IDLE_REFRESH_COUNT) {
+            release();
+            return;
+        }
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            if (now - entry.lastAccess > interval * IDLE_REFRESH_COUNT) {
+                logger.debug("Dropping idle TFS metadata \"{}\"", mapEntry.getKey());
+                it.remove();
+            } else if (now - entry.loadedAt > interval * entry.getRefreshCount()) {
+                try {
+                    entry.reload(client);
+                    logger.debug("Refreshed TFS metadata \"{}\"", mapEntry.getKey());
+                } catch (TFSClientException | RuntimeException ex) {
+                    logger.warn("Unable to refresh TFS metadata \"{}\": {}", mapEntry.getKey(), ex.getMessage());
+                }
+            }
+        }
+
+        if (++ticks % SNAPSHOT_TICKS == 0) {
+            persist();
+        }
+    }
+
+    /**
+     * Write the loaded metadata to the snapshot file if it has changed since it was last written.
+     */
+    public synchronized void persist() {
+        File file = getSnapshotFile();
+        if (file == null || !dirty) {
+            return;
+        }
+
+        Map<String, List<? extends TFSObject>> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            List<? extends TFSObject> value = mapEntry.getValue().value;
+            if (value != null) {
+                values.put(mapEntry.getKey(), value);
+            }
+        }
+
+        dirty = false;
+        try {
+            TFSMetadataSnapshot.write(file, connectionKey, values);
+            logger.debug("Wrote {} TFS metadata entries to {}", values.size(), file);
+        } catch (IOException | RuntimeException ex) {
+            dirty = true;
+            logger.warn("Unable to write TFS metadata snapshot {}: {}", file, ex.getMessage());
+        }
+    }
+
+    //
+
+    /**
+     * Take the API versions and VSRM url a provider is configured with for later loads, so that release
+     * definitions are loaded with the VSRM settings even if the catalog was created by a provider without them.
+     * The client is replaced rather than changed as loads in progress may be using it.
+     */
+    private void adopt(TFSClient source) {
+        TFSClient current = client;
+        if (!differs(source.getTfsApiVersion(), current.getTfsApiVersion()) &&
+                !differs(source.getTfsBuildApiVersion(), current.getTfsBuildApiVersion()) &&
+                !differs(source.getVSRMUrl(), current.getVSRMUrl()) &&
+                !differs(source.getVsrmApiVersion(), current.getVsrmApiVersion())) {
+            return;
+        }
+
+        TFSClient merged = current.copyConnection();
+        if (StringUtils.isNotEmpty(source.getTfsApiVersion())) {
+            merged.setTfsApiVersion(source.getTfsApiVersion());
+        }
+        if (StringUtils.isNotEmpty(source.getTfsBuildApiVersion())) {
+            merged.setTfsBuildApiVersion(source.getTfsBuildApiVersion());
+        }
+        if (StringUtils.isNotEmpty(source.getVSRMUrl())) {
+            merged.setVSRMUrl(source.getVSRMUrl());
+        }
+        if (StringUtils.isNotEmpty(source.getVsrmApiVersion())) {
+            merged.setVsrmApiVersion(source.getVsrmApiVersion());
+        }
+        client = merged;
+    }
+
+    private static boolean differs(String value, String current) {
+        return StringUtils.isNotEmpty(value) && !value.equals(current);
+    }
+
+    private Map<String, WorkItemType> indexTypes(String projectId) {
+        Map<String, WorkItemType> types = new HashMap<>();
+        try {
+            for (WorkItemType type : getWorkItemTypes(projectId)) {
+                types.put(type.getTitle(), type);
+            }
+        } catch (TFSClientException | RuntimeException ex) {
+            logger.warn("Unable to retrieve TFS Work Item types of Project \"{}\": {}", projectId, ex.getMessage());
+        }
+        return types;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends TFSObject> List<T> get(String key) throws TFSClientException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry(key);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return (List<T>) entry.get(client);
+    }
+
+    /**
+     * Load the metadata identified by an entry key, e.g. "queries|projectId|Shared Queries".
+     * Queries are listed from the query tree of the connection, which only revalidates out of date folders.
+     */
+    private List<? extends TFSObject> load(TFSClient client, String key) throws TFSClientException {
+        String[] parts = key.split("\\" + KEY_SEPARATOR, 3);
+        switch (parts[0]) {
+            case PROJECTS:
+                return client.getProjects();
+            case QUERIES:
+                TFSQueryTree queryTree = TFSQueryTree.forConnection(client);
+                queryTree.setMaxAge(refreshInterval);
+                return queryTree.getLeafQueries(client, parts[1], parts[2]);
+            case BUILD_DEFINITIONS:
+                return client.getBuildDefinitions(parts[1], parts[2]);
+            case BUILD_QUEUES:
+                return client.getBuildQueues(parts[1], parts[2]);
+            case RELEASE_DEFINITIONS:
+                return client.getReleaseDefinitions(parts[1]);
+            case WORK_ITEM_TYPES:
+                try {
+                    return client.getWorkItemTypes(parts[1]);
+                } catch (TFSClientException ex) {
+                    if (ex.getCause() instanceof IOException) {
+                        throw ex;
+                    }
+                    // not permitted or not supported, cache that there are none until the next refresh
+                    logger.warn("Unable to retrieve TFS Work Item types of Project \"{}\": {}", parts[1], ex.getMessage());
+                    return Collections.emptyList();
+                }
+            default:
+                throw new TFSClientException("Unknown TFS metadata: " + key);
+        }
+    }
+
+    /**
+     * Load entries from the snapshot file, they are served straight away but treated as stale
+     * so they are revalidated by the next background refresh.
+     *
+     * @return true if any entries were restored
+     */
+    private boolean restore() {
+        File file = getSnapshotFile();
+        if (file == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, List<TFSObject>> values = TFSMetadataSnapshot.read(file, connectionKey);
+        for (Map.Entry<String, List<TFSObject>> value : values.entrySet()) {
+            Entry entry = new Entry(value.getKey());
+            entry.value = Collections.unmodifiableList(value.getValue());
+            entry.lastAccess = now;
+            entries.put(value.getKey(), entry);
+        }
+        if (!values.isEmpty()) {
+            logger.debug("Restored {} TFS metadata entries from {}", values.size(), file);
+        }
+        return !values.isEmpty();
+    }
+
+    private File getSnapshotFile() {
+        File dir = snapshotDirectory;
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, TFSMetadataSnapshot.getFileName(connectionKey));
+    }
+
+    /**
+     * Schedule the background refresh of the catalog, starting the refresh thread and registering the
+     * shutdown hook if this is the first catalog. Called while holding the lifecycle lock.
+     */
+    private void schedule(boolean restored) {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "tfs-metadata-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotHook = new Thread("tfs-metadata-snapshot") {
+                @Override
+                public void run() {
+                    for (TFSMetadataCatalog catalog : catalogs.values()) {
+                        catalog.persist();
+                    }
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(snapshotHook);
+        }
+        refreshTask = refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, restored ? 0 : REFRESH_TICK, REFRESH_TICK, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop refreshing the catalog and remove it, the next request for the connection creates a new one.
+     */
+    private void release() {
+        synchronized (lifecycleLock) {
+            if (catalogs.remove(connectionKey, this)) {
+                refreshTask.cancel(false);
+                logger.debug("Released idle TFS metadata catalog");
+            }
+        }
+    }
+
+    private class Entry {
+        private final String key;
+        private volatile List<? extends TFSObject> value;
+        private volatile long loadedAt;
+        private volatile long lastAccess;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        int getRefreshCount() {
+            return (key.startsWith(WORK_ITEM_TYPES + KEY_SEPARATOR) ? TYPE_REFRESH_COUNT : 1);
+        }
+
+        List<? extends TFSObject> get(TFSClient client) throws TFSClientException {
+            lastAccess = System.currentTimeMillis();
+            List<? extends TFSObject> current = value;
+            if (current == null) {
+                synchronized (this) {
+                    current = value;
+                    if (current == null) {
+                        current = reload(client);
+                    }
+                }
+            }
+            return current;
+        }
+
+        List<? extends TFSObject> reload(TFSClient client) throws TFSClientException {
+            List<? extends TFSObject> loaded = load(client, key);
+            if (loaded != null) {
+                loaded = Collections.unmodifiableList(loaded);
+            }
+            value = loaded;
+            loadedAt = System.currentTimeMillis();
+            dirty = true;
+            return loaded;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.TFSObject;
+import com.serena.rlc.provider.tfs.domain.TFSObjectCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the TFS metadata catalog, used to serve metadata immediately after a restart.
+ * Entries are stored with {@link TFSObjectCodec} after a header with a digest of the connection they were read from,
+ * a snapshot of another connection is never loaded. Snapshot directories are created readable by their owner only.
+ * Snapshots are read into the heap rather than mapped, so that the next write can replace the file on any platform.
+ * @author klee@serena.com
+ */
+public class TFSMetadataSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(TFSMetadataSnapshot.class);
+
+    private static final int MAGIC = 0x54465331; // "TFS1"
+    private static final short VERSION = 4;
+
+    /**
+     * Write a snapshot, replacing any existing snapshot atomically.
+     *
+     * @param file  the snapshot file
+     * @param connectionKey  the connection the entries were read from
+     * @param entries  the catalog entries to write, keyed by entry key
+     * @throws IOException
+     */
+    public static void write(File file, String connectionKey, Map<String, List<? extends TFSObject>> entries) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory()) {
+            createDirectory(dir);
+        }
+
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(16384, true);
+        out.writeVarInt(TFSObjectCodec.VERSION);
+        out.writeVarInt(entries.size());
+        for (Map.Entry<String, List<? extends TFSObject>> entry : entries.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeList(entry.getValue());
+        }
+
+        // a temporary file per write, so concurrent writers never interleave
+        Path tmpFile = Files.createTempFile(dir.toPath(), file.getName() + ".", ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(tmpFile))) {
+                dos.writeInt(MAGIC);
+                dos.writeShort(VERSION);
+                byte[] key = TFSMetadataCatalog.digest(connectionKey).getBytes(StandardCharsets.UTF_8);
+                dos.writeShort(key.length);
+                dos.write(key);
+                out.writeTo(dos);
+            }
+            Files.move(tmpFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param file  the snapshot file
+     * @param connectionKey  the connection the entries must have been read from
+     * @return the catalog entries keyed by entry key, empty if there is no usable snapshot
+     */
+    public static Map<String, List<TFSObject>> read(File file, String connectionKey) {
+        Map<String, List<TFSObject>> entries = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return entries;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                logger.info("Ignoring TFS metadata snapshot with unknown format: {}", file);
+                return entries;
+            }
+            if (!TFSMetadataCatalog.digest(connectionKey).equals(readString(buffer))) {
+                logger.warn("Ignoring TFS metadata snapshot of another connection: {}", file);
+                return entries;
+            }
+            TFSObjectCodec.Input in = new TFSObjectCodec.Input(buffer);
+            in.readVersion();
+            int count = in.readVarInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readString();
+                entries.put(key, in.readList());
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Unable to read TFS metadata snapshot {}: {}", file, ex.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Get the name of the snapshot file of a connection.
+     *
+     * @param connectionKey  the connection key
+     * @return a file name derived from a digest of the connection key
+     */
+    public static String getFileName(String connectionKey) {
+        return "metadata-" + TFSMetadataCatalog.digest(connectionKey) + ".bin";
+    }
+
+    //
+
+    /**
+     * Create a cache directory, e.g. for snapshots, readable and writable by its owner only where the file system
+     * supports it.
+     */
+    static void createDirectory(File dir) throws IOException {
+        File parent = dir.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            try {
+                Files.createDirectory(dir.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } catch (FileAlreadyExistsException ex) {
+                // created concurrently
+            }
+        } else if (!dir.mkdir() && !dir.isDirectory()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.client.TFSResponseLimits.Operation;
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental synchronization of the results of stored Work Item queries, shared by all providers using the same
+ * TFS connection. The first run of a query fetches its full result set; later runs only re-run its WIQL for the
+ * Work Items changed since the previous run (System.ChangedDate &gt; the asOf time of that run) and refetch those.
+ * Work Items that changed so that they no longer match are only dropped when the query is reconciled by running
+ * it in full again, which happens once the reconcile interval has passed.
+ * <p>
+ * Only the ids and known revisions of the results are kept here, the details are kept by the {@link TFSWorkItemCache},
+ * which returns Work Items at a known revision without validating them. Synchronization therefore needs the cache,
+ * without it every Work Item of the result would be retrieved again on each run.
+ * @author klee@serena.com
+ */
+public class TFSQuerySync {
+    private static final Logger logger = LoggerFactory.getLogger(TFSQuerySync.class);
+
+    public static final long DEFAULT_RECONCILE_INTERVAL = 900;
+    private static final int MAX_QUERIES = 128;
+
+    private static final Pattern WHERE = Pattern.compile("\\bwhere\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ORDER_BY = Pattern.compile("\\border\\s+by\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNSUPPORTED = Pattern.compile("\\bfrom\\s+workitemlinks\\b|\\basof\\b", Pattern.CASE_INSENSITIVE);
+
+    private static final ConcurrentMap<String, TFSQuerySync> syncs = new ConcurrentHashMap<>();
+
+    private final String connectionKey;
+    private final Map<String, QueryState> queries = new LinkedHashMap<String, QueryState>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryState> eldest) {
+            return size() > MAX_QUERIES;
+        }
+    };
+    private volatile long reconcileInterval = TimeUnit.SECONDS.toMillis(DEFAULT_RECONCILE_INTERVAL);
+
+    private final AtomicLong fullRuns = new AtomicLong();
+    private final AtomicLong deltaRuns = new AtomicLong();
+    private final AtomicLong changedItems = new AtomicLong();
+    private final AtomicLong fetchedItems = new AtomicLong();
+
+    private TFSQuerySync(String connectionKey) {
+        this.connectionKey = connectionKey;
+    }
+
+    /**
+     * Get the query synchronization for the connection the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared query synchronization for the connection
+     */
+    public static TFSQuerySync forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source);
+        TFSQuerySync sync = syncs.get(key);
+        if (sync == null) {
+            TFSQuerySync newSync = new TFSQuerySync(key);
+            sync = syncs.putIfAbsent(key, newSync);
+            if (sync == null) {
+                sync = newSync;
+            }
+        }
+        return sync;
+    }
+
+    public String getConnectionKey() {
+        return connectionKey;
+    }
+
+    /**
+     * Set how often queries are run in full to drop Work Items that no longer match.
+     *
+     * @param seconds  the reconcile interval in seconds
+     */
+    public void setReconcileInterval(long seconds) {
+        if (seconds > 0) {
+            this.reconcileInterval = TimeUnit.SECONDS.toMillis(seconds);
+        }
+    }
+
+    /**
+     * Get the Work Items returned by a stored query, patching the previous result with the Work Items
+     * that have changed since it was retrieved.
+     *
+     * @param client  the client to send requests with
+     * @param workItemCache  the cache to get Work Item details from, only the Work Items that changed since they
+     *                       were cached are retrieved
+     * @param projectId  the id of the project the query belongs to
+     * @param queryId  the id of the query to run
+     * @param resultLimit  the maximum number of Work Items to return
+     * @return a list of Work Items in query order, Work Items that were added since the query was last
+     *         reconciled are returned after the others
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItems(TFSClient client, TFSWorkItemCache workItemCache, String projectId, String queryId, int resultLimit) throws TFSClientException {
+        QueryState state;
+        synchronized (queries) {
+            String key = projectId + TFSMetadataCatalog.KEY_SEPARATOR + queryId;
+            state = queries.get(key);
+            if (state == null) {
+                state = new QueryState(projectId, queryId);
+                queries.put(key, state);
+            }
+        }
+
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            if (state.ids == null || state.watermark == null || now - state.reconciledAt >= reconcileInterval) {
+                reconcile(client, state);
+                state.reconciledAt = now;
+            } else {
+                applyChanges(client, state, null);
+            }
+            return state.getWorkItems(client, workItemCache, resultLimit);
+        }
+    }
+
+    /**
+     * Discard all synchronized query results so that they are run in full on next use.
+     */
+    public void invalidate() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    public long getFullRunCount() {
+        return fullRuns.get();
+    }
+
+    public long getDeltaRunCount() {
+        return deltaRuns.get();
+    }
+
+    public long getChangedItemCount() {
+        return changedItems.get();
+    }
+
+    public long getFetchedItemCount() {
+        return fetchedItems.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSQuerySync{" + "connection=" + connectionKey + ", fullRuns=" + getFullRunCount() + ", deltaRuns=" + getDeltaRunCount() +
+                ", changedItems=" + getChangedItemCount() + ", fetchedItems=" + getFetchedItemCount() + '}';
+    }
+
+    /**
+     * Add a condition on the date Work Items were last changed to the WHERE clause of a WIQL query.
+     *
+     * @param wiql  the WIQL text of the query
+     * @param watermark  the date/time Work Items must have changed after
+     * @return the changed query, or null if the query does not support it (link queries and queries that
+     *         are already run as of a point in time)
+     */
+    public static String addChangedSince(String wiql, String watermark) {
+        return addCondition(wiql, "[System.ChangedDate] > '" + watermark + "'", null);
+    }
+
+    /**
+     * Add a condition to the WHERE clause of a WIQL query, optionally replacing its ORDER BY clause.
+     *
+     * @param wiql  the WIQL text of the query
+     * @param condition  the condition Work Items must also match, e.g. "[System.Id] &gt; 10"
+     * @param orderBy  the fields to order the result by, e.g. "[System.Id]", null to keep the order of the query
+     * @return the changed query, or null if the query does not support it (link queries and queries that
+     *         are already run as of a point in time)
+     */
+    public static String addCondition(String wiql, String condition, String orderBy) {
+        if (wiql == null) {
+            return null;
+        }
+        // search outside of string literals only, literals are single or double quoted and WIQL escapes
+        // quotes by doubling them
+        char[] masked = wiql.toCharArray();
+        char quote = 0;
+        for (int i = 0; i < masked.length; i++) {
+            if (quote == 0 && (masked[i] == '\'' || masked[i] == '"')) {
+                quote = masked[i];
+            } else if (masked[i] == quote) {
+                quote = 0;
+            } else if (quote != 0) {
+                masked[i] = ' ';
+            }
+        }
+        String searchable = new String(masked);
+        if (UNSUPPORTED.matcher(searchable).find()) {
+            return null;
+        }
+
+        Matcher orderByMatcher = ORDER_BY.matcher(searchable);
+        int end = (orderByMatcher.find() ? orderByMatcher.start() : wiql.length());
+        String tail = (orderBy == null ? wiql.substring(end) : "ORDER BY " + orderBy);
+        Matcher where = WHERE.matcher(searchable);
+        if (where.find() && where.end() <= end) {
+            return (wiql.substring(0, where.end()) + " (" + wiql.substring(where.end(), end).trim() + ") AND " + condition +
+                    " " + tail).trim();
+        }
+        return (wiql.substring(0, end).trim() + " WHERE " + condition + " " + tail).trim();
+    }
+
+    //
+
+    /**
+     * Run a query in full, then apply the changes since the previous run as of the same point in time
+     * so that no change made in between is lost.
+     */
+    private void reconcile(TFSClient client, QueryState state) throws TFSClientException {
+        if (!state.wiqlLoaded) {
+            state.wiql = client.getQueryWiql(state.projectId, state.queryId);
+            state.wiqlLoaded = true;
+            if (addChangedSince(state.wiql, "") == null) {
+                logger.debug("TFS Query \"{}\" can not be synchronized incrementally, it will always be run in full", state.queryId);
+            }
+        }
+
+        fullRuns.incrementAndGet();
+        JSONObject queryResponse = client.processGet(Operation.WORK_ITEM_QUERY, TFSClient.VisualStudioApi.TFS_API,
+                client.getTFSCollection() + "/_apis/wit/wiql/" + state.queryId, "");
+        int[] ids = WorkItem.parseQueryIds(queryResponse);
+        String asOf = (queryResponse == null ? null : (String) queryResponse.get("asOf"));
+
+        state.setIds(ids);
+        if (state.watermark != null && asOf != null && addChangedSince(state.wiql, state.watermark) != null) {
+            applyChanges(client, state, asOf);
+        } else {
+            state.revisions.clear();
+        }
+        state.watermark = asOf;
+        logger.debug("Reconciled TFS Query \"{}\": {} Work Items as of {}", state.queryId, ids.length, asOf);
+    }
+
+    /**
+     * Re-run a query for the Work Items changed since its watermark and invalidate them, new matches are added.
+     *
+     * @param asOf  the point in time to run the query as of, null to run it now and advance the watermark
+     */
+    private void applyChanges(TFSClient client, QueryState state, String asOf) throws TFSClientException {
+        String deltaQuery = addChangedSince(state.wiql, state.watermark);
+        if (deltaQuery == null) {
+            reconcile(client, state);
+            return;
+        }
+        if (asOf != null) {
+            deltaQuery += " ASOF '" + asOf + "'";
+        }
+
+        deltaRuns.incrementAndGet();
+        JSONObject queryResponse = client.runQuery(state.projectId, deltaQuery);
+        int[] changed = WorkItem.parseQueryIds(queryResponse);
+        changedItems.addAndGet(changed.length);
+        state.applyChanges(changed);
+        if (asOf == null && queryResponse != null && queryResponse.get("asOf") != null) {
+            state.watermark = (String) queryResponse.get("asOf");
+        }
+        logger.debug("Applied {} changes to TFS Query \"{}\", watermark {}", changed.length, state.queryId, state.watermark);
+    }
+
+    /**
+     * The last known result of a query: its Work Item ids in query order and the revisions of those that have not
+     * changed since they were last retrieved.
+     */
+    private class QueryState {
+        private final String projectId;
+        private final String queryId;
+        private String wiql;
+        private boolean wiqlLoaded;
+        private int[] ids;
+        private TFSIntMap<Long> revisions = new TFSIntMap<>();
+        private String watermark;
+        private long reconciledAt;
+
+        QueryState(String projectId, String queryId) {
+            this.projectId = projectId;
+            this.queryId = queryId;
+        }
+
+        /**
+         * Replace the result set, keeping the revisions of Work Items that are still members.
+         */
+        void setIds(int[] newIds) {
+            TFSIntMap<Long> kept = new TFSIntMap<>(Math.min(newIds.length, revisions.size()));
+            for (int id : newIds) {
+                Long revision = revisions.get(id);
+                if (revision != null) {
+                    kept.put(id, revision);
+                }
+            }
+            revisions = kept;
+            ids = newIds;
+        }
+
+        /**
+         * Forget the revisions of changed Work Items and append those that were not members yet.
+         */
+        void applyChanges(int[] changed) {
+            if (changed.length == 0) {
+                return;
+            }
+            TFSIntSet members = new TFSIntSet(ids.length + changed.length);
+            for (int id : ids) {
+                members.add(id);
+            }
+            int count = ids.length;
+            int[] newIds = Arrays.copyOf(ids, ids.length + changed.length);
+            for (int id : changed) {
+                revisions.remove(id);
+                if (members.add(id)) {
+                    newIds[count++] = id;
+                }
+            }
+            ids = (count == ids.length ? ids : Arrays.copyOf(newIds, count));
+        }
+
+        /**
+         * Return the first Work Items of the result, those whose revision is not known are retrieved again.
+         */
+        List<WorkItem> getWorkItems(TFSClient client, TFSWorkItemCache workItemCache, int resultLimit) throws TFSClientException {
+            int count = Math.min(ids.length, resultLimit);
+            int changedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (!revisions.containsKey(ids[i])) {
+                    changedCount++;
+                }
+            }
+            fetchedItems.addAndGet(changedCount);
+
+            List<WorkItem> workItems = workItemCache.getWorkItems(client, ids, count, revisions, watermark);
+            for (WorkItem workItem : workItems) {
+                if (workItem.hasNumericId() && workItem.getRev() != null) {
+                    revisions.put(workItem.getNumericId(), workItem.getRev());
+                }
+            }
+            return workItems;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.Query;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cached hierarchy of the stored queries of each project, shared by all providers using the same TFS connection.
+ * The tree is walked by the {@link TFSMetadataCatalog}, which keeps the flattened leaf queries as an entry that is
+ * refreshed in the background and restored from its snapshot, so the request thread only walks it for a project
+ * whose queries have never been listed. Folders are expanded the first time they are walked, each request returning
+ * two levels of the tree, and revalidated when they are walked again once older than the maximum age. A revalidated
+ * folder keeps the expanded sub folders that still exist, so only the levels that are out of date are requested again.
+ * @author klee@serena.com
+ */
+public class TFSQueryTree {
+    private static final Logger logger = LoggerFactory.getLogger(TFSQueryTree.class);
+
+    public static final long DEFAULT_MAX_AGE = 300;
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final ConcurrentMap<String, TFSQueryTree> trees = new ConcurrentHashMap<>();
+
+    private final String connectionKey;
+    private final ConcurrentMap<String, Node> roots = new ConcurrentHashMap<>();
+    private volatile long maxAge = TimeUnit.SECONDS.toMillis(DEFAULT_MAX_AGE);
+
+    private final AtomicLong expansions = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private TFSQueryTree(String connectionKey) {
+        this.connectionKey = connectionKey;
+    }
+
+    /**
+     * Get the query tree for the connection the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared query tree for the connection
+     */
+    public static TFSQueryTree forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source);
+        TFSQueryTree tree = trees.get(key);
+        if (tree == null) {
+            TFSQueryTree newTree = new TFSQueryTree(key);
+            tree = trees.putIfAbsent(key, newTree);
+            if (tree == null) {
+                tree = newTree;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Set how long expanded folders are used before they are revalidated.
+     *
+     * @param millis  the maximum age in milliseconds
+     */
+    public void setMaxAge(long millis) {
+        if (millis > 0) {
+            this.maxAge = millis;
+        }
+    }
+
+    /**
+     * Get all the queries below a root folder, in tree order with their full path.
+     *
+     * @param client  the client to send requests with
+     * @param projectId  the id of the project
+     * @param rootPath  the path of the root folder, e.g. "Shared Queries"
+     * @return the queries without the folders
+     * @throws TFSClientException
+     */
+    public List<Query> getLeafQueries(TFSClient client, String projectId, String rootPath) throws TFSClientException {
+        Node root = getRoot(projectId, rootPath);
+        synchronized (root) {
+            List<Query> leaves = new ArrayList<>();
+            collectLeaves(client, projectId, root, System.currentTimeMillis(), leaves);
+            logger.debug("Listed {} TFS Queries below \"{}\" of Project \"{}\"", leaves.size(), rootPath, projectId);
+            return leaves;
+        }
+    }
+
+    /**
+     * Discard all cached query folders.
+     */
+    public void invalidate() {
+        roots.clear();
+    }
+
+    public long getExpansionCount() {
+        return expansions.get();
+    }
+
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSQueryTree{" + "connection=" + connectionKey + ", projects=" + roots.size() +
+                ", expansions=" + getExpansionCount() + ", revalidations=" + getRevalidationCount() + '}';
+    }
+
+    //
+
+    private Node getRoot(String projectId, String rootPath) {
+        String key = projectId + TFSMetadataCatalog.KEY_SEPARATOR + rootPath;
+        Node root = roots.get(key);
+        if (root == null) {
+            Query folder = new Query(null, rootPath);
+            folder.setPath(rootPath);
+            folder.setIsFolder(true);
+            folder.setHasChildren(true);
+            Node newRoot = new Node(folder);
+            root = roots.putIfAbsent(key, newRoot);
+            if (root == null) {
+                root = newRoot;
+            }
+        }
+        return root;
+    }
+
+    private void collectLeaves(TFSClient client, String projectId, Node node, long now, List<Query> leaves) throws TFSClientException {
+        for (Node child : getChildren(client, projectId, node, now)) {
+            if (child.query.getIsFolder()) {
+                collectLeaves(client, projectId, child, now, leaves);
+            } else {
+                leaves.add(child.query);
+            }
+        }
+    }
+
+    /**
+     * Get the children of a folder, expanding it if it was not expanded yet or is out of date.
+     */
+    private List<Node> getChildren(TFSClient client, String projectId, Node node, long now) throws TFSClientException {
+        if (!node.query.getHasChildren()) {
+            return Collections.emptyList();
+        }
+        if (node.children == null || now - node.loadedAt >= maxAge) {
+            if (node.children == null) {
+                expansions.incrementAndGet();
+            } else {
+                revalidations.incrementAndGet();
+            }
+            // the root is requested by path, other folders by id so that their names do not need encoding
+            Query folder = client.getQueryFolder(projectId, node.query.getId() == null ? node.query.getPath() : node.query.getId());
+            if (folder == null) {
+                return Collections.emptyList();
+            }
+            merge(node, folder, System.currentTimeMillis());
+        }
+        return (node.children == null ? Collections.<Node>emptyList() : node.children);
+    }
+
+    /**
+     * Update a node from a folder returned by TFS, reusing the nodes of the sub folders that still exist.
+     * Sub folders returned without their children keep the children they had and their age.
+     */
+    private static void merge(Node node, Query folder, long loadedAt) {
+        node.query = folder;
+        List<Query> freshChildren = folder.getChildren();
+        folder.setChildren(null);
+        if (freshChildren == null) {
+            if (!folder.getHasChildren()) {
+                node.children = Collections.emptyList();
+                node.loadedAt = loadedAt;
+            }
+            return;
+        }
+
+        Map<String, Node> existing = new HashMap<>();
+        if (node.children != null) {
+            for (Node child : node.children) {
+                existing.put(child.query.getId(), child);
+            }
+        }
+        List<Node> children = new ArrayList<>(freshChildren.size());
+        for (Query freshChild : freshChildren) {
+            Node child = existing.get(freshChild.getId());
+            if (child == null) {
+                child = new Node(freshChild);
+            }
+            merge(child, freshChild, loadedAt);
+            children.add(child);
+        }
+        node.children = children;
+        node.loadedAt = loadedAt;
+    }
+
+    /**
+     * A query or folder; the children of a folder are null until it is expanded.
+     */
+    private static class Node {
+        private Query query;
+        private List<Node> children;
+        private long loadedAt;
+
+        Node(Query query) {
+            this.query = query;
+        }
+    }
+
+}
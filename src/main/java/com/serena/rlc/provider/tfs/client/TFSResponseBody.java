@@ -0,0 +1,255 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
+import org.apache.http.HttpEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.json.simple.parser.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Raw UTF-8 body of a TFS response held in a pooled buffer, parsed straight from its bytes.
+ * The body must be closed to return its buffer to the pool.
+ * @author klee@serena.com
+ */
+public class TFSResponseBody implements Closeable {
+
+    private byte[] data;
+    private int length;
+    private boolean pooled;
+    private boolean truncated;
+
+    private TFSResponseBody(byte[] data, int length, boolean pooled) {
+        this.data = data;
+        this.length = length;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Read the content of a response entity into a pooled buffer.
+     *
+     * @param entity  the response entity, may be null
+     * @return the body
+     * @throws IOException
+     */
+    public static TFSResponseBody read(HttpEntity entity) throws IOException {
+        return read(entity, -1L, true);
+    }
+
+    /**
+     * Read at most maxSize bytes of the content of a response entity into a pooled buffer. If the content
+     * is larger the connection is aborted instead of draining the rest and the body is marked as truncated.
+     *
+     * @param entity  the response entity, may be null
+     * @param maxSize  the maximum number of bytes to read, -1 for no limit
+     * @param partial  true to keep the bytes read up to the limit, false to not start reading a body whose
+     *                 content length already exceeds the limit
+     * @return the body
+     * @throws IOException
+     */
+    public static TFSResponseBody read(HttpEntity entity, long maxSize, boolean partial) throws IOException {
+        if (entity == null) {
+            return wrap(new byte[0]);
+        }
+
+        int limit = (int) (maxSize < 0 ? Integer.MAX_VALUE - 8 : Math.min(maxSize, Integer.MAX_VALUE - 8));
+        long contentLength = entity.getContentLength();
+        if (contentLength > limit && !partial) {
+            abort(entity.getContent());
+            TFSResponseBody body = wrap(new byte[0]);
+            body.truncated = true;
+            return body;
+        }
+
+        byte[] buffer = TFSBufferPool.acquire(contentLength > 0 && contentLength < TFSBufferPool.MAX_POOLED_SIZE ?
+                (int) Math.min(contentLength, limit) : Math.min(TFSBufferPool.DEFAULT_BUFFER_SIZE, limit));
+        int count = 0;
+        boolean truncated = false;
+        try (InputStream in = entity.getContent()) {
+            while (true) {
+                int capacity = Math.min(buffer.length, limit);
+                if (count == capacity) {
+                    // only grow if there is more to read, the buffer is usually sized from the content length
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    if (count >= limit) {
+                        truncated = true;
+                        abort(in);
+                        break;
+                    }
+                    byte[] larger = TFSBufferPool.acquire((int) Math.min(buffer.length * 2L, limit));
+                    System.arraycopy(buffer, 0, larger, 0, count);
+                    TFSBufferPool.release(buffer);
+                    buffer = larger;
+                    buffer[count++] = (byte) next;
+                    continue;
+                }
+                int n = in.read(buffer, count, capacity - count);
+                if (n == -1) {
+                    break;
+                }
+                count += n;
+            }
+        } catch (IOException | RuntimeException ex) {
+            TFSBufferPool.release(buffer);
+            throw ex;
+        }
+        TFSResponseBody body = new TFSResponseBody(buffer, count, true);
+        body.truncated = truncated;
+        return body;
+    }
+
+    /**
+     * Release the connection of a partially read response without consuming the rest of its content.
+     */
+    private static void abort(InputStream in) throws IOException {
+        if (in instanceof ConnectionReleaseTrigger) {
+            ((ConnectionReleaseTrigger) in).abortConnection();
+        } else if (in != null) {
+            in.close();
+        }
+    }
+
+    /**
+     * Wrap bytes that are not owned by the pool, e.g. a cached body.
+     *
+     * @param bytes  the body
+     * @return the body
+     */
+    public static TFSResponseBody wrap(byte[] bytes) {
+        return new TFSResponseBody(bytes, bytes.length, false);
+    }
+
+    /**
+     * @return true if reading stopped at the size limit before the end of the content
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the buffer holding the body, only the first {@link #length()} bytes are valid
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * Parse the body with the configured JSON codec.
+     *
+     * @return the root value of the document
+     * @throws ParseException if the body is not valid JSON
+     */
+    public Object parse() throws ParseException {
+        return JsonCodecs.get().parse(data, 0, length);
+    }
+
+    /**
+     * Cut a truncated list result back to the end of its last complete element and close the containers
+     * that are still open, so that the elements received before the limit can be parsed. The list is
+     * the array holding the elements of the root value, e.g. the "value" array of a TFS list response.
+     *
+     * @return true if at least one complete element was found
+     */
+    public boolean truncateToLastElement() {
+        byte[] stack = new byte[16];
+        int depth = 0;
+        int cut = -1;
+        byte[] closers = null;
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = 0; i < length; i++) {
+            byte b = data[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = (byte) (b == '{' ? '}' : ']');
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    return false;
+                }
+                depth--;
+                // an element of a list held by the root value has just been completed
+                if (depth > 0 && depth <= 2 && stack[depth - 1] == ']') {
+                    cut = i + 1;
+                    closers = new byte[depth];
+                    for (int j = 0; j < depth; j++) {
+                        closers[j] = stack[depth - 1 - j];
+                    }
+                }
+            }
+        }
+        if (cut < 0) {
+            return false;
+        }
+
+        if (cut + closers.length > data.length) {
+            byte[] larger = Arrays.copyOf(data, cut + closers.length);
+            if (pooled) {
+                TFSBufferPool.release(data);
+                pooled = false;
+            }
+            data = larger;
+        }
+        System.arraycopy(closers, 0, data, cut, closers.length);
+        length = cut + closers.length;
+        return true;
+    }
+
+    /**
+     * Decode at most the first maxBytes bytes of the body, for diagnostics.
+     *
+     * @param maxBytes  the maximum number of bytes to decode
+     * @return the decoded prefix of the body
+     */
+    public String toString(int maxBytes) {
+        return new String(data, 0, Math.min(length, maxBytes), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return toString(length);
+    }
+
+    @Override
+    public void close() {
+        if (pooled && data != null) {
+            TFSBufferPool.release(data);
+        }
+        data = null;
+        length = 0;
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional second tier cache of raw TFS response bodies, kept outside of the Java heap in files.
+ * Entries are keyed by user and request URL and revalidated with the ETag or Last-Modified validator returned by
+ * TFS, only a small index is held on the heap and a body is only read back when it is revalidated. Files are read
+ * with plain channel reads rather than mapped, so that evicted entries can be deleted straight away on any
+ * platform. The least recently used entries are evicted once the cache grows beyond its maximum size, and the
+ * cache is reloaded from its directory after a restart. As the bodies hold Work Item data the directory and its
+ * files are only accessible by their owner where the file system supports it, and entry files only hold a digest
+ * of their key.
+ * @author klee@serena.com
+ */
+public class TFSResponseCache {
+    private static final Logger logger = LoggerFactory.getLogger(TFSResponseCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    public static final int MIN_ENTRY_SIZE = 8 * 1024;
+
+    private static final int MAGIC = 0x54465344; // "TFSD", entries with a key digest
+    private static final String FILE_SUFFIX = ".resp";
+
+    private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<>(64, 0.75f, true);
+    private volatile File directory;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Configure the cache, a null directory disables it.
+     *
+     * @param directory  the directory to store entries in
+     * @param maxSize  the maximum total size of the cached bodies, in bytes
+     */
+    public synchronized void configure(File directory, long maxSize) {
+        this.maxSize = (maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE);
+        if (directory == null ? this.directory == null : directory.equals(this.directory)) {
+            evict();
+            return;
+        }
+
+        index.clear();
+        size = 0;
+        this.directory = directory;
+        if (directory != null) {
+            if (!directory.isDirectory()) {
+                try {
+                    TFSMetadataSnapshot.createDirectory(directory);
+                } catch (IOException ex) {
+                    logger.warn("Unable to create TFS response cache directory {}: {}", directory, ex.getMessage());
+                    this.directory = null;
+                    return;
+                }
+            }
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Look up the cached response for a request.
+     *
+     * @param key  the cache key, e.g. the request URL
+     * @return the cached response or null if not cached
+     */
+    public synchronized CachedResponse get(String key) {
+        IndexEntry entry = index.get(TFSMetadataCatalog.digest(key));
+        if (entry == null) {
+            return null;
+        }
+        return new CachedResponse(entry);
+    }
+
+    /**
+     * Store a response body, replacing any existing entry for the key.
+     *
+     * @param key  the cache key, e.g. the request URL
+     * @param etag  the ETag returned with the response, may be null
+     * @param lastModified  the Last-Modified value returned with the response, may be null
+     * @param body  the response body
+     */
+    public void put(String key, String etag, String lastModified, byte[] body) {
+        put(key, etag, lastModified, body, body.length);
+    }
+
+    /**
+     * Store the first length bytes of a buffer as a response body, replacing any existing entry for the key.
+     *
+     * @param key  the cache key, e.g. the request URL
+     * @param etag  the ETag returned with the response, may be null
+     * @param lastModified  the Last-Modified value returned with the response, may be null
+     * @param body  the buffer holding the response body
+     * @param length  the length of the response body
+     */
+    public void put(String key, String etag, String lastModified, byte[] body, int length) {
+        if (directory == null || (etag == null && lastModified == null) || length < MIN_ENTRY_SIZE) {
+            return;
+        }
+
+        String digest = TFSMetadataCatalog.digest(key);
+        File file = new File(directory, digest.substring(0, 8) + "-" + Long.toHexString(System.nanoTime()) + FILE_SUFFIX);
+        IndexEntry entry = new IndexEntry(digest, etag, lastModified, file, length);
+        try (FileChannel channel = create(file)) {
+            byte[][] header = { bytes(digest), bytes(etag), bytes(lastModified) };
+            ByteBuffer buffer = ByteBuffer.allocate(16 + header[0].length + header[1].length + header[2].length);
+            buffer.putInt(MAGIC);
+            for (byte[] value : header) {
+                buffer.putInt(value.length).put(value);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            ByteBuffer data = ByteBuffer.wrap(body, 0, length);
+            while (data.hasRemaining()) channel.write(data);
+            entry.offset = buffer.limit();
+        } catch (IOException ex) {
+            logger.warn("Unable to write TFS response cache entry {}: {}", file, ex.getMessage());
+            delete(file);
+            return;
+        }
+
+        synchronized (this) {
+            IndexEntry previous = index.put(digest, entry);
+            size += entry.length;
+            if (previous != null) {
+                size -= previous.length;
+                delete(previous.file);
+            }
+            evict();
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * Remove the entry for a key, e.g. when its body can no longer be read.
+     *
+     * @param key  the cache key
+     */
+    public synchronized void remove(String key) {
+        IndexEntry entry = index.remove(TFSMetadataCatalog.digest(key));
+        if (entry != null) {
+            size -= entry.length;
+            delete(entry.file);
+        }
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getStoreCount() {
+        return stores.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "TFSResponseCache{" + "entries=" + getEntryCount() + ", size=" + getSize() + ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() + ", stores=" + getStoreCount() + ", evictions=" + getEvictionCount() + '}';
+    }
+
+    //
+
+    private void evict() {
+        for (Iterator<IndexEntry> it = index.values().iterator(); it.hasNext() && size > maxSize;) {
+            IndexEntry eldest = it.next();
+            it.remove();
+            size -= eldest.length;
+            delete(eldest.file);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // oldest first so the access order of the index matches the age of the entries
+        List<File> entryFiles = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(entryFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : entryFiles) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (read(channel, 4).getInt() != MAGIC) {
+                    delete(file);
+                    continue;
+                }
+                String digest = string(channel);
+                IndexEntry entry = new IndexEntry(digest, string(channel), string(channel), file, 0);
+                entry.offset = (int) channel.position();
+                entry.length = (int) (channel.size() - entry.offset);
+                IndexEntry previous = index.put(digest, entry);
+                size += entry.length;
+                if (previous != null) {
+                    size -= previous.length;
+                    delete(previous.file);
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Discarding unreadable TFS response cache entry {}: {}", file, ex.getMessage());
+                delete(file);
+            }
+        }
+        evict();
+        logger.debug("Loaded {} TFS response cache entries ({} bytes) from {}", index.size(), size, directory);
+    }
+
+    /**
+     * Create an entry file, readable and writable by its owner only where the file system supports it.
+     */
+    private static FileChannel create(File file) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return FileChannel.open(file.toPath(), options, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        return FileChannel.open(file.toPath(), options);
+    }
+
+    private static byte[] bytes(String value) {
+        return (value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a header string from the current position of an entry file.
+     */
+    private static String string(FileChannel channel) throws IOException {
+        int length = read(channel, 4).getInt();
+        if (length < 0 || length > channel.size() - channel.position()) {
+            throw new IOException("Invalid header length " + length);
+        }
+        byte[] value = read(channel, length).array();
+        return (value.length == 0 ? null : new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a number of bytes from the current position of an entry file.
+     */
+    private static ByteBuffer read(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated entry");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static class IndexEntry {
+        private final String digest;
+        private final String etag;
+        private final String lastModified;
+        private final File file;
+        private int offset;
+        private int length;
+
+        IndexEntry(String digest, String etag, String lastModified, File file, int length) {
+            this.digest = digest;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A cached response, its body is only read from its file when requested.
+     */
+    public static class CachedResponse {
+        private final IndexEntry entry;
+
+        CachedResponse(IndexEntry entry) {
+            this.entry = entry;
+        }
+
+        public String getETag() {
+            return entry.etag;
+        }
+
+        public String getLastModified() {
+            return entry.lastModified;
+        }
+
+        /**
+         * Read the cached body.
+         *
+         * @return the body, or null if the entry is no longer available
+         */
+        public byte[] getBody() {
+            try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+                byte[] body = new byte[entry.length];
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                        throw new EOFException("Truncated entry");
+                    }
+                }
+                return body;
+            } catch (IOException ex) {
+                logger.debug("Unable to read TFS response cache entry {}: {}", entry.file, ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Maximum size of the responses read from TFS/VSRM, per operation. Reading stops as soon as a response crosses
+ * its limit: the build and release lists that are only displayed are truncated to the elements received so far,
+ * any other response fails, so that Work Item results and cached metadata are never stored incomplete.
+ * Overflows are counted per operation so that they can be reported.
+ * @author klee@serena.com
+ */
+public class TFSResponseLimits {
+    private static final Logger logger = LoggerFactory.getLogger(TFSResponseLimits.class);
+
+    public static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+
+    /**
+     * The operations that responses are limited for, truncatable operations are truncated instead of failing.
+     */
+    public enum Operation {
+        WORK_ITEM_QUERY("workItemQuery", false),
+        WORK_ITEMS("workItems", false),
+        WORK_ITEM("workItem", false),
+        PROJECTS("projects", false),
+        QUERIES("queries", false),
+        QUERY("query", false),
+        WORK_ITEM_TYPES("workItemTypes", false),
+        BUILD_DEFINITIONS("buildDefinitions", false),
+        BUILD_QUEUES("buildQueues", false),
+        BUILDS("builds", true),
+        BUILD("build", false),
+        RELEASE_DEFINITIONS("releaseDefinitions", false),
+        RELEASES("releases", true),
+        RELEASE("release", false),
+        UPDATE("update", false),
+        OTHER("other", false);
+
+        private final String key;
+        private final boolean truncatable;
+
+        Operation(String key, boolean truncatable) {
+            this.key = key;
+            this.truncatable = truncatable;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return true if a result over the limit is truncated to its complete elements instead of failing
+         */
+        public boolean isTruncatable() {
+            return truncatable;
+        }
+
+        public static Operation forKey(String key) {
+            for (Operation operation : values()) {
+                if (operation.key.equalsIgnoreCase(key)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+    }
+
+    private volatile long defaultMaxSize = DEFAULT_MAX_SIZE;
+    private final long[] maxSizes = new long[Operation.values().length];  // 0 to use the default
+
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong truncations = new AtomicLong();
+    private final AtomicLongArray operationOverflows = new AtomicLongArray(Operation.values().length);
+
+    /**
+     * Configure the limits from a comma separated list of sizes in megabytes, the first unnamed size is the
+     * default and named sizes override it for an operation, e.g. "32,releases=64,workItem=4". A size of -1
+     * removes the limit.
+     *
+     * @param spec  the limits, null or empty for the default
+     */
+    public synchronized void configure(String spec) {
+        defaultMaxSize = DEFAULT_MAX_SIZE;
+        Arrays.fill(maxSizes, 0L);
+        if (StringUtils.isBlank(spec)) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            Operation operation = null;
+            String size = entry;
+            if (equals >= 0) {
+                operation = Operation.forKey(entry.substring(0, equals).trim());
+                size = entry.substring(equals + 1).trim();
+                if (operation == null) {
+                    logger.warn("Ignoring response size limit for unknown operation \"{}\"", entry);
+                    continue;
+                }
+            }
+            long maxSize;
+            try {
+                long megabytes = Long.parseLong(size);
+                maxSize = (megabytes < 0 ? -1L : megabytes * 1024L * 1024L);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid response size limit \"{}\"", entry);
+                continue;
+            }
+            if (operation == null) {
+                defaultMaxSize = (maxSize == 0 ? DEFAULT_MAX_SIZE : maxSize);
+            } else {
+                maxSizes[operation.ordinal()] = maxSize;
+            }
+        }
+    }
+
+    public synchronized void setMaxSize(Operation operation, long maxSize) {
+        maxSizes[operation.ordinal()] = maxSize;
+    }
+
+    /**
+     * Get the maximum size of the responses of an operation.
+     *
+     * @param operation  the operation
+     * @return the maximum size in bytes, or -1 if there is no limit
+     */
+    public synchronized long getMaxSize(Operation operation) {
+        long maxSize = maxSizes[operation.ordinal()];
+        return (maxSize == 0 ? defaultMaxSize : maxSize);
+    }
+
+    /**
+     * Record a response that crossed the limit of its operation.
+     *
+     * @param operation  the operation
+     * @param uri  the url of the request
+     * @param truncated  true if the list result was truncated, false if the request failed
+     */
+    public void recordOverflow(Operation operation, String uri, boolean truncated) {
+        overflows.incrementAndGet();
+        operationOverflows.incrementAndGet(operation.ordinal());
+        if (truncated) {
+            truncations.incrementAndGet();
+            logger.warn("Response from url=\"{}\" exceeds {} bytes, the {} result has been truncated", uri, getMaxSize(operation), operation.getKey());
+        } else {
+            logger.warn("Response from url=\"{}\" exceeds {} bytes, the {} request has failed", uri, getMaxSize(operation), operation.getKey());
+        }
+    }
+
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    public long getOverflowCount(Operation operation) {
+        return operationOverflows.get(operation.ordinal());
+    }
+
+    public long getTruncatedCount() {
+        return truncations.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TFSResponseLimits{").append("defaultMaxSize=").append(defaultMaxSize)
+                .append(", overflows=").append(getOverflowCount()).append(", truncated=").append(getTruncatedCount());
+        for (Operation operation : Operation.values()) {
+            long count = getOverflowCount(operation);
+            if (count > 0) {
+                sb.append(", ").append(operation.getKey()).append('=').append(count);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+}
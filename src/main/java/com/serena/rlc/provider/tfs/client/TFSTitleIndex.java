@@ -0,0 +1,396 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory inverted index of the titles and tags of recently retrieved query results, shared by all providers using
+ * the same TFS connection and Work Item fields. Titles are split into lower case words and a filter matches the Work
+ * Items that have, for each word of the filter, a word starting with it, so type-ahead filtering of a result that was
+ * retrieved within the maximum age is served without any request. The index of a query is updated incrementally
+ * from each new result: only Work Items whose revision changed are indexed again.
+ * @author klee@serena.com
+ */
+public class TFSTitleIndex {
+    private static final Logger logger = LoggerFactory.getLogger(TFSTitleIndex.class);
+
+    public static final long DEFAULT_MAX_AGE = 30;
+    private static final int MAX_QUERIES = 64;
+
+    private static final ConcurrentMap<String, TFSTitleIndex> indexes = new ConcurrentHashMap<>();
+
+    private final String indexKey;
+    private final Map<String, QueryIndex> queries = new LinkedHashMap<String, QueryIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryIndex> eldest) {
+            return size() > MAX_QUERIES;
+        }
+    };
+    private volatile long maxAge = TimeUnit.SECONDS.toMillis(DEFAULT_MAX_AGE);
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong indexedItems = new AtomicLong();
+
+    private TFSTitleIndex(String indexKey) {
+        this.indexKey = indexKey;
+    }
+
+    /**
+     * Get the title index for the connection and Work Item fields the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared title index
+     */
+    public static TFSTitleIndex forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source) + TFSMetadataCatalog.KEY_SEPARATOR + source.getWorkItemFields();
+        TFSTitleIndex index = indexes.get(key);
+        if (index == null) {
+            TFSTitleIndex newIndex = new TFSTitleIndex(key);
+            index = indexes.putIfAbsent(key, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Set how long an indexed query result is used to serve filters before the query is run again.
+     *
+     * @param seconds  the maximum age in seconds
+     */
+    public void setMaxAge(long seconds) {
+        if (seconds > 0) {
+            this.maxAge = TimeUnit.SECONDS.toMillis(seconds);
+        }
+    }
+
+    /**
+     * Filter the indexed result of a query.
+     *
+     * @param queryId  the id of the query
+     * @param filter  the words to filter on, each matching the start of a word of the title or tags
+     * @return the matching Work Items in query order, or null if the query has no index within the maximum age
+     */
+    public List<WorkItem> search(String queryId, String filter) {
+        searches.incrementAndGet();
+        QueryIndex index;
+        synchronized (queries) {
+            index = queries.get(queryId);
+        }
+        if (index == null) {
+            return null;
+        }
+        synchronized (index) {
+            if (System.currentTimeMillis() - index.updatedAt >= maxAge) {
+                return null;
+            }
+            hits.incrementAndGet();
+            return index.search(tokenize(filter));
+        }
+    }
+
+    /**
+     * Update the index of a query with its latest result.
+     *
+     * @param queryId  the id of the query
+     * @param workItems  the Work Items returned by the query, in query order
+     */
+    public void update(String queryId, List<WorkItem> workItems) {
+        QueryIndex index;
+        synchronized (queries) {
+            index = queries.get(queryId);
+            if (index == null) {
+                index = new QueryIndex();
+                queries.put(queryId, index);
+            }
+        }
+        synchronized (index) {
+            int indexed = index.update(workItems);
+            indexedItems.addAndGet(indexed);
+            logger.debug("Updated title index of TFS Query \"{}\": {} Work Items, {} indexed", queryId, workItems.size(), indexed);
+        }
+    }
+
+    /**
+     * Discard the indexes of all queries.
+     */
+    public void invalidate() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    public long getSearchCount() {
+        return searches.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getIndexedItemCount() {
+        return indexedItems.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSTitleIndex{" + "index=" + indexKey + ", searches=" + getSearchCount() + ", hits=" + getHitCount() +
+                ", indexedItems=" + getIndexedItemCount() + '}';
+    }
+
+    /**
+     * Filter a list of Work Items without an index, with the same matching as {@link #search(String, String)}.
+     *
+     * @param workItems  the Work Items to filter
+     * @param filter  the words to filter on
+     * @return the matching Work Items in their original order
+     */
+    public static List<WorkItem> filter(List<WorkItem> workItems, String filter) {
+        List<String> filterTokens = tokenize(filter);
+        List<WorkItem> matches = new ArrayList<>();
+        for (WorkItem workItem : workItems) {
+            if (containsAll(tokenize(workItem), filterTokens)) {
+                matches.add(workItem);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Split a text into lower case words of letters and digits.
+     *
+     * @param text  the text, may be null
+     * @return the distinct words in order
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = (i < lower.length() && Character.isLetterOrDigit(lower.charAt(i)));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = lower.substring(start, i);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    //
+
+    /**
+     * Check that each filter word is the start of one of the words.
+     */
+    private static boolean containsAll(List<String> tokens, List<String> filterTokens) {
+        for (String filterToken : filterTokens) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(filterToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> tokenize(WorkItem workItem) {
+        List<String> tokens = tokenize(workItem.getTitle());
+        for (String token : tokenize(workItem.getTags())) {
+            if (!tokens.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * The index of the last result of one query: the postings of each word and the Work Items in query order.
+     */
+    private static class QueryIndex {
+        private final TreeMap<String, TFSIntSet> postings = new TreeMap<>();
+        private final TFSIntMap<Entry> entries = new TFSIntMap<>();
+        private int[] order = new int[0];
+        private long updatedAt;
+
+        /**
+         * Replace the result, only indexing Work Items that are new or whose revision changed.
+         *
+         * @return the number of Work Items indexed
+         */
+        int update(List<WorkItem> workItems) {
+            int[] newOrder = new int[workItems.size()];
+            TFSIntSet members = new TFSIntSet(workItems.size());
+            int count = 0;
+            int indexed = 0;
+            for (WorkItem workItem : workItems) {
+                int id = workItem.getNumericId();
+                if (!members.add(id)) {
+                    continue;
+                }
+                int position = count;
+                newOrder[count++] = id;
+                Entry entry = entries.get(id);
+                if (entry != null && entry.rev != null && entry.rev.equals(workItem.getRev())) {
+                    entry.workItem = workItem;
+                    entry.position = position;
+                    continue;
+                }
+                if (entry != null) {
+                    remove(id, entry);
+                }
+                add(id, workItem, position);
+                indexed++;
+            }
+            if (entries.size() > count) {
+                for (int id : entries.keys()) {
+                    if (!members.contains(id)) {
+                        remove(id, entries.get(id));
+                    }
+                }
+            }
+            order = (count == newOrder.length ? newOrder : Arrays.copyOf(newOrder, count));
+            updatedAt = System.currentTimeMillis();
+            return indexed;
+        }
+
+        /**
+         * Collect the Work Items matching the most selective word of the filter from the postings, then check
+         * the other words against the words of those Work Items only.
+         */
+        List<WorkItem> search(List<String> filterTokens) {
+            if (filterTokens.isEmpty()) {
+                List<WorkItem> workItems = new ArrayList<>(order.length);
+                for (int id : order) {
+                    workItems.add(entries.get(id).workItem);
+                }
+                return workItems;
+            }
+
+            Collection<TFSIntSet> selective = null;
+            int selectiveSize = Integer.MAX_VALUE;
+            for (String filterToken : filterTokens) {
+                Collection<TFSIntSet> tokenPostings = postings.subMap(filterToken, true, filterToken + Character.MAX_VALUE, true).values();
+                int size = 0;
+                for (TFSIntSet ids : tokenPostings) {
+                    size += ids.size();
+                }
+                if (size < selectiveSize) {
+                    selective = tokenPostings;
+                    selectiveSize = size;
+                }
+            }
+
+            List<Entry> matches = new ArrayList<>(selectiveSize);
+            TFSIntSet seen = new TFSIntSet(selectiveSize);
+            for (TFSIntSet ids : selective) {
+                for (int id : ids.toArray()) {
+                    Entry entry = entries.get(id);
+                    if (seen.add(id) && entry.matches(filterTokens)) {
+                        matches.add(entry);
+                    }
+                }
+            }
+            Collections.sort(matches, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return Integer.compare(e1.position, e2.position);
+                }
+            });
+
+            List<WorkItem> workItems = new ArrayList<>(matches.size());
+            for (Entry entry : matches) {
+                workItems.add(entry.workItem);
+            }
+            return workItems;
+        }
+
+        private void add(int id, WorkItem workItem, int position) {
+            List<String> tokens = tokenize(workItem);
+            for (String token : tokens) {
+                TFSIntSet ids = postings.get(token);
+                if (ids == null) {
+                    ids = new TFSIntSet();
+                    postings.put(token, ids);
+                }
+                ids.add(id);
+            }
+            entries.put(id, new Entry(workItem, tokens.toArray(new String[tokens.size()]), position));
+        }
+
+        private void remove(int id, Entry entry) {
+            for (String token : entry.tokens) {
+                TFSIntSet ids = postings.get(token);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        postings.remove(token);
+                    }
+                }
+            }
+            entries.remove(id);
+        }
+    }
+
+    /**
+     * An indexed Work Item and the words it was indexed with.
+     */
+    private static class Entry {
+        private WorkItem workItem;
+        private final Long rev;
+        private final String[] tokens;
+        private int position;
+
+        Entry(WorkItem workItem, String[] tokens, int position) {
+            this.workItem = workItem;
+            this.rev = workItem.getRev();
+            this.tokens = tokens;
+            this.position = position;
+        }
+
+        boolean matches(List<String> filterTokens) {
+            return containsAll(Arrays.asList(tokens), filterTokens);
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the results of ad-hoc WIQL queries, shared by all providers using the same TFS connection and Work Item
+ * fields. Time is divided into buckets of the configured granularity and a query is run, and its Work Items retrieved,
+ * as of the start of the current bucket, so all identical queries within a bucket return the same result and share
+ * one cache entry. Queries are identified by their normalized text, see {@link TFSWiqlTemplate}. Queries that are
+ * already run as of a fixed point in time are cached independently of the bucket.
+ * @author klee@serena.com
+ */
+public class TFSWiqlResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(TFSWiqlResultCache.class);
+
+    public static final long DEFAULT_GRANULARITY = 60;
+    private static final int MAX_RESULTS = 256;
+    private static final Pattern ASOF = Pattern.compile("\\basof\\s*'", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private static final ConcurrentMap<String, TFSWiqlResultCache> caches = new ConcurrentHashMap<>();
+
+    private final String cacheKey;
+    private final Map<String, List<WorkItem>> results = new LinkedHashMap<String, List<WorkItem>>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<WorkItem>> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+    private volatile long granularity = TimeUnit.SECONDS.toMillis(DEFAULT_GRANULARITY);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private TFSWiqlResultCache(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * Get the result cache for the connection and Work Item fields the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared result cache
+     */
+    public static TFSWiqlResultCache forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source) + TFSMetadataCatalog.KEY_SEPARATOR + source.getWorkItemFields();
+        TFSWiqlResultCache cache = caches.get(key);
+        if (cache == null) {
+            TFSWiqlResultCache newCache = new TFSWiqlResultCache(key);
+            cache = caches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Set the granularity of the point in time queries are run as of.
+     *
+     * @param seconds  the granularity in seconds, results are at most this old
+     */
+    public void setGranularity(long seconds) {
+        if (seconds > 0) {
+            this.granularity = TimeUnit.SECONDS.toMillis(seconds);
+        }
+    }
+
+    /**
+     * Get the Work Items returned by a WIQL query, from the cache if the same query was run in the current bucket.
+     *
+     * @param client  the client to send requests with
+     * @param projectId  the id of the project to run the query in
+     * @param wiql  the normalized WIQL query, e.g. bound from a {@link TFSWiqlTemplate}
+     * @param resultLimit  the maximum number of Work Items to return
+     * @return an unmodifiable list of Work Items in query order
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItems(TFSClient client, String projectId, String wiql, int resultLimit) throws TFSClientException {
+        // bound values are string literals, only look for ASOF outside of them
+        boolean fixedAsOf = ASOF.matcher(LITERAL.matcher(wiql).replaceAll("''")).find();
+        String asOf = null;
+        String key = projectId + TFSMetadataCatalog.KEY_SEPARATOR + resultLimit + TFSMetadataCatalog.KEY_SEPARATOR + wiql;
+        if (!fixedAsOf) {
+            long interval = granularity;
+            asOf = formatTime(System.currentTimeMillis() / interval * interval);
+            key += TFSMetadataCatalog.KEY_SEPARATOR + asOf;
+        }
+
+        List<WorkItem> workItems;
+        synchronized (results) {
+            workItems = results.get(key);
+        }
+        if (workItems != null) {
+            hits.incrementAndGet();
+            return workItems;
+        }
+
+        misses.incrementAndGet();
+        int[] ids = WorkItem.parseQueryIds(client.runQuery(projectId, fixedAsOf ? wiql : wiql + " ASOF '" + asOf + "'"));
+        workItems = (ids.length == 0 ? Collections.<WorkItem>emptyList() :
+                Collections.unmodifiableList(client.getWorkItems(ids, Math.min(ids.length, resultLimit), asOf)));
+        synchronized (results) {
+            results.put(key, workItems);
+        }
+        logger.debug("Cached {} Work Items of WIQL query as of {}: {}", workItems.size(), asOf, wiql);
+        return workItems;
+    }
+
+    /**
+     * Discard all cached results.
+     */
+    public void invalidate() {
+        synchronized (results) {
+            results.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (results) {
+            size = results.size();
+        }
+        return "TFSWiqlResultCache{" + "cache=" + cacheKey + ", entries=" + size + ", hits=" + getHitCount() + ", misses=" + getMissCount() + '}';
+    }
+
+    //
+
+    private static String formatTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A parameterized WIQL query, compiled once and then bound with parameter values for each run.
+ * <p>
+ * Parameters are written {name} outside of single or double quoted string literals and are always bound as WIQL string literals, with
+ * quotes escaped, so a value can not change the structure of the query. {name*} binds a comma separated value
+ * as a list of literals, e.g. for IN (...). A clause between {? and ?} is left out if any of its parameters has
+ * no value. Outside of string literals the compiled text is normalized (whitespace collapsed, lower case), so
+ * queries that only differ in layout or case bind to the same text.
+ * @author klee@serena.com
+ */
+public class TFSWiqlTemplate {
+
+    private static final int MAX_TEMPLATES = 64;
+    private static final ConcurrentMap<String, TFSWiqlTemplate> templates = new ConcurrentHashMap<>();
+
+    private final String text;
+    private final List<Segment> segments;
+
+    private TFSWiqlTemplate(String text, List<Segment> segments) {
+        this.text = text;
+        this.segments = segments;
+    }
+
+    /**
+     * Compile a template, templates that were compiled before are reused.
+     *
+     * @param text  the WIQL template
+     * @return the compiled template
+     * @throws TFSClientException if the template is not valid
+     */
+    public static TFSWiqlTemplate compile(String text) throws TFSClientException {
+        TFSWiqlTemplate template = templates.get(text);
+        if (template == null) {
+            template = new TFSWiqlTemplate(text, parse(text));
+            if (templates.size() >= MAX_TEMPLATES) {
+                // templates come from the provider configuration, so this only happens if they are generated
+                templates.clear();
+            }
+            templates.put(text, template);
+        }
+        return template;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Bind parameter values to the template.
+     *
+     * @param parameters  the parameter values by name, blank values are treated as missing
+     * @return the normalized WIQL query
+     * @throws TFSClientException if a parameter outside of an optional clause has no value
+     */
+    public String bind(Map<String, String> parameters) throws TFSClientException {
+        StringBuilder wiql = new StringBuilder(text.length() + 64);
+        int blockStart = -1;
+        boolean blockComplete = true;
+        for (Segment segment : segments) {
+            switch (segment.kind) {
+                case TEXT:
+                    // text is already normalized, only avoid doubling the spaces around a left out clause
+                    boolean skipSpace = segment.value.charAt(0) == ' ' && (wiql.length() == 0 || wiql.charAt(wiql.length() - 1) == ' ');
+                    wiql.append(segment.value, skipSpace ? 1 : 0, segment.value.length());
+                    break;
+                case BLOCK_START:
+                    blockStart = wiql.length();
+                    blockComplete = true;
+                    break;
+                case BLOCK_END:
+                    if (!blockComplete) {
+                        wiql.setLength(blockStart);
+                    }
+                    blockStart = -1;
+                    break;
+                default:
+                    String value = (parameters == null ? null : parameters.get(segment.value));
+                    List<String> items = new ArrayList<>();
+                    if (StringUtils.isNotBlank(value)) {
+                        for (String item : (segment.kind == Kind.LIST ? value.split(",") : new String[] { value })) {
+                            if (StringUtils.isNotBlank(item)) {
+                                items.add(item.trim());
+                            }
+                        }
+                    }
+                    if (items.isEmpty()) {
+                        if (blockStart < 0) {
+                            throw new TFSClientException("Missing value for WIQL parameter: " + segment.value);
+                        }
+                        blockComplete = false;
+                    }
+                    for (int i = 0; i < items.size(); i++) {
+                        if (i > 0) wiql.append(", ");
+                        appendLiteral(wiql, items.get(i));
+                    }
+                    break;
+            }
+        }
+        return wiql.toString().trim();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSWiqlTemplate{" + text + '}';
+    }
+
+    //
+
+    private static void appendLiteral(StringBuilder wiql, String value) {
+        wiql.append('\'').append(value.replace("'", "''")).append('\'');
+    }
+
+    private static List<Segment> parse(String text) throws TFSClientException {
+        if (StringUtils.isBlank(text)) {
+            throw new TFSClientException("Empty WIQL template");
+        }
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inBlock = false;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '\'' || c == '"') {
+                // copy string literals as they are, quotes are escaped by doubling them
+                int end = i + 1;
+                while (end < text.length() && (text.charAt(end) != c || (end + 1 < text.length() && text.charAt(end + 1) == c))) {
+                    end += (text.charAt(end) == c ? 2 : 1);
+                }
+                if (end >= text.length()) {
+                    throw new TFSClientException("Unterminated string literal in WIQL template: " + text);
+                }
+                current.append(text, i, end + 1);
+                i = end + 1;
+            } else if (text.startsWith("{?", i)) {
+                if (inBlock) {
+                    throw new TFSClientException("Nested optional clause in WIQL template: " + text);
+                }
+                flush(segments, current);
+                segments.add(new Segment(Kind.BLOCK_START, null));
+                inBlock = true;
+                i += 2;
+            } else if (text.startsWith("?}", i)) {
+                if (!inBlock) {
+                    throw new TFSClientException("Unbalanced optional clause in WIQL template: " + text);
+                }
+                flush(segments, current);
+                segments.add(new Segment(Kind.BLOCK_END, null));
+                inBlock = false;
+                i += 2;
+            } else if (c == '{') {
+                int end = text.indexOf('}', i);
+                String name = (end < 0 ? "" : text.substring(i + 1, end));
+                Kind kind = Kind.PARAMETER;
+                if (name.endsWith("*")) {
+                    kind = Kind.LIST;
+                    name = name.substring(0, name.length() - 1);
+                }
+                if (!name.matches("[A-Za-z][A-Za-z0-9_]*")) {
+                    throw new TFSClientException("Invalid parameter at " + i + " in WIQL template: " + text);
+                }
+                flush(segments, current);
+                segments.add(new Segment(kind, name));
+                i = end + 1;
+            } else if (Character.isWhitespace(c)) {
+                if (current.length() == 0 || current.charAt(current.length() - 1) != ' ') {
+                    current.append(' ');
+                }
+                i++;
+            } else {
+                current.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        if (inBlock) {
+            throw new TFSClientException("Unbalanced optional clause in WIQL template: " + text);
+        }
+        flush(segments, current);
+        return Collections.unmodifiableList(segments);
+    }
+
+    private static void flush(List<Segment> segments, StringBuilder current) {
+        if (current.length() > 0) {
+            segments.add(new Segment(Kind.TEXT, current.toString()));
+            current.setLength(0);
+        }
+    }
+
+    private enum Kind { TEXT, PARAMETER, LIST, BLOCK_START, BLOCK_END }
+
+    private static class Segment {
+        private final Kind kind;
+        private final String value;
+
+        Segment(Kind kind, String value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+}
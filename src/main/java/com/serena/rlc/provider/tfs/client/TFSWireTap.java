@@ -0,0 +1,255 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHeader;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory ring buffer of recent TFS request/response summaries.
+ * Replaces full body debug logging: bodies are truncated, the Authorization
+ * header is redacted and nothing is formatted until a snapshot is dumped.
+ * @author klee@serena.com
+ */
+public class TFSWireTap {
+
+    public static final int DEFAULT_BODY_LIMIT = 512;
+
+    private static final String REDACTED = "********";
+
+    // the buffer and the sequence are only changed while holding the lock of the wire tap,
+    // the buffer is volatile so that a disabled wire tap can be detected without it
+    private volatile Entry[] entries = new Entry[0];
+    private volatile int sampleRate = 1;
+    private volatile int bodyLimit = DEFAULT_BODY_LIMIT;
+    private long sequence;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Configure the wire tap, a capacity of zero disables it.
+     *
+     * @param capacity  the number of exchanges to retain
+     * @param sampleRate  record one in every sampleRate exchanges
+     * @param bodyLimit  the maximum number of body characters to retain
+     */
+    public synchronized void configure(int capacity, int sampleRate, int bodyLimit) {
+        if (capacity < 0) capacity = 0;
+        if (capacity != entries.length) {
+            entries = new Entry[capacity];
+            sequence = 0;
+        }
+        this.sampleRate = (sampleRate < 1 ? 1 : sampleRate);
+        this.bodyLimit = (bodyLimit < 0 ? DEFAULT_BODY_LIMIT : bodyLimit);
+    }
+
+    public boolean isEnabled() {
+        return entries.length > 0;
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * Decide whether the next exchange is recorded; this is the only call made
+     * on the request path when the wire tap is disabled.
+     *
+     * @return true if the caller should record the exchange
+     */
+    public boolean shouldRecord() {
+        if (entries.length == 0) {
+            return false;
+        }
+        int rate = sampleRate;
+        return rate <= 1 || requestCount.getAndIncrement() % rate == 0;
+    }
+
+    /**
+     * Record a completed exchange.
+     *
+     * @param request  the request that was sent
+     * @param statusCode  the HTTP status code received, or -1 if none
+     * @param startTime  the time the request was started, in milliseconds
+     * @param body  the response body or error message
+     */
+    public void record(HttpRequest request, int statusCode, long startTime, String body) {
+        if (entries.length == 0) {
+            return;
+        }
+
+        String truncated = body;
+        int bodyLength = (body == null ? 0 : body.length());
+        if (body != null && bodyLength > bodyLimit) {
+            truncated = body.substring(0, bodyLimit);
+        }
+        record(request, statusCode, startTime, truncated, bodyLength);
+    }
+
+    /**
+     * Record a completed exchange, only the retained part of the body is decoded.
+     *
+     * @param request  the request that was sent
+     * @param statusCode  the HTTP status code received
+     * @param startTime  the time the request was started, in milliseconds
+     * @param body  the response body, its length is recorded in bytes
+     */
+    public void record(HttpRequest request, int statusCode, long startTime, TFSResponseBody body) {
+        if (entries.length == 0) {
+            return;
+        }
+        record(request, statusCode, startTime, body.toString(bodyLimit), body.length());
+    }
+
+    private void record(HttpRequest request, int statusCode, long startTime, String truncated, int bodyLength) {
+        Entry entry = new Entry(startTime, System.currentTimeMillis() - startTime,
+                request.getRequestLine().getMethod(), request.getRequestLine().getUri(),
+                redactHeaders(request.getAllHeaders()), statusCode, truncated, bodyLength);
+        synchronized (this) {
+            Entry[] buffer = entries;
+            if (buffer.length > 0) {
+                buffer[(int) (sequence++ % buffer.length)] = entry;
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot of the recorded exchanges, oldest first.
+     *
+     * @return a list of entries
+     */
+    public synchronized List<Entry> snapshot() {
+        Entry[] buffer = entries;
+        List<Entry> list = new ArrayList<>(buffer.length);
+        long end = sequence;
+        long start = Math.max(0, end - buffer.length);
+        for (long i = start; i < end; i++) {
+            Entry entry = buffer[(int) (i % buffer.length)];
+            if (entry != null) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Format a snapshot of the recorded exchanges for display.
+     *
+     * @return a String with one exchange per block
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder(1024);
+        for (Entry entry : snapshot()) {
+            sb.append(entry.toString()).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    public synchronized void clear() {
+        Entry[] buffer = entries;
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = null;
+        }
+        sequence = 0;
+    }
+
+    private static Header[] redactHeaders(Header[] headers) {
+        Header[] copy = new Header[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            if (HttpHeaders.AUTHORIZATION.equalsIgnoreCase(headers[i].getName())) {
+                copy[i] = new BasicHeader(headers[i].getName(), REDACTED);
+            } else {
+                copy[i] = headers[i];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * A single recorded request/response summary.
+     */
+    public static class Entry {
+        private final long timestamp;
+        private final long elapsed;
+        private final String method;
+        private final String uri;
+        private final Header[] headers;
+        private final int statusCode;
+        private final String body;
+        private final int bodyLength;
+
+        Entry(long timestamp, long elapsed, String method, String uri, Header[] headers, int statusCode, String body, int bodyLength) {
+            this.timestamp = timestamp;
+            this.elapsed = elapsed;
+            this.method = method;
+            this.uri = uri;
+            this.headers = headers;
+            this.statusCode = statusCode;
+            this.body = body;
+            this.bodyLength = bodyLength;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public Header[] getHeaders() {
+            return headers;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public int getBodyLength() {
+            return bodyLength;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(timestamp)))
+                    .append(' ').append(method).append(' ').append(uri)
+                    .append(" -> ").append(statusCode).append(" (").append(elapsed).append(" ms)");
+            for (Header header : headers) {
+                sb.append(System.lineSeparator()).append("  ").append(header.getName()).append(": ").append(header.getValue());
+            }
+            sb.append(System.lineSeparator()).append("  body[").append(bodyLength).append("]: ").append(body);
+            if (body != null && body.length() < bodyLength) {
+                sb.append("...");
+            }
+            return sb.toString();
+        }
+    }
+
+}
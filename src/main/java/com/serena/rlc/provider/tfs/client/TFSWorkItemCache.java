@@ -0,0 +1,341 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.TFSObject;
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of Work Items keyed by id, shared by all providers using the same TFS connection and Work Item fields.
+ * Cached Work Items are validated against the current revision of the Work Item, which is retrieved for a whole
+ * list of Work Items with a single request for the System.Rev field only, and only those whose revision has moved
+ * are retrieved again. The least recently used Work Items are evicted once the cache is full, entries are kept in
+ * a {@link TFSIntMap} by id and linked in access order, so neither the ids nor the order are boxed.
+ * @author klee@serena.com
+ */
+public class TFSWorkItemCache {
+    private static final Logger logger = LoggerFactory.getLogger(TFSWorkItemCache.class);
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final ConcurrentMap<String, TFSWorkItemCache> caches = new ConcurrentHashMap<>();
+
+    private final String cacheKey;
+    private volatile int capacity = DEFAULT_CAPACITY;
+    private final TFSIntMap<Node> items = new TFSIntMap<>(64);
+    private Node eldest;
+    private Node youngest;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong validations = new AtomicLong();
+
+    private TFSWorkItemCache(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * Get the cache for the connection and Work Item fields the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @return the shared cache
+     */
+    public static TFSWorkItemCache forConnection(TFSClient source) {
+        String key = TFSMetadataCatalog.getConnectionKey(source) + TFSMetadataCatalog.KEY_SEPARATOR + source.getWorkItemFields();
+        TFSWorkItemCache cache = caches.get(key);
+        if (cache == null) {
+            TFSWorkItemCache newCache = new TFSWorkItemCache(key);
+            cache = caches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Set the maximum number of Work Items to cache.
+     *
+     * @param capacity  the capacity
+     */
+    public void setCapacity(int capacity) {
+        if (capacity > 0) {
+            this.capacity = capacity;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the details of a specific Work Item, from the cache if its revision has not changed.
+     *
+     * @param client  the client to send requests with
+     * @param workItemId  the id of the Work Item, e.g. 1
+     * @return the Work Item if found
+     * @throws TFSClientException
+     */
+    public WorkItem getWorkItem(TFSClient client, String workItemId) throws TFSClientException {
+        int id = TFSObject.parseId(workItemId);
+        if (id == TFSObject.NO_ID) {
+            return client.getWorkItem(workItemId);
+        }
+        WorkItem cached = get(id);
+        if (cached != null) {
+            validations.incrementAndGet();
+            if (isCurrent(cached, client.getWorkItemRevision(id))) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            stale.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        WorkItem workItem = client.getWorkItem(workItemId);
+        put(workItem);
+        return workItem;
+    }
+
+    /**
+     * Get the details of a list of Work Items, only those that are not cached or whose revision has
+     * changed are retrieved.
+     *
+     * @param client  the client to send requests with
+     * @param ids  the ids of the Work Items
+     * @param count  the number of ids to retrieve, starting with the first
+     * @return a list of Work Items in the order of their ids
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItems(TFSClient client, int[] ids, int count) throws TFSClientException {
+        TFSIntMap<WorkItem> found = new TFSIntMap<>(count);
+        int[] cachedIds = new int[count];
+        int cachedCount = 0;
+        for (int i = 0; i < count; i++) {
+            WorkItem cached = get(ids[i]);
+            if (cached != null) {
+                found.put(ids[i], cached);
+                cachedIds[cachedCount++] = ids[i];
+            }
+        }
+
+        misses.addAndGet(count - cachedCount);
+        if (cachedCount > 0) {
+            validations.incrementAndGet();
+            TFSIntMap<WorkItem> current = new TFSIntMap<>(cachedCount);
+            for (WorkItem revision : client.getWorkItemRevisions(cachedIds, cachedCount)) {
+                current.put(revision.getNumericId(), revision);
+            }
+            for (int i = 0; i < cachedCount; i++) {
+                if (isCurrent(found.get(cachedIds[i]), current.get(cachedIds[i]))) {
+                    hits.incrementAndGet();
+                } else {
+                    stale.incrementAndGet();
+                    found.remove(cachedIds[i]);
+                }
+            }
+        }
+
+        return retrieve(client, ids, count, found, null);
+    }
+
+    /**
+     * Get the details of a list of Work Items whose current revisions are already known, e.g. from an incremental
+     * query synchronization. Cached Work Items at the known revision are returned without validating them, the
+     * others are retrieved and cached.
+     *
+     * @param client  the client to send requests with
+     * @param ids  the ids of the Work Items
+     * @param count  the number of ids to retrieve, starting with the first
+     * @param revisions  the known current revision by Work Item id
+     * @param asOf  the date/time to retrieve Work Items as of, null for their latest revision
+     * @return a list of Work Items in the order of their ids
+     * @throws TFSClientException
+     */
+    public List<WorkItem> getWorkItems(TFSClient client, int[] ids, int count, TFSIntMap<Long> revisions, String asOf) throws TFSClientException {
+        TFSIntMap<WorkItem> found = new TFSIntMap<>(count);
+        for (int i = 0; i < count; i++) {
+            WorkItem cached = get(ids[i]);
+            Long revision = revisions.get(ids[i]);
+            if (cached == null) {
+                misses.incrementAndGet();
+            } else if (revision != null && revision.equals(cached.getRev())) {
+                hits.incrementAndGet();
+                found.put(ids[i], cached);
+            } else {
+                stale.incrementAndGet();
+            }
+        }
+        return retrieve(client, ids, count, found, asOf);
+    }
+
+    /**
+     * Discard all cached Work Items.
+     */
+    public void invalidate() {
+        synchronized (items) {
+            items.clear();
+            eldest = null;
+            youngest = null;
+        }
+    }
+
+    public int size() {
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getStaleCount() {
+        return stale.get();
+    }
+
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSWorkItemCache{" + "entries=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", stale=" + getStaleCount() + ", validations=" + getValidationCount() + '}';
+    }
+
+    //
+
+    /**
+     * Retrieve and cache the Work Items that were not found, then return all of them in the order of their ids.
+     */
+    private List<WorkItem> retrieve(TFSClient client, int[] ids, int count, TFSIntMap<WorkItem> found, String asOf) throws TFSClientException {
+        int[] fetchIds = new int[count];
+        int fetchCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (!found.containsKey(ids[i])) {
+                fetchIds[fetchCount++] = ids[i];
+            }
+        }
+        if (fetchCount > 0) {
+            for (WorkItem workItem : client.getWorkItems(fetchIds, fetchCount, asOf)) {
+                found.put(workItem.getNumericId(), workItem);
+                put(workItem);
+            }
+        }
+        logger.debug("Work Items {}: {} cached, {} retrieved", cacheKey, count - fetchCount, fetchCount);
+
+        List<WorkItem> workItems = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            WorkItem workItem = found.get(ids[i]);
+            if (workItem != null) {
+                workItems.add(workItem);
+            }
+        }
+        return workItems;
+    }
+
+    private WorkItem get(int id) {
+        synchronized (items) {
+            Node node = items.get(id);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            link(node);
+            return node.workItem;
+        }
+    }
+
+    private void put(WorkItem workItem) {
+        if (workItem == null || !workItem.hasNumericId() || workItem.getRev() == null) {
+            return;
+        }
+        synchronized (items) {
+            Node node = items.get(workItem.getNumericId());
+            if (node != null) {
+                unlink(node);
+            } else {
+                node = new Node(workItem.getNumericId());
+                items.put(node.id, node);
+            }
+            node.workItem = workItem;
+            link(node);
+            while (items.size() > capacity) {
+                Node evicted = eldest;
+                unlink(evicted);
+                items.remove(evicted.id);
+            }
+        }
+    }
+
+    /**
+     * Append a node as the most recently used, callers hold the lock on the items.
+     */
+    private void link(Node node) {
+        node.older = youngest;
+        node.younger = null;
+        if (youngest != null) {
+            youngest.younger = node;
+        } else {
+            eldest = node;
+        }
+        youngest = node;
+    }
+
+    private void unlink(Node node) {
+        if (node.older != null) {
+            node.older.younger = node.younger;
+        } else {
+            eldest = node.younger;
+        }
+        if (node.younger != null) {
+            node.younger.older = node.older;
+        } else {
+            youngest = node.older;
+        }
+        node.older = null;
+        node.younger = null;
+    }
+
+    private static boolean isCurrent(WorkItem cached, WorkItem revision) {
+        return revision != null && cached.getRev() != null && cached.getRev().equals(revision.getRev());
+    }
+
+    /**
+     * A cached Work Item and its neighbours in access order.
+     */
+    private static class Node {
+        private final int id;
+        private WorkItem workItem;
+        private Node older;
+        private Node younger;
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming export of all the Work Items matched by a stored query as newline delimited JSON, one Work Item per line.
+ * The query is run in pages of {@link #PAGE_SIZE} ids in id order, each page starting after the last id of the previous
+ * one, so results are not limited by the maximum size of a WIQL result. The next page is queried and its Work Items
+ * retrieved while the current one is written, so only one page of Work Items is held in memory whatever the size of
+ * the result. All pages are run and retrieved as of the time the first page was run. Exports to a file keep a
+ * checkpoint next to it with the last exported id and resume from there if they are interrupted.
+ * @author klee@serena.com
+ */
+public class TFSWorkItemExporter {
+    private static final Logger logger = LoggerFactory.getLogger(TFSWorkItemExporter.class);
+
+    public static final int PAGE_SIZE = TFSClient.MAX_IDS_PER_REQUEST;
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final TFSClient client;
+
+    public TFSWorkItemExporter(TFSClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Export the Work Items of a query to a channel, e.g. a stream wrapped with {@link java.nio.channels.Channels}.
+     *
+     * @param projectId  the id of the project the query belongs to
+     * @param queryId  the id of the query to run
+     * @param out  the channel to write to, it is not closed
+     * @return the number of Work Items exported
+     * @throws TFSClientException
+     * @throws IOException
+     */
+    public long export(String projectId, String queryId, WritableByteChannel out) throws TFSClientException, IOException {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.queryId = queryId;
+        return write(projectId, getPagedWiql(projectId, queryId), checkpoint, out, null);
+    }
+
+    /**
+     * Export the Work Items of a query to a file. If a checkpoint of a previous export of the same query is found
+     * the export is resumed after the last Work Item it exported, as of the same time, otherwise the file is overwritten.
+     *
+     * @param projectId  the id of the project the query belongs to
+     * @param queryId  the id of the query to run
+     * @param file  the file to write to
+     * @return the number of Work Items exported by this call
+     * @throws TFSClientException
+     * @throws IOException
+     */
+    public long export(String projectId, String queryId, File file) throws TFSClientException, IOException {
+        String wiql = getPagedWiql(projectId, queryId);
+        File checkpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile, queryId);
+
+        long count;
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (checkpoint == null || out.size() < checkpoint.offset) {
+                Files.deleteIfExists(checkpointFile.toPath());
+                checkpoint = new Checkpoint();
+                checkpoint.file = checkpointFile;
+                checkpoint.queryId = queryId;
+            } else {
+                logger.debug("Resuming export of TFS Query \"{}\" after Work Item {} as of {}", queryId, checkpoint.lastId, checkpoint.asOf);
+            }
+            out.truncate(checkpoint.offset);
+            out.position(checkpoint.offset);
+            count = write(projectId, wiql, checkpoint, out, out);
+            out.force(false);
+        }
+
+        Files.deleteIfExists(checkpointFile.toPath());
+        return count;
+    }
+
+    //
+
+    /**
+     * Get the WIQL of a query, checking that it can be run in pages.
+     */
+    private String getPagedWiql(String projectId, String queryId) throws TFSClientException {
+        String wiql = client.getQueryWiql(projectId, queryId);
+        if (TFSQuerySync.addCondition(wiql, "[System.Id] > 0", "[System.Id]") == null) {
+            throw new TFSClientException("TFS Query \"" + queryId + "\" can not be exported, only flat queries that are not run as of a point in time are supported");
+        }
+        return wiql;
+    }
+
+    /**
+     * Run the page of a query that follows a Work Item id, the first page also pins the time all pages are run as of.
+     */
+    private int[] queryPage(String projectId, String wiql, Checkpoint checkpoint, int lastId) throws TFSClientException {
+        String pageWiql = TFSQuerySync.addCondition(wiql, "[System.Id] > " + lastId, "[System.Id]");
+        if (checkpoint.asOf != null) {
+            pageWiql += " ASOF '" + checkpoint.asOf + "'";
+        }
+        JSONObject queryResponse = client.runQuery(projectId, pageWiql, PAGE_SIZE);
+        if (checkpoint.asOf == null && queryResponse != null && queryResponse.get("asOf") != null) {
+            checkpoint.asOf = (String) queryResponse.get("asOf");
+            logger.debug("Exporting Work Items of TFS Query \"{}\" as of {}", checkpoint.queryId, checkpoint.asOf);
+        }
+        return WorkItem.parseQueryIds(queryResponse);
+    }
+
+    /**
+     * Write the remaining pages of an export, updating the checkpoint after each page if the output is a file.
+     */
+    private long write(String projectId, String wiql, Checkpoint checkpoint, WritableByteChannel out, FileChannel file) throws TFSClientException, IOException {
+        long count = 0;
+        int[] page = queryPage(projectId, wiql, checkpoint, checkpoint.lastId);
+        Future<List<WorkItem>> next = null;
+        if (page.length > 0) {
+            next = client.submitWorkItems(page, 0, page.length, checkpoint.asOf);
+        }
+        try {
+            while (page.length > 0) {
+                int lastId = page[page.length - 1];
+                int[] following = (page.length < PAGE_SIZE ? new int[0] : queryPage(projectId, wiql, checkpoint, lastId));
+                List<WorkItem> workItems = TFSClient.await(next);
+                next = null;
+                if (following.length > 0) {
+                    next = client.submitWorkItems(following, 0, following.length, checkpoint.asOf);
+                }
+
+                StringBuilder lines = new StringBuilder(workItems.size() * 512);
+                for (WorkItem workItem : workItems) {
+                    lines.append(JSONValue.toJSONString(toRecord(workItem))).append('\n');
+                }
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                count += workItems.size();
+
+                if (file != null) {
+                    file.force(false);
+                    checkpoint.update(lastId, file.position());
+                }
+                page = following;
+            }
+        } finally {
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+        logger.debug("Exported {} Work Items of TFS Query \"{}\"", count, checkpoint.queryId);
+        return count;
+    }
+
+    private static Map<String, Object> toRecord(WorkItem workItem) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", workItem.getNumericId());
+        record.put("rev", workItem.getRev());
+        record.put("type", workItem.getType());
+        record.put("title", workItem.getTitle());
+        record.put("state", workItem.getState());
+        record.put("reason", workItem.getReason());
+        record.put("project", workItem.getProject());
+        record.put("areaPath", workItem.getAreaPath());
+        record.put("iterationPath", workItem.getIterationPath());
+        record.put("assignedTo", workItem.getAssignedTo());
+        record.put("severity", workItem.getSeverity());
+        record.put("createdBy", workItem.getCreatedBy());
+        record.put("createdDate", workItem.getDateCreated());
+        record.put("changedBy", workItem.getChangedBy());
+        record.put("changedDate", workItem.getDateChanged());
+        record.put("url", workItem.getUrl());
+        return record;
+    }
+
+    /**
+     * How far an export has been written: the last exported id and the end of the output, kept at the start of the
+     * checkpoint file so that they can be updated in place after each page, and the time the query is run as of.
+     */
+    private static class Checkpoint {
+        private static final int MAGIC = 0x54465345; // "TFSE"
+        private static final short VERSION = 2;
+        private static final int PROGRESS_POSITION = 6;
+
+        private File file;
+        private String queryId;
+        private String asOf;
+        private int lastId;
+        private long offset;
+
+        static Checkpoint read(File file, String queryId) {
+            if (!file.isFile()) {
+                return null;
+            }
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (dis.readInt() != MAGIC || dis.readShort() != VERSION) {
+                    logger.warn("Ignoring unsupported export checkpoint {}", file);
+                    return null;
+                }
+                Checkpoint checkpoint = new Checkpoint();
+                checkpoint.file = file;
+                checkpoint.lastId = dis.readInt();
+                checkpoint.offset = dis.readLong();
+                checkpoint.queryId = dis.readUTF();
+                String asOf = dis.readUTF();
+                checkpoint.asOf = (asOf.isEmpty() ? null : asOf);
+                if (!checkpoint.queryId.equals(queryId)) {
+                    logger.debug("Ignoring export checkpoint {} of another query", file);
+                    return null;
+                }
+                return checkpoint;
+            } catch (IOException ex) {
+                logger.warn("Unable to read export checkpoint {}: {}", file, ex.getMessage());
+                return null;
+            }
+        }
+
+        private void create() throws IOException {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile))) {
+                dos.writeInt(MAGIC);
+                dos.writeShort(VERSION);
+                dos.writeInt(lastId);
+                dos.writeLong(offset);
+                dos.writeUTF(queryId);
+                dos.writeUTF(asOf == null ? "" : asOf);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Record the progress after a page, the checkpoint file is created after the first page, once the time
+         * the query is run as of is known.
+         */
+        void update(int newLastId, long newOffset) throws IOException {
+            lastId = newLastId;
+            offset = newOffset;
+            if (!file.isFile()) {
+                create();
+                return;
+            }
+            ByteBuffer progress = ByteBuffer.allocate(12);
+            progress.putInt(lastId).putLong(offset).flip();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.write(progress, PROGRESS_POSITION);
+                channel.force(false);
+            }
+        }
+    }
+
+}
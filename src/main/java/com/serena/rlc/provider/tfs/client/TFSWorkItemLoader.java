@@ -0,0 +1,216 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.WorkItem;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the Work Item lookups made by concurrent callers within a short window and retrieves them with a single
+ * request, completing each caller's future from the shared response. A batch is dispatched when its window ends or
+ * as soon as it holds {@link #MAX_BATCH_SIZE} ids. Loaders are shared per TFS connection and Work Item
+ * fields, and send their batches with their own client so a batch never depends on the caller that started it.
+ * @author klee@serena.com
+ */
+public class TFSWorkItemLoader {
+    private static final Logger logger = LoggerFactory.getLogger(TFSWorkItemLoader.class);
+
+    public static final int DEFAULT_WINDOW = 10;
+    public static final int MAX_BATCH_SIZE = 200;  // maximum number of ids TFS accepts per request
+
+    private static final ConcurrentMap<String, TFSWorkItemLoader> loaders = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService dispatcher = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tfs-work-item-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String fields;
+    private final TFSClient client;
+    private Batch pending;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private TFSWorkItemLoader(String fields, TFSClient client) {
+        this.fields = fields;
+        this.client = client;
+    }
+
+    /**
+     * Get the loader for the connection the specified client is configured for.
+     *
+     * @param source  a client with its connection details set
+     * @param fields  the Work Item fields to retrieve
+     * @return the shared loader
+     */
+    public static TFSWorkItemLoader forConnection(TFSClient source, String fields) {
+        // the API version selects between the batch endpoint and ids in the url, it is not part of the connection key
+        String key = TFSMetadataCatalog.getConnectionKey(source) + TFSMetadataCatalog.KEY_SEPARATOR + fields +
+                TFSMetadataCatalog.KEY_SEPARATOR + source.getWorkItemBatchThreshold() +
+                TFSMetadataCatalog.KEY_SEPARATOR + source.getTfsApiVersion();
+        TFSWorkItemLoader loader = loaders.get(key);
+        if (loader == null) {
+            TFSWorkItemLoader newLoader = new TFSWorkItemLoader(fields, source.copyConnection());
+            loader = loaders.putIfAbsent(key, newLoader);
+            if (loader == null) {
+                loader = newLoader;
+            }
+        }
+        return loader;
+    }
+
+    /**
+     * Queue the lookup of a Work Item, concurrent lookups of the same id share the same future.
+     *
+     * @param id  the id of the Work Item
+     * @param windowMillis  how long to wait for other lookups before the batch is dispatched
+     * @return a future completed with the Work Item, or with null if it was not returned
+     */
+    public CompletableFuture<WorkItem> load(int id, long windowMillis) {
+        loads.incrementAndGet();
+        CompletableFuture<WorkItem> future;
+        Batch full = null;
+        synchronized (this) {
+            if (pending == null) {
+                final Batch batch = new Batch();
+                pending = batch;
+                dispatcher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(batch);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            future = pending.add(id);
+            if (pending.futures.size() >= MAX_BATCH_SIZE) {
+                full = pending;
+                pending = null;
+            }
+        }
+
+        if (full != null) {
+            final Batch batch = full;
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(batch);
+                }
+            });
+        }
+        return future;
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TFSWorkItemLoader{" + "fields=" + fields + ", loads=" + getLoadCount() + ", batches=" + getBatchCount() + '}';
+    }
+
+    //
+
+    private void dispatch(Batch batch) {
+        synchronized (this) {
+            if (pending == batch) {
+                pending = null;
+            }
+            if (batch.dispatched) {
+                return;
+            }
+            batch.dispatched = true;
+        }
+
+        int[] ids = batch.futures.keys();
+        int count = ids.length;
+        batches.incrementAndGet();
+        logger.debug("Dispatching batch of {} Work Item lookups", count);
+        retrieve(batch, ids, 0, count);
+    }
+
+    /**
+     * Retrieve a range of the ids of a batch. Before API version 4.1 a single unknown id fails the whole request,
+     * so a range rejected as a bad request or not found is split in two and each half retried, until the unknown
+     * ids are isolated. Any other failure, e.g. an authorization, throttling or server error, fails the whole range.
+     */
+    private void retrieve(Batch batch, int[] ids, int from, int to) {
+        int count = to - from;
+        int[] rangeIds = (from == 0 ? ids : Arrays.copyOfRange(ids, from, to));
+        try {
+            TFSIntMap<WorkItem> found = new TFSIntMap<>(count);
+            for (WorkItem workItem : client.getWorkItems(rangeIds, count, null, fields)) {
+                found.put(workItem.getNumericId(), workItem);
+            }
+            for (int i = from; i < to; i++) {
+                batch.futures.get(ids[i]).complete(found.get(ids[i]));
+            }
+        } catch (TFSClientException | RuntimeException ex) {
+            if (count == 1 || !isUnknownIdError(ex)) {
+                // a single id or a failure that is not caused by an id, splitting will not help
+                for (int i = from; i < to; i++) {
+                    batch.futures.get(ids[i]).completeExceptionally(ex);
+                }
+                return;
+            }
+            logger.debug("Retrieving {} Work Items failed, splitting the request: {}", count, ex.getMessage());
+            int middle = from + count / 2;
+            retrieve(batch, ids, from, middle);
+            retrieve(batch, ids, middle, to);
+        }
+    }
+
+    private static boolean isUnknownIdError(Exception ex) {
+        if (!(ex instanceof TFSClientException)) {
+            return false;
+        }
+        int statusCode = ((TFSClientException) ex).getStatusCode();
+        return statusCode == HttpStatus.SC_BAD_REQUEST || statusCode == HttpStatus.SC_NOT_FOUND;
+    }
+
+    /**
+     * The lookups collected within one window.
+     */
+    private static class Batch {
+        private final TFSIntMap<CompletableFuture<WorkItem>> futures = new TFSIntMap<>(64);
+        private boolean dispatched;
+
+        CompletableFuture<WorkItem> add(int id) {
+            CompletableFuture<WorkItem> future = futures.get(id);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                futures.put(id, future);
+            }
+            return future;
+        }
+    }
+
+}
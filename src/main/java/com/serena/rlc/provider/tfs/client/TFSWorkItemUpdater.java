@@ -0,0 +1,230 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.domain.TFSObject;
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk update of Work Items with the $batch endpoint, e.g. to move all the Work Items of a release to a new state.
+ * The updates are sent in chunks of {@value #MAX_UPDATES_PER_BATCH} Work Items, the next chunk being sent while the
+ * result of the current one is read. TFS applies each update of a batch independently, so a result is returned for
+ * every Work Item: a Work Item that can not be updated, or a chunk that fails as a whole, does not stop the others.
+ * @author klee@serena.com
+ */
+public class TFSWorkItemUpdater {
+    private static final Logger logger = LoggerFactory.getLogger(TFSWorkItemUpdater.class);
+
+    public static final int MAX_UPDATES_PER_BATCH = 200;
+    private static final int PIPELINE_DEPTH = 2;
+
+    private final TFSClient client;
+
+    public TFSWorkItemUpdater(TFSClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the state of Work Items.
+     *
+     * @param ids  the ids of the Work Items to update
+     * @param state  the new state, e.g. "Deployed"
+     * @param comment  a comment to add to the history of each Work Item, may be null
+     * @return the result of each update, in the order of the ids
+     */
+    public List<Result> setState(int[] ids, String state, String comment) {
+        List<Map<String, Object>> operations = new ArrayList<>(2);
+        operations.add(operation("/fields/System.State", state));
+        if (comment != null && !comment.isEmpty()) {
+            operations.add(operation("/fields/System.History", comment));
+        }
+        return update(ids, operations);
+    }
+
+    /**
+     * Apply the same JSON patch operations to Work Items.
+     *
+     * @param ids  the ids of the Work Items to update
+     * @param operations  the JSON patch operations, e.g. {"op": "add", "path": "/fields/System.State", "value": "Done"}
+     * @return the result of each update, in the order of the ids
+     */
+    public List<Result> update(int[] ids, List<Map<String, Object>> operations) {
+        String patch = JSONValue.toJSONString(operations);
+        String path = client.getTFSCollection() + "/_apis/wit/$batch";
+        List<Result> results = new ArrayList<>(ids.length);
+        Deque<Future<JSONObject>> pending = new ArrayDeque<>(PIPELINE_DEPTH);
+        int next = 0;
+        int done = 0;
+        while (done < ids.length) {
+            while (next < ids.length && pending.size() < PIPELINE_DEPTH) {
+                int to = Math.min(next + MAX_UPDATES_PER_BATCH, ids.length);
+                pending.add(client.submitPost(TFSResponseLimits.Operation.UPDATE, TFSClient.VisualStudioApi.TFS_API, path, null, createBatch(ids, next, to, patch)));
+                next = to;
+            }
+            int to = Math.min(done + MAX_UPDATES_PER_BATCH, ids.length);
+            try {
+                parseBatch(TFSClient.await(pending.remove()), ids, done, to, results);
+            } catch (TFSClientException ex) {
+                logger.warn("Unable to update TFS Work Items {} to {}: {}", ids[done], ids[to - 1], ex.getMessage());
+                for (int i = done; i < to; i++) {
+                    results.add(new Result(ids[i], 0, null, ex.getMessage()));
+                }
+            }
+            done = to;
+        }
+        return results;
+    }
+
+    //
+
+    private static Map<String, Object> operation(String path, Object value) {
+        Map<String, Object> operation = new LinkedHashMap<>();
+        operation.put("op", "add");
+        operation.put("path", path);
+        operation.put("value", value);
+        return operation;
+    }
+
+    /**
+     * Create the body of a batch request with one PATCH request per Work Item, all with the same operations.
+     */
+    private String createBatch(int[] ids, int from, int to, String patch) {
+        String uriSuffix = "?api-version=" + client.getTfsApiVersion() + "\",\"headers\":{\"Content-Type\":\"application/json-patch+json\"},\"body\":";
+        StringBuilder body = new StringBuilder((to - from) * (patch.length() + uriSuffix.length() + 48));
+        body.append('[');
+        for (int i = from; i < to; i++) {
+            if (i > from) body.append(',');
+            body.append("{\"method\":\"PATCH\",\"uri\":\"/_apis/wit/workitems/").append(ids[i]).append(uriSuffix).append(patch).append('}');
+        }
+        return body.append(']').toString();
+    }
+
+    /**
+     * Read the responses of a batch, which are in the order of the requests, each with its own status code and body.
+     */
+    private static void parseBatch(JSONObject response, int[] ids, int from, int to, List<Result> results) {
+        JSONArray values = (response == null ? null : (JSONArray) TFSObject.getJSONValue(response, "value"));
+        for (int i = from; i < to; i++) {
+            Object value = (values != null && i - from < values.size() ? values.get(i - from) : null);
+            if (!(value instanceof JSONObject)) {
+                results.add(new Result(ids[i], 0, null, "No response for Work Item"));
+                continue;
+            }
+            Object codeValue = ((JSONObject) value).get("code");
+            if (!(codeValue instanceof Number)) {
+                results.add(new Result(ids[i], 0, null, "No status code for Work Item"));
+                continue;
+            }
+            int code = ((Number) codeValue).intValue();
+            JSONObject body = parseBody(((JSONObject) value).get("body"));
+            if (code >= 200 && code < 300) {
+                Number rev = (body == null ? null : (Number) body.get("rev"));
+                results.add(new Result(ids[i], code, rev == null ? null : rev.longValue(), null));
+            } else {
+                results.add(new Result(ids[i], code, null, getErrorMessage(body, code)));
+            }
+        }
+    }
+
+    /**
+     * The body of each response is a JSON document in a string.
+     */
+    private static JSONObject parseBody(Object body) {
+        if (body instanceof JSONObject) {
+            return (JSONObject) body;
+        }
+        if (body instanceof String) {
+            try {
+                Object parsed = JsonCodecs.get().parse((String) body);
+                return (parsed instanceof JSONObject ? (JSONObject) parsed : null);
+            } catch (ParseException ex) {
+                logger.debug("Invalid batch response body: {}", body);
+            }
+        }
+        return null;
+    }
+
+    private static String getErrorMessage(JSONObject body, int code) {
+        if (body != null) {
+            Object error = (body.get("value") instanceof JSONObject ? ((JSONObject) body.get("value")).get("Message") : body.get("message"));
+            if (error instanceof String) {
+                return (String) error;
+            }
+        }
+        return "HTTP status " + code;
+    }
+
+    /**
+     * The result of the update of one Work Item.
+     */
+    public static class Result {
+        private final int id;
+        private final int code;
+        private final Long rev;
+        private final String message;
+
+        Result(int id, int code, Long rev, String message) {
+            this.id = id;
+            this.code = code;
+            this.rev = rev;
+            this.message = message;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the HTTP status code of the update, 0 if the batch it was part of failed
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the revision of the updated Work Item, null if the update failed
+         */
+        public Long getRev() {
+            return rev;
+        }
+
+        /**
+         * @return the error message, null if the update succeeded
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isSuccess() {
+            return message == null;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + "id=" + id + ", code=" + code + (isSuccess() ? ", rev=" + rev : ", message=" + message) + '}';
+        }
+    }
+
+}
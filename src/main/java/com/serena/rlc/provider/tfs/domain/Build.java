@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,11 @@ public class Build extends TFSObject {
         setBuildNumber(buildNumber);
     }
 
+    public Build(int id, String buildNumber) {
+        super.setNumericId(id);
+        setBuildNumber(buildNumber);
+    }
+
     public String getBuildNumber() {
         return buildNumber;
     }
@@ -65,26 +71,33 @@ public class Build extends TFSObject {
     }
 
     public static List<Build> parse(String options) {
-        List<Build> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<Build> parse(JSONObject jsonObject) {
+        List<Build> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 Build bObj = parseSingle((JSONObject)object);
                 list.add(bObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static Build parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             Build build = parseSingle((JSONObject) parsedObject);
             return build;
         } catch (ParseException e) {
@@ -97,12 +110,14 @@ public class Build extends TFSObject {
         Build bObj = null;
         if (jsonObject != null) {
             bObj = new Build(
-                String.valueOf((Long) getJSONValue(jsonObject, "id")),
+                toId(getJSONValue(jsonObject, "id")),
                 (String) getJSONValue(jsonObject, "buildNumber"));
-            bObj.setBuildResult((String) jsonObject.get("result"));
-            bObj.setState((String) jsonObject.get("status"));
+            bObj.setBuildResult(StringPool.canonicalize((String) jsonObject.get("result")));
+            bObj.setState(StringPool.canonicalize((String) jsonObject.get("status")));
             bObj.setUrl((String) jsonObject.get("url"));
-            // TODO: Set build definition id
+            if (jsonObject.containsKey("definition")) {
+                bObj.setBuildDefinition(BuildDefinition.parseSingle((JSONObject) jsonObject.get("definition")));
+            }
         }
         return bObj;
     }
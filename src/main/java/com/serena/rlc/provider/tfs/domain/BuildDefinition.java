@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,11 @@ public class BuildDefinition extends TFSObject {
         super.setId(id);
         super.setTitle(name);
     }
+
+    public BuildDefinition(int id, String name) {
+        super.setNumericId(id);
+        super.setTitle(name);
+    }
     
     public String getQuality() {
         return quality;
@@ -56,26 +62,33 @@ public class BuildDefinition extends TFSObject {
     }
 
     public static List<BuildDefinition> parse(String options) {
-        List<BuildDefinition> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<BuildDefinition> parse(JSONObject jsonObject) {
+        List<BuildDefinition> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 BuildDefinition bdObj = parseSingle((JSONObject)object);
                 list.add(bdObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static BuildDefinition parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             BuildDefinition buildDefinition = parseSingle((JSONObject) parsedObject);
             return buildDefinition;
         } catch (ParseException e) {
@@ -88,11 +101,11 @@ public class BuildDefinition extends TFSObject {
         BuildDefinition bdObj = null;
         if (jsonObject != null) {
             bdObj = new BuildDefinition(
-                String.valueOf((Long) getJSONValue(jsonObject, "id")),
+                toId(getJSONValue(jsonObject, "id")),
                 (String) getJSONValue(jsonObject, "name"));
-            bdObj.setQuality((String) jsonObject.get("quality"));
+            bdObj.setQuality(StringPool.canonicalize((String) jsonObject.get("quality")));
             bdObj.setUrl((String) jsonObject.get("url"));
-            bdObj.setType((String) jsonObject.get("type"));
+            bdObj.setType(StringPool.canonicalize((String) jsonObject.get("type")));
             bdObj.setRev((Long) jsonObject.get("rev"));
         }
         return bdObj;
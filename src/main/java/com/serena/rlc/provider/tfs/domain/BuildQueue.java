@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,11 @@ public class BuildQueue extends TFSObject {
         super.setTitle(name);
     }
 
+    public BuildQueue(int id, String name) {
+        super.setNumericId(id);
+        super.setTitle(name);
+    }
+
     public String getType() {
         return type;
     }
@@ -47,26 +53,33 @@ public class BuildQueue extends TFSObject {
     }
 
     public static List<BuildQueue> parse(String options) {
-        List<BuildQueue> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<BuildQueue> parse(JSONObject jsonObject) {
+        List<BuildQueue> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 BuildQueue bqObj = parseSingle((JSONObject)object);
                 list.add(bqObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static BuildQueue parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             BuildQueue buildQueue = parseSingle((JSONObject) parsedObject);
             return buildQueue;
         } catch (ParseException e) {
@@ -79,10 +92,10 @@ public class BuildQueue extends TFSObject {
         BuildQueue bqObj = null;
         if (jsonObject != null) {
             bqObj = new BuildQueue(
-                String.valueOf((Long) getJSONValue(jsonObject, "id")),
+                toId(getJSONValue(jsonObject, "id")),
                 (String) getJSONValue(jsonObject, "name"));
             bqObj.setUrl((String) jsonObject.get("url"));
-            bqObj.setType((String) jsonObject.get("type"));
+            bqObj.setType(StringPool.canonicalize((String) jsonObject.get("type")));
             // TODO: Get Build Controller
         }
         return bqObj;
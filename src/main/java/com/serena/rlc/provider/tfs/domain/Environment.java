@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,27 +40,36 @@ public class Environment  extends TFSObject {
         super.setTitle(name);
     }
 
+    public Environment(int id, String name) {
+        super.setNumericId(id);
+        super.setTitle(name);
+    }
+
     public static List<Environment> parse(String options) {
-        List<Environment> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) parsedObject;
-            for (Object object : jsonArray) {
-                Environment envObj = parseSingle((JSONObject)object);
-                list.add(envObj);
-            }
+            Object parsedObject = codec.parse(options);
+            return parse((JSONArray) parsedObject);
         } catch (ParseException e) {
             logger.error("Error while parsing input JSON - " + options, e);
         }
 
+        return new ArrayList<>();
+    }
+
+    public static List<Environment> parse(JSONArray jsonArray) {
+        List<Environment> list = new ArrayList<>(jsonArray.size());
+        for (Object object : jsonArray) {
+            Environment envObj = parseSingle((JSONObject)object);
+            list.add(envObj);
+        }
         return list;
     }
 
     public static Environment parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             Environment environment = parseSingle((JSONObject) parsedObject);
             return environment;
         } catch (ParseException e) {
@@ -72,10 +82,10 @@ public class Environment  extends TFSObject {
         Environment envObj = null;
         if (jsonObject != null) {
             envObj = new Environment(
-                String.valueOf((Long) getJSONValue(jsonObject, "id")),
-                (String) getJSONValue(jsonObject, "name")
+                toId(getJSONValue(jsonObject, "id")),
+                StringPool.canonicalize((String) getJSONValue(jsonObject, "name"))
             );
-            envObj.setState((String) jsonObject.get("status"));
+            envObj.setState(StringPool.canonicalize((String) jsonObject.get("status")));
         }
         return envObj;
     }
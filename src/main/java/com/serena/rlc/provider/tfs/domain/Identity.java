@@ -0,0 +1,202 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import org.json.simple.JSONObject;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A TFS identity as referenced by the identity fields of a Work Item, e.g. System.AssignedTo. Older API versions
+ * send identities as "Display Name &lt;domain account&gt;" strings and newer ones as identity objects; both are decoded
+ * once into a shared instance from a bounded pool, so Work Items referencing the same identity share one object and
+ * an email address resolved for it is seen by all of them.
+ * @author klee@serena.com
+ */
+public final class Identity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final ConcurrentMap<String, Identity> pool = new ConcurrentHashMap<>(256);
+    private static volatile int capacity = DEFAULT_CAPACITY;
+
+    private final String id;
+    private final String displayName;
+    private final String uniqueName;
+    private final String display;
+    private volatile String mail;
+    private volatile boolean resolved;
+
+    private Identity(String id, String displayName, String uniqueName, String display) {
+        this.id = id;
+        this.displayName = displayName;
+        this.uniqueName = uniqueName;
+        this.display = display;
+    }
+
+    /**
+     * Get the shared identity for the value of an identity field.
+     *
+     * @param value  a "Display Name &lt;unique name&gt;" string or an identity object
+     * @return the pooled identity, or null if the value is empty
+     */
+    public static Identity valueOf(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject) value;
+            String displayName = (String) TFSObject.getJSONValue(jsonObject, "displayName");
+            String uniqueName = (String) TFSObject.getJSONValue(jsonObject, "uniqueName");
+            if (displayName == null && uniqueName == null) {
+                return null;
+            }
+            return intern((String) TFSObject.getJSONValue(jsonObject, "id"), displayName, uniqueName);
+        } else if (value instanceof String && !((String) value).isEmpty()) {
+            String text = (String) value;
+            Identity identity = pool.get(text);
+            if (identity != null) {
+                return identity;
+            }
+            int start = text.lastIndexOf('<');
+            if (start > 0 && text.endsWith(">")) {
+                return intern(null, text.substring(0, start).trim(), text.substring(start + 1, text.length() - 1));
+            }
+            return intern(null, text, null);
+        }
+        return null;
+    }
+
+    /**
+     * Get the shared identity with the specified names, e.g. for an identity read from a metadata snapshot.
+     *
+     * @param id  the identity id, null if unknown
+     * @param displayName  the display name
+     * @param uniqueName  the domain account name or email address
+     * @return the pooled identity, or null if both names are null
+     */
+    public static Identity valueOf(String id, String displayName, String uniqueName) {
+        if (displayName == null && uniqueName == null) {
+            return null;
+        }
+        return intern(id, displayName, uniqueName);
+    }
+
+    public static void setCapacity(int newCapacity) {
+        if (newCapacity > 0) {
+            capacity = newCapacity;
+        }
+    }
+
+    public static int size() {
+        return pool.size();
+    }
+
+    public static void clear() {
+        pool.clear();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return the domain account name, or the email address of a hosted identity
+     */
+    public String getUniqueName() {
+        return uniqueName;
+    }
+
+    /**
+     * @return the identity in the "Display Name &lt;unique name&gt;" form of the older API versions
+     */
+    public String getDisplay() {
+        return display;
+    }
+
+    public String getMail() {
+        return mail;
+    }
+
+    /**
+     * @return true once the email address was looked up, even if the identity has none
+     */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    public void setMail(String mail) {
+        // both fields are volatile and mail is written first, so a thread that sees the identity resolved sees its mail
+        this.mail = mail;
+        this.resolved = true;
+    }
+
+    @Override
+    public String toString() {
+        return display;
+    }
+
+    //
+
+    /**
+     * Return the pooled instance with the same display form, the pool is cleared once it reaches its capacity.
+     * An identity object replaces a pooled identity that was decoded from a string, as it also has an id.
+     */
+    private static Identity intern(String id, String displayName, String uniqueName) {
+        String display = toDisplay(displayName, uniqueName);
+        Identity pooled = pool.get(display);
+        if (pooled != null && (pooled.id != null || id == null)) {
+            return pooled;
+        }
+        return intern(new Identity(id, StringPool.canonicalize(displayName), StringPool.canonicalize(uniqueName), StringPool.canonicalize(display)));
+    }
+
+    private static Identity intern(Identity identity) {
+        Identity pooled = pool.get(identity.display);
+        if (pooled != null && (pooled.id != null || identity.id == null)) {
+            return pooled;
+        }
+        if (pool.size() >= capacity) {
+            pool.clear();
+        }
+        if (pooled != null) {
+            if (pooled.resolved && !identity.resolved) {
+                identity.setMail(pooled.mail);
+            }
+            pool.put(identity.display, identity);
+            return identity;
+        }
+        pooled = pool.putIfAbsent(identity.display, identity);
+        return (pooled == null ? identity : pooled);
+    }
+
+    private static String toDisplay(String displayName, String uniqueName) {
+        String display;
+        if (uniqueName == null || uniqueName.equals(displayName)) {
+            display = (displayName == null ? uniqueName : displayName);
+        } else if (displayName == null) {
+            display = uniqueName;
+        } else {
+            display = displayName + " <" + uniqueName + ">";
+        }
+        return display;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return intern(this);
+    }
+
+}
@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,26 +42,33 @@ public class Project extends TFSObject {
     }
 
     public static List<Project> parse(String options) {
-        List<Project> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<Project> parse(JSONObject jsonObject) {
+        List<Project> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 Project projObj = parseSingle((JSONObject)object);
                 list.add(projObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static Project parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             Project project = parseSingle((JSONObject)parsedObject);
             return project;
         } catch (ParseException e) {
@@ -78,7 +86,7 @@ public class Project extends TFSObject {
             );
             projObj.setDescription((String) getJSONValue(jsonObject, "description"));
             projObj.setUrl((String) getJSONValue(jsonObject, "url"));
-            projObj.setState((String) getJSONValue(jsonObject, "state"));
+            projObj.setState(StringPool.canonicalize((String) getJSONValue(jsonObject, "state")));
         }
         return projObj;
     }
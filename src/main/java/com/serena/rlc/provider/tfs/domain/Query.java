@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,8 @@ public class Query extends TFSObject {
 
     private String path;
     private boolean isFolder;
+    private boolean hasChildren;
+    private transient List<Query> children;  // only set for folders returned with their children
 
     public Query() {
 
@@ -59,27 +62,53 @@ public class Query extends TFSObject {
         return this.isFolder;
     }
 
+    public boolean getHasChildren() {
+        return this.hasChildren;
+    }
+
+    public void setHasChildren(boolean hasChildren) {
+        this.hasChildren = hasChildren;
+    }
+
+    /**
+     * @return the children of a folder, or null if they were not returned with it
+     */
+    public List<Query> getChildren() {
+        return this.children;
+    }
+
+    public void setChildren(List<Query> children) {
+        this.children = children;
+    }
+
     public static List<Query> parse(String options) {
-        List<Query> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject)parsedObject, "children");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<Query> parse(JSONObject jsonObject) {
+        List<Query> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "children");
             for (Object object : jsonArray) {
                 Query queryObj = parseSingle((JSONObject)object);
                 list.add(queryObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static Query parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             Query query = parseSingle((JSONObject) parsedObject);
             return query;
         } catch (ParseException e) {
@@ -100,6 +129,17 @@ public class Query extends TFSObject {
             if (jsonObject.containsKey("isFolder")) {
                 queryObj.setIsFolder((boolean) getJSONValue(jsonObject, "isFolder"));
             }
+            if (jsonObject.containsKey("hasChildren")) {
+                queryObj.setHasChildren((boolean) getJSONValue(jsonObject, "hasChildren"));
+            }
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "children");
+            if (jsonArray != null) {
+                List<Query> children = new ArrayList<>(jsonArray.size());
+                for (Object object : jsonArray) {
+                    children.add(parseSingle((JSONObject) object));
+                }
+                queryObj.setChildren(children);
+            }
         }
         return queryObj;
     }
@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,11 @@ public class Release extends TFSObject {
         super.setId(id);
         super.setTitle(name);
     }
+
+    public Release(int id, String name) {
+        super.setNumericId(id);
+        super.setTitle(name);
+    }
     
     public ReleaseDefinition getReleaseDefinition() {
         return releaseDefinition;
@@ -57,26 +63,33 @@ public class Release extends TFSObject {
 
 
     public static List<Release> parse(String options) {
-        List<Release> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<Release> parse(JSONObject jsonObject) {
+        List<Release> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 Release rObj = parseSingle((JSONObject)object);
                 list.add(rObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static Release parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             Release release = parseSingle((JSONObject) parsedObject);
             return release;
         } catch (ParseException e) {
@@ -89,12 +102,14 @@ public class Release extends TFSObject {
         Release rObj = null;
         if (jsonObject != null) {
             rObj = new Release(
-                String.valueOf((Long) getJSONValue(jsonObject, "id")),
+                toId(getJSONValue(jsonObject, "id")),
                 (String) getJSONValue(jsonObject, "name"));
-            rObj.setState((String) jsonObject.get("status"));
-            // TODO: Set release definition id
+            rObj.setState(StringPool.canonicalize((String) jsonObject.get("status")));
+            if (jsonObject.containsKey("releaseDefinition")) {
+                rObj.setReleaseDefinition(ReleaseDefinition.parseSingle((JSONObject) jsonObject.get("releaseDefinition")));
+            }
             if (jsonObject.containsKey("environments")) {
-                rObj.setEnvironments(Environment.parse(jsonObject.get("environments").toString()));
+                rObj.setEnvironments(Environment.parse((JSONArray) jsonObject.get("environments")));
             }
         }
         return rObj;
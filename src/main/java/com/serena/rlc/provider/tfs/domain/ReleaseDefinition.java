@@ -9,9 +9,10 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +45,11 @@ public class ReleaseDefinition extends TFSObject {
         super.setTitle(name);
     }
 
+    public ReleaseDefinition(int id, String name) {
+        super.setNumericId(id);
+        super.setTitle(name);
+    }
+
     public Project getProject() {
         return project;
     }
@@ -61,26 +67,33 @@ public class ReleaseDefinition extends TFSObject {
     }
     
     public static List<ReleaseDefinition> parse(String options) {
-        List<ReleaseDefinition> list = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<ReleaseDefinition> parse(JSONObject jsonObject) {
+        List<ReleaseDefinition> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
                 ReleaseDefinition rdObj = parseSingle((JSONObject)object);
                 list.add(rdObj);
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
-
         return list;
     }
 
     public static ReleaseDefinition parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             ReleaseDefinition releaseDefinition = parseSingle((JSONObject) parsedObject);
             return releaseDefinition;
         } catch (ParseException e) {
@@ -93,13 +106,15 @@ public class ReleaseDefinition extends TFSObject {
         ReleaseDefinition rdObj = null;
         if (jsonObject != null) {
             rdObj = new ReleaseDefinition(
-                    String.valueOf((Long) getJSONValue(jsonObject, "id")),
+                    toId(getJSONValue(jsonObject, "id")),
                     (String) getJSONValue(jsonObject, "name"));
             rdObj.setRev((Long) getJSONValue(jsonObject, "rev"));
             rdObj.setUrl((String) getJSONValue(jsonObject, "url"));
-            // TODO: Set project id
+            if (jsonObject.containsKey("projectReference")) {
+                rdObj.setProject(Project.parseSingle((JSONObject) jsonObject.get("projectReference")));
+            }
             if (jsonObject.containsKey("environments")) {
-                rdObj.setEnvironments(Environment.parse(jsonObject.get("environments").toString()));
+                rdObj.setEnvironments(Environment.parse((JSONArray) jsonObject.get("environments")));
             }
         }
         return rdObj;
@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded, thread safe canonicalization pool for low cardinality values (states, types, project names,
+ * area/iteration paths and identities) that repeat across many decoded domain objects.
+ * @author klee@serena.com
+ */
+public final class StringPool {
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int MAX_LENGTH = 256;
+
+    private static final ConcurrentMap<String, String> pool = new ConcurrentHashMap<>(1024);
+    private static volatile int capacity = DEFAULT_CAPACITY;
+
+    private StringPool() {
+    }
+
+    /**
+     * Return the canonical instance of a value. Values longer than {@link #MAX_LENGTH} are not pooled,
+     * and the pool is cleared once it reaches its capacity so that it never grows without bound.
+     *
+     * @param value  the value to canonicalize
+     * @return the pooled instance equal to value
+     */
+    public static String canonicalize(String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        String canonical = pool.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (pool.size() >= capacity) {
+            pool.clear();
+        }
+        canonical = pool.putIfAbsent(value, value);
+        return (canonical == null ? value : canonical);
+    }
+
+    public static void setCapacity(int newCapacity) {
+        if (newCapacity > 0) {
+            capacity = newCapacity;
+        }
+    }
+
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    public static int size() {
+        return pool.size();
+    }
+
+    public static void clear() {
+        pool.clear();
+    }
+
+}
@@ -21,7 +21,10 @@ public class TFSObject implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    private String id;  // Standardize on String because different types used in TFS/VSRM APIs
+    public static final int NO_ID = -1;
+
+    private String id;  // Only used for GUID ids, e.g. projects and queries
+    private int numericId = NO_ID;  // Work items, builds, releases, definitions, environments and queues
     private Long rev;
     private String title;
     private String description;
@@ -34,15 +37,31 @@ public class TFSObject implements Serializable {
     }
 
     public TFSObject(String id, String title, String description) {
-        this.id = id;
+        this.setId(id);
         this.title = title;
         this.description = description;
     }
 
+    /**
+     * Get the id as a String, standardized on String because different types are used in TFS/VSRM APIs.
+     *
+     * @return the GUID or numeric id, or null if not set
+     */
     public String getId() {
+        if (id == null && numericId != NO_ID) {
+            return String.valueOf(numericId);
+        }
         return id;
     }
 
+    public int getNumericId() {
+        return numericId;
+    }
+
+    public boolean hasNumericId() {
+        return numericId != NO_ID;
+    }
+
     public Long getRev() {
         return rev;
     }
@@ -68,7 +87,19 @@ public class TFSObject implements Serializable {
     }
 
     public void setId(String id) {
-        this.id = id;
+        int value = parseId(id);
+        if (value != NO_ID) {
+            this.numericId = value;
+            this.id = null;
+        } else {
+            this.numericId = NO_ID;
+            this.id = id;
+        }
+    }
+
+    public void setNumericId(int numericId) {
+        this.numericId = numericId;
+        this.id = null;
     }
 
     public void setRev(Long rev) {
@@ -103,6 +134,43 @@ public class TFSObject implements Serializable {
         return retObj;
     }
 
+    /**
+     * Convert a numeric JSON id value to a primitive id.
+     *
+     * @param value  the JSON value, e.g. a Long
+     * @return the id or NO_ID if the value is not numeric or does not fit in an int
+     */
+    public static int toId(Object value) {
+        if (value instanceof Number) {
+            long id = ((Number) value).longValue();
+            return (id < 0 || id > Integer.MAX_VALUE ? NO_ID : (int) id);
+        } else if (value instanceof String) {
+            return parseId((String) value);
+        }
+        return NO_ID;
+    }
+
+    /**
+     * Parse a String id that contains only digits, without leading zeros, and fits in an int.
+     *
+     * @param value  the id
+     * @return the id or NO_ID if the value is not a numeric id
+     */
+    public static int parseId(String value) {
+        if (value == null || value.isEmpty() || value.length() > 10 || (value.charAt(0) == '0' && value.length() > 1)) {
+            return NO_ID;
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_ID;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return (result > Integer.MAX_VALUE ? NO_ID : (int) result);
+    }
+
     @Override
     public String toString() {
         return super.toString();
@@ -0,0 +1,583 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact, versioned binary codec for {@link TFSObject} and its subclasses, used as the storage format of the
+ * metadata snapshots instead of Java serialization.
+ * <p>
+ * Integers are written as varints and each object is written as its type followed by a bit mask of the fields
+ * that are present, so null fields take no space. A stream starts with the codec version and readers reject
+ * versions they do not know, so entries written by another version are reloaded rather than misread.
+ * Short strings that repeat within a stream (people, states, paths) are written once and then referenced
+ * by index, strings longer than {@link #COMPRESSION_THRESHOLD} bytes can optionally be deflated.
+ * @author klee@serena.com
+ */
+public final class TFSObjectCodec {
+
+    public static final int VERSION = 2;
+    public static final int COMPRESSION_THRESHOLD = 512;
+    public static final int MAX_SHARED_LENGTH = 64;
+
+    private static final int LITERAL = 0;
+    private static final int DEFLATED = 1;
+    private static final int SHARED = 2;
+    private static final int TAG_BITS = 2;
+
+    private static final int TFS_OBJECT = 0;
+    private static final int PROJECT = 1;
+    private static final int QUERY = 2;
+    private static final int BUILD_DEFINITION = 3;
+    private static final int BUILD_QUEUE = 4;
+    private static final int RELEASE_DEFINITION = 5;
+    private static final int ENVIRONMENT = 6;
+    private static final int RELEASE = 7;
+    private static final int BUILD = 8;
+    private static final int WORK_ITEM = 9;
+    private static final int WORK_ITEM_TYPE = 10;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<byte[][]> scratchBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[1][];
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private TFSObjectCodec() {
+    }
+
+    /**
+     * Encode a single object, including the codec version.
+     *
+     * @param obj  the object to encode
+     * @param compress  true to deflate long text fields
+     * @return the encoded bytes
+     */
+    public static byte[] encode(TFSObject obj, boolean compress) {
+        Output out = new Output(256, compress);
+        out.writeVarInt(VERSION);
+        out.writeObject(obj);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a single object written by {@link #encode(TFSObject, boolean)}.
+     *
+     * @param bytes  the encoded bytes
+     * @return the object
+     * @throws IOException if the data is not in a supported format
+     */
+    public static TFSObject decode(byte[] bytes) throws IOException {
+        Input in = new Input(ByteBuffer.wrap(bytes));
+        in.readVersion();
+        return in.readObject();
+    }
+
+    /**
+     * Growable output buffer, a single instance can be reused by calling {@link #reset()}.
+     */
+    public static final class Output {
+        private final boolean compress;
+        private final Map<String, Integer> shared = new HashMap<>();
+        private byte[] buffer;
+        private int position;
+
+        public Output(int initialSize, boolean compress) {
+            this.buffer = new byte[Math.max(16, initialSize)];
+            this.compress = compress;
+        }
+
+        public void reset() {
+            position = 0;
+            shared.clear();
+        }
+
+        public int size() {
+            return position;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, position);
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Write a non null String; the low bits of the prefix tell whether it is a literal, deflated or a reference
+         * to a short string written earlier in the stream.
+         */
+        public void writeString(String value) {
+            if (value.length() <= MAX_SHARED_LENGTH) {
+                Integer index = shared.get(value);
+                if (index != null) {
+                    writeVarInt((index << TAG_BITS) | SHARED);
+                    return;
+                }
+                shared.put(value, shared.size());
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (compress && bytes.length > COMPRESSION_THRESHOLD && writeDeflated(bytes)) {
+                return;
+            }
+            writeVarInt((bytes.length << TAG_BITS) | LITERAL);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        public void writeList(List<? extends TFSObject> list) {
+            writeVarInt(list.size());
+            for (TFSObject obj : list) {
+                writeObject(obj);
+            }
+        }
+
+        /**
+         * Write an object as its type and its fields.
+         */
+        public void writeObject(TFSObject obj) {
+            writeVarInt(typeOf(obj));
+            writeBase(obj);
+            if (obj instanceof WorkItem) {
+                writeWorkItem((WorkItem) obj);
+            } else if (obj instanceof Query) {
+                Query query = (Query) obj;
+                writeMask(query.getPath(), query.getIsFolder() ? "" : null);
+                writeOptional(query.getPath());
+            } else if (obj instanceof BuildDefinition) {
+                BuildDefinition bd = (BuildDefinition) obj;
+                writeMask(bd.getQuality(), bd.getType());
+                writeOptional(bd.getQuality());
+                writeOptional(bd.getType());
+            } else if (obj instanceof BuildQueue) {
+                writeMask(((BuildQueue) obj).getType());
+                writeOptional(((BuildQueue) obj).getType());
+            } else if (obj instanceof Build) {
+                Build build = (Build) obj;
+                writeMask(build.getBuildNumber(), build.getBuildResult(), build.getBuildDefinition());
+                writeOptional(build.getBuildNumber());
+                writeOptional(build.getBuildResult());
+                if (build.getBuildDefinition() != null) writeObject(build.getBuildDefinition());
+            } else if (obj instanceof ReleaseDefinition) {
+                ReleaseDefinition rd = (ReleaseDefinition) obj;
+                writeMask(rd.getProject(), rd.getEnvironments());
+                if (rd.getProject() != null) writeObject(rd.getProject());
+                if (rd.getEnvironments() != null) writeList(rd.getEnvironments());
+            } else if (obj instanceof Release) {
+                Release release = (Release) obj;
+                writeMask(release.getReleaseDefinition(), release.getEnvironments());
+                if (release.getReleaseDefinition() != null) writeObject(release.getReleaseDefinition());
+                if (release.getEnvironments() != null) writeList(release.getEnvironments());
+            } else if (obj instanceof WorkItemType) {
+                Map<String, String> states = ((WorkItemType) obj).getStateCategories();
+                writeMask(states.isEmpty() ? null : states);
+                if (!states.isEmpty()) {
+                    writeVarInt(states.size());
+                    for (Map.Entry<String, String> state : states.entrySet()) {
+                        writeString(state.getKey());
+                        writeString(state.getValue() == null ? "" : state.getValue());
+                    }
+                }
+            }
+        }
+
+        //
+
+        private void writeBase(TFSObject obj) {
+            String id = (obj.hasNumericId() ? null : obj.getId());
+            writeMask(id, obj.hasNumericId() ? "" : null, obj.getRev(), obj.getTitle(), obj.getDescription(),
+                    obj.getCreated(), obj.getState(), obj.getUrl());
+            writeOptional(id);
+            if (obj.hasNumericId()) writeVarInt(obj.getNumericId());
+            if (obj.getRev() != null) writeVarLong(obj.getRev());
+            writeOptional(obj.getTitle());
+            writeOptional(obj.getDescription());
+            if (obj.getCreated() != null) writeVarLong(obj.getCreated());
+            writeOptional(obj.getState());
+            writeOptional(obj.getUrl());
+        }
+
+        private void writeWorkItem(WorkItem wi) {
+            writeMask(wi.getAssignedToIdentity(), wi.getProject(), wi.getSeverity(), wi.getType(), wi.getDateCreated(),
+                    wi.getCreatedByIdentity(), wi.getDateChanged(), wi.getChangedByIdentity(), wi.getEffort(), wi.getReason(),
+                    wi.getAreaPath(), wi.getIterationPath(), wi.isHeavyFieldsLoaded() ? "" : null, wi.getTags());
+            writeIdentity(wi.getAssignedToIdentity());
+            writeOptional(wi.getProject());
+            writeOptional(wi.getSeverity());
+            writeOptional(wi.getType());
+            writeOptional(wi.getDateCreated());
+            writeIdentity(wi.getCreatedByIdentity());
+            writeOptional(wi.getDateChanged());
+            writeIdentity(wi.getChangedByIdentity());
+            writeOptional(wi.getEffort());
+            writeOptional(wi.getReason());
+            writeOptional(wi.getAreaPath());
+            writeOptional(wi.getIterationPath());
+            writeOptional(wi.getTags());
+        }
+
+        /**
+         * Write an identity with its id and email address, if it was resolved, so a Work Item read back
+         * references the same pooled identity.
+         */
+        private void writeIdentity(Identity identity) {
+            if (identity == null) {
+                return;
+            }
+            writeMask(identity.getId(), identity.getDisplayName(), identity.getUniqueName(),
+                    identity.isResolved() ? "" : null, identity.getMail());
+            writeOptional(identity.getId());
+            writeOptional(identity.getDisplayName());
+            writeOptional(identity.getUniqueName());
+            writeOptional(identity.getMail());
+        }
+
+        private void writeMask(Object... values) {
+            int mask = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) mask |= 1 << i;
+            }
+            writeVarInt(mask);
+        }
+
+        private void writeOptional(String value) {
+            if (value != null) writeString(value);
+        }
+
+        private boolean writeDeflated(byte[] bytes) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] scratch = scratchBuffer(bytes.length);
+            int count = 0;
+            while (!deflater.finished() && count < bytes.length) {
+                count += deflater.deflate(scratch, count, bytes.length - count);
+            }
+            if (!deflater.finished()) {
+                return false;  // does not compress
+            }
+            writeVarInt((count << TAG_BITS) | DEFLATED);
+            writeVarInt(bytes.length);
+            ensure(count);
+            System.arraycopy(scratch, 0, buffer, position, count);
+            position += count;
+            return true;
+        }
+
+        private void ensure(int count) {
+            if (position + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+            }
+        }
+    }
+
+    /**
+     * Reader over a heap or memory mapped buffer.
+     */
+    public static final class Input {
+        private final ByteBuffer buffer;
+        private final List<String> shared = new ArrayList<>();
+
+        public Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void readVersion() throws IOException {
+            int version = readVarInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported TFS object encoding version: " + version);
+            }
+        }
+
+        public int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        public long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        public String readString() throws IOException {
+            int prefix = readVarInt();
+            int length = prefix >>> TAG_BITS;
+            int tag = prefix & ((1 << TAG_BITS) - 1);
+            if (tag == SHARED) {
+                if (length >= shared.size()) {
+                    throw new IOException("Invalid shared string reference: " + length);
+                }
+                return shared.get(length);
+            }
+
+            String value;
+            if (tag == LITERAL) {
+                if (buffer.hasArray()) {
+                    int offset = buffer.arrayOffset() + buffer.position();
+                    buffer.position(buffer.position() + length);
+                    value = new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+                } else {
+                    byte[] bytes = scratchBuffer(length);
+                    buffer.get(bytes, 0, length);
+                    value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+            } else if (tag == DEFLATED) {
+                value = inflate(length);
+            } else {
+                throw new IOException("Invalid string encoding: " + tag);
+            }
+            if (value.length() <= MAX_SHARED_LENGTH) {
+                shared.add(StringPool.canonicalize(value));
+            }
+            return value;
+        }
+
+        private String inflate(int length) throws IOException {
+            byte[] bytes = new byte[readVarInt()];
+            byte[] compressed = scratchBuffer(length);
+            buffer.get(compressed, 0, length);
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            try {
+                int count = 0;
+                while (count < bytes.length && !inflater.finished()) {
+                    int n = inflater.inflate(bytes, count, bytes.length - count);
+                    if (n == 0 && inflater.needsInput()) break;
+                    count += n;
+                }
+                if (count != bytes.length) {
+                    throw new IOException("Truncated compressed string");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid compressed string", ex);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public List<TFSObject> readList() throws IOException {
+            int size = readVarInt();
+            List<TFSObject> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readObject());
+            }
+            return list;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends TFSObject> List<T> readList(Class<T> type) throws IOException {
+            List<TFSObject> list = readList();
+            for (TFSObject obj : list) {
+                if (!type.isInstance(obj)) {
+                    throw new IOException("Expected " + type.getSimpleName() + " but found " + obj.getClass().getSimpleName());
+                }
+            }
+            return (List<T>) (List<?>) list;
+        }
+
+        public TFSObject readObject() throws IOException {
+            int type = readVarInt();
+            TFSObject obj;
+            switch (type) {
+                case TFS_OBJECT: obj = new TFSObject(); break;
+                case PROJECT: obj = new Project(); break;
+                case QUERY: obj = new Query(); break;
+                case BUILD_DEFINITION: obj = new BuildDefinition(); break;
+                case BUILD_QUEUE: obj = new BuildQueue(); break;
+                case RELEASE_DEFINITION: obj = new ReleaseDefinition(); break;
+                case ENVIRONMENT: obj = new Environment(); break;
+                case RELEASE: obj = new Release(); break;
+                case BUILD: obj = new Build(); break;
+                case WORK_ITEM: obj = new WorkItem(); break;
+                case WORK_ITEM_TYPE: obj = new WorkItemType(); break;
+                default:
+                    throw new IOException("Unknown TFS object type: " + type);
+            }
+
+            readBase(obj);
+            if (type != TFS_OBJECT && type != PROJECT && type != ENVIRONMENT) {
+                int mask = readVarInt();
+                if (obj instanceof WorkItem) {
+                    readWorkItem((WorkItem) obj, mask);
+                } else if (obj instanceof Query) {
+                    ((Query) obj).setPath(readOptional(mask, 0));
+                    ((Query) obj).setIsFolder((mask & 2) != 0);
+                } else if (obj instanceof BuildDefinition) {
+                    ((BuildDefinition) obj).setQuality(readOptional(mask, 0));
+                    ((BuildDefinition) obj).setType(readOptional(mask, 1));
+                } else if (obj instanceof BuildQueue) {
+                    ((BuildQueue) obj).setType(readOptional(mask, 0));
+                } else if (obj instanceof Build) {
+                    Build build = (Build) obj;
+                    build.setBuildNumber(readOptional(mask, 0));
+                    build.setBuildResult(readOptional(mask, 1));
+                    if ((mask & 4) != 0) build.setBuildDefinition((BuildDefinition) readObject());
+                } else if (obj instanceof ReleaseDefinition) {
+                    ReleaseDefinition rd = (ReleaseDefinition) obj;
+                    if ((mask & 1) != 0) rd.setProject((Project) readObject());
+                    if ((mask & 2) != 0) rd.setEnvironments(readList(Environment.class));
+                } else if (obj instanceof Release) {
+                    Release release = (Release) obj;
+                    if ((mask & 1) != 0) release.setReleaseDefinition((ReleaseDefinition) readObject());
+                    if ((mask & 2) != 0) release.setEnvironments(readList(Environment.class));
+                } else if (obj instanceof WorkItemType) {
+                    int count = ((mask & 1) != 0 ? readVarInt() : 0);
+                    for (int i = 0; i < count; i++) {
+                        String state = StringPool.canonicalize(readString());
+                        String category = readString();
+                        ((WorkItemType) obj).addState(state, category.isEmpty() ? null : StringPool.canonicalize(category));
+                    }
+                }
+            }
+            return obj;
+        }
+
+        //
+
+        private void readBase(TFSObject obj) throws IOException {
+            int mask = readVarInt();
+            if ((mask & 1) != 0) obj.setId(readString());
+            if ((mask & 2) != 0) obj.setNumericId(readVarInt());
+            if ((mask & 4) != 0) obj.setRev(readVarLong());
+            obj.setTitle(readOptional(mask, 3));
+            obj.setDescription(readOptional(mask, 4));
+            if ((mask & 32) != 0) obj.setCreated(readVarLong());
+            obj.setState(readOptional(mask, 6));
+            obj.setUrl(readOptional(mask, 7));
+        }
+
+        private void readWorkItem(WorkItem wi, int mask) throws IOException {
+            wi.setAssignedToIdentity(readIdentity(mask, 0));
+            wi.setProject(StringPool.canonicalize(readOptional(mask, 1)));
+            wi.setSeverity(StringPool.canonicalize(readOptional(mask, 2)));
+            wi.setType(StringPool.canonicalize(readOptional(mask, 3)));
+            wi.setDateCreated(readOptional(mask, 4));
+            wi.setCreatedByIdentity(readIdentity(mask, 5));
+            wi.setDateChanged(readOptional(mask, 6));
+            wi.setChangedByIdentity(readIdentity(mask, 7));
+            wi.setEffort(readOptional(mask, 8));
+            wi.setReason(StringPool.canonicalize(readOptional(mask, 9)));
+            wi.setAreaPath(StringPool.canonicalize(readOptional(mask, 10)));
+            wi.setIterationPath(StringPool.canonicalize(readOptional(mask, 11)));
+            wi.setHeavyFieldsLoaded((mask & (1 << 12)) != 0);
+            wi.setTags(readOptional(mask, 13));
+        }
+
+        private Identity readIdentity(int mask, int bit) throws IOException {
+            if ((mask & (1 << bit)) == 0) {
+                return null;
+            }
+            int identityMask = readVarInt();
+            Identity identity = Identity.valueOf(readOptional(identityMask, 0), readOptional(identityMask, 1),
+                    readOptional(identityMask, 2));
+            String mail = readOptional(identityMask, 4);
+            if (identity != null && (identityMask & 8) != 0 && !identity.isResolved()) {
+                identity.setMail(mail);
+            }
+            return identity;
+        }
+
+        private String readOptional(int mask, int bit) throws IOException {
+            return ((mask & (1 << bit)) != 0 ? readString() : null);
+        }
+    }
+
+    //
+
+    private static int typeOf(TFSObject obj) {
+        Class<?> type = obj.getClass();
+        if (type == WorkItem.class) return WORK_ITEM;
+        if (type == Project.class) return PROJECT;
+        if (type == Query.class) return QUERY;
+        if (type == BuildDefinition.class) return BUILD_DEFINITION;
+        if (type == BuildQueue.class) return BUILD_QUEUE;
+        if (type == Build.class) return BUILD;
+        if (type == ReleaseDefinition.class) return RELEASE_DEFINITION;
+        if (type == Release.class) return RELEASE;
+        if (type == Environment.class) return ENVIRONMENT;
+        if (type == WorkItemType.class) return WORK_ITEM_TYPE;
+        if (type == TFSObject.class) return TFS_OBJECT;
+        throw new IllegalArgumentException("Unsupported TFS object type: " + type.getName());
+    }
+
+    private static byte[] scratchBuffer(int size) {
+        byte[][] holder = scratchBuffers.get();
+        if (holder[0] == null || holder[0].length < size) {
+            holder[0] = new byte[Math.max(size, 4096)];
+        }
+        return holder[0];
+    }
+
+}
@@ -9,39 +9,51 @@
  */
 package com.serena.rlc.provider.tfs.domain;
 
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 /**
- * TFS Work Item Object
+ * TFS Work Item Object, identity fields reference shared {@link Identity} objects.
  * @author klee@serena.com
  */
 public class WorkItem extends TFSObject {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private final static Logger logger = LoggerFactory.getLogger(WorkItem.class);
 
-    private String assignedTo;
+    /** Fields mapped by {@link #parseSingle(JSONObject)} that are cheap enough to fetch for lists of work items. */
+    public final static String DEFAULT_FIELDS = "System.Id,System.Title,System.State,System.TeamProject,System.WorkItemType," +
+            "System.AssignedTo,System.CreatedDate,System.CreatedBy,System.ChangedDate,System.ChangedBy," +
+            "Microsoft.VSTS.Common.Severity,System.AreaPath,System.IterationPath,System.Reason";
+    /** Large fields that are only fetched on demand. */
+    public final static String HEAVY_FIELDS = "System.Description";
+
+    private Identity assignedTo;
     private String project;
     private String severity;
     private String type;
     private String dateCreated;
-    private String createdBy;
+    private Identity createdBy;
     private String dateChanged;
-    private String changedBy;
+    private Identity changedBy;
     private String effort;
     private String reason;
     private String areaPath;
     private String iterationPath;
+    private String tags;
+    private String stateCategory;
+    private boolean heavyFieldsLoaded;
 
     public WorkItem() {
 
@@ -56,10 +68,18 @@ public class WorkItem extends TFSObject {
     }
 
     public String getAssignedTo() {
-        return assignedTo;
+        return (assignedTo == null ? null : assignedTo.getDisplay());
     }
 
     public void setAssignedTo(String assignedTo) {
+        this.assignedTo = Identity.valueOf(assignedTo);
+    }
+
+    public Identity getAssignedToIdentity() {
+        return assignedTo;
+    }
+
+    public void setAssignedToIdentity(Identity assignedTo) {
         this.assignedTo = assignedTo;
     }
 
@@ -96,10 +116,18 @@ public class WorkItem extends TFSObject {
     }
 
     public String getCreatedBy() {
-        return createdBy;
+        return (createdBy == null ? null : createdBy.getDisplay());
     }
 
     public void setCreatedBy(String createdBy) {
+        this.createdBy = Identity.valueOf(createdBy);
+    }
+
+    public Identity getCreatedByIdentity() {
+        return createdBy;
+    }
+
+    public void setCreatedByIdentity(Identity createdBy) {
         this.createdBy = createdBy;
     }
 
@@ -112,10 +140,18 @@ public class WorkItem extends TFSObject {
     }
 
     public String getChangedBy() {
-        return changedBy;
+        return (changedBy == null ? null : changedBy.getDisplay());
     }
 
     public void setChangedBy(String changedBy) {
+        this.changedBy = Identity.valueOf(changedBy);
+    }
+
+    public Identity getChangedByIdentity() {
+        return changedBy;
+    }
+
+    public void setChangedByIdentity(Identity changedBy) {
         this.changedBy = changedBy;
     }
 
@@ -151,10 +187,40 @@ public class WorkItem extends TFSObject {
         this.iterationPath = iterationPath;
     }
 
+    /**
+     * @return the tags of the Work Item separated by "; ", only set if System.Tags is one of the retrieved fields
+     */
+    public String getTags() {
+        return tags;
+    }
+
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
+    /**
+     * @return the category of the state, e.g. InProgress, derived from the Work Item type metadata and not stored
+     */
+    public String getStateCategory() {
+        return stateCategory;
+    }
+
+    public void setStateCategory(String stateCategory) {
+        this.stateCategory = stateCategory;
+    }
+
+    public boolean isHeavyFieldsLoaded() {
+        return heavyFieldsLoaded;
+    }
+
+    public void setHeavyFieldsLoaded(boolean heavyFieldsLoaded) {
+        this.heavyFieldsLoaded = heavyFieldsLoaded;
+    }
+
     public static WorkItem parseSingle(String options) {
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             WorkItem workItem = parseSingle((JSONObject) parsedObject);
             return workItem;
         } catch (ParseException e) {
@@ -165,15 +231,15 @@ public class WorkItem extends TFSObject {
 
     public static List<WorkItem> parseQuery(String options) {
         List<WorkItem> wiList = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
+            Object parsedObject = codec.parse(options);
             String queryType = (String) getJSONValue((JSONObject) parsedObject, "queryType");
             if (!queryType.equals("flat")) return wiList;
             JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "workItems");
             for (Object object : jsonArray) {
                 WorkItem wiObj = new WorkItem();
-                wiObj.setId(String.valueOf((Long) getJSONValue((JSONObject) object, "id")));
+                wiObj.setNumericId(toId(getJSONValue((JSONObject) object, "id")));
                 wiObj.setUrl((String) getJSONValue((JSONObject) object, "url"));
                 wiList.add(wiObj);
             }
@@ -184,25 +250,72 @@ public class WorkItem extends TFSObject {
         return wiList;
     }
 
+    public static int[] parseQueryIds(String options) {
+        JsonCodec codec = JsonCodecs.get();
+        try {
+            Object parsedObject = codec.parse(options);
+            return parseQueryIds((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new int[0];
+    }
+
+    /**
+     * Parse the ids of the Work Items returned by a flat WIQL query.
+     *
+     * @param jsonObject  the WIQL query response
+     * @return the Work Item ids in query order, without ids that do not fit in an int
+     */
+    public static int[] parseQueryIds(JSONObject jsonObject) {
+        if (jsonObject == null || !"flat".equals(getJSONValue(jsonObject, "queryType"))) {
+            return new int[0];
+        }
+        JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "workItems");
+        int[] ids = new int[jsonArray.size()];
+        int count = 0;
+        for (Object object : jsonArray) {
+            int id = toId(getJSONValue((JSONObject) object, "id"));
+            if (id != NO_ID) {
+                ids[count++] = id;
+            }
+        }
+        return (count == ids.length ? ids : Arrays.copyOf(ids, count));
+    }
+
     public static List<WorkItem> parseDetails(String options) {
-        List<WorkItem> wiList = new ArrayList<>();
-        JSONParser parser = new JSONParser();
+        JsonCodec codec = JsonCodecs.get();
         try {
-            Object parsedObject = parser.parse(options);
-            JSONArray jsonArray = (JSONArray) getJSONValue((JSONObject) parsedObject, "value");
+            Object parsedObject = codec.parse(options);
+            return parseDetails((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+        return new ArrayList<>();
+    }
+
+    public static List<WorkItem> parseDetails(JSONObject jsonObject) {
+        List<WorkItem> wiList = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
             for (Object object : jsonArray) {
+                // Work Items omitted by the batch error policy are returned as null
                 WorkItem wiObj = parseSingle((JSONObject)object);
-                wiList.add(wiObj);
+                if (wiObj != null) {
+                    wiList.add(wiObj);
+                }
             }
-        } catch (ParseException e) {
-            logger.error("Error while parsing input JSON - " + options, e);
         }
         return wiList;
     }
 
     public static WorkItem parseSingle(JSONObject jsonObject) {
+        if (jsonObject == null) {
+            return null;
+        }
         WorkItem wiObj = new WorkItem();
-        wiObj.setId(String.valueOf((Long) getJSONValue(jsonObject, "id")));
+        wiObj.setNumericId(toId(getJSONValue(jsonObject, "id")));
         wiObj.setRev((Long) getJSONValue(jsonObject, "rev"));
         wiObj.setUrl((String) getJSONValue(jsonObject, "url"));
         if (jsonObject.containsKey("fields")) {
@@ -214,40 +327,46 @@ public class WorkItem extends TFSObject {
                         wiObj.setTitle((String) fieldsObj.get(key));
                         break;
                     case "System.State":
-                        wiObj.setState((String) fieldsObj.get(key));
+                        wiObj.setState(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
-                    case "System.Description":
-                        wiObj.setDescription((String) fieldsObj.get(key));
+                    case "System.AssignedTo":
+                        wiObj.setAssignedToIdentity(Identity.valueOf(fieldsObj.get(key)));
                         break;
                     case "System.TeamProject":
-                        wiObj.setProject((String) fieldsObj.get(key));
+                        wiObj.setProject(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
                     case "System.CreatedDate":
                         wiObj.setDateCreated((String) fieldsObj.get(key));
                         break;
                     case "System.CreatedBy":
-                        wiObj.setCreatedBy((String) fieldsObj.get(key));
+                        wiObj.setCreatedByIdentity(Identity.valueOf(fieldsObj.get(key)));
                         break;
                     case "System.ChangedDate":
                         wiObj.setDateChanged((String) fieldsObj.get(key));
                         break;
                     case "System.ChangedBy":
-                        wiObj.setChangedBy((String) fieldsObj.get(key));
+                        wiObj.setChangedByIdentity(Identity.valueOf(fieldsObj.get(key)));
                         break;
                     case "System.WorkItemType":
-                        wiObj.setType((String) fieldsObj.get(key));
+                        wiObj.setType(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
                     case "Microsoft.VSTS.Common.Severity":
-                        wiObj.setSeverity((String) fieldsObj.get(key));
+                        wiObj.setSeverity(StringPool.canonicalize((String) fieldsObj.get(key)));
+                        break;
+                    case "System.Tags":
+                        wiObj.setTags((String) fieldsObj.get(key));
+                        break;
+                    case "System.Description":
+                        wiObj.setDescription((String) fieldsObj.get(key));
                         break;
                     case "System.AreaPath":
-                        wiObj.setAreaPath((String) fieldsObj.get(key));
+                        wiObj.setAreaPath(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
                     case "System.IterationPath":
-                        wiObj.setIterationPath((String) fieldsObj.get(key));
+                        wiObj.setIterationPath(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
                     case "System.Reason":
-                        wiObj.setReason((String) fieldsObj.get(key));
+                        wiObj.setReason(StringPool.canonicalize((String) fieldsObj.get(key)));
                         break;
                     default:
                         break;
@@ -0,0 +1,138 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts of Work Items grouped by Work Item type and state. Counts that could only be obtained from the ids
+ * returned by a query have a total but no groups.
+ * @author klee@serena.com
+ */
+public class WorkItemCounts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private long total;
+
+    public WorkItemCounts() {
+    }
+
+    public WorkItemCounts(long total) {
+        this.total = total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return true if the counts are grouped by type and state, false if only the total is known
+     */
+    public boolean isGrouped() {
+        return !groups.isEmpty() || total == 0;
+    }
+
+    public List<Group> getGroups() {
+        return Collections.unmodifiableList(new ArrayList<>(groups.values()));
+    }
+
+    /**
+     * Add to the count of a Work Item type and state.
+     *
+     * @param type  the Work Item type, e.g. Bug
+     * @param state  the state, e.g. Active
+     * @param count  the number of Work Items to add
+     */
+    public void add(String type, String state, long count) {
+        String key = type + "|" + state;
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(type, state);
+            groups.put(key, group);
+        }
+        group.count += count;
+        total += count;
+    }
+
+    /**
+     * Add the counts of an Analytics groupby/aggregate response on WorkItemType and State.
+     *
+     * @param jsonObject  the OData response, with the count of each group as Count
+     */
+    public void addAggregates(JSONObject jsonObject) {
+        if (jsonObject == null) {
+            return;
+        }
+        JSONArray jsonArray = (JSONArray) TFSObject.getJSONValue(jsonObject, "value");
+        if (jsonArray == null) {
+            return;
+        }
+        for (Object object : jsonArray) {
+            JSONObject row = (JSONObject) object;
+            Object count = TFSObject.getJSONValue(row, "Count");
+            add(toText(TFSObject.getJSONValue(row, "WorkItemType")), toText(TFSObject.getJSONValue(row, "State")),
+                    (count instanceof Number ? ((Number) count).longValue() : 0L));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WorkItemCounts{" + "total=" + total + ", groups=" + groups.values() + '}';
+    }
+
+    private static String toText(Object value) {
+        return (value == null ? "" : value.toString());
+    }
+
+    /**
+     * The number of Work Items of one type in one state.
+     */
+    public static class Group implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String type;
+        private final String state;
+        private long count;
+
+        Group(String type, String state) {
+            this.type = type;
+            this.state = state;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return type + "/" + state + "=" + count;
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import com.serena.rlc.provider.tfs.json.JsonCodec;
+import com.serena.rlc.provider.tfs.json.JsonCodecs;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * TFS Work Item Type Object, with the category (Proposed, InProgress, Resolved, Completed or Removed)
+ * of each of its states.
+ * @author klee@serena.com
+ */
+public class WorkItemType extends TFSObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private final static Logger logger = LoggerFactory.getLogger(WorkItemType.class);
+
+    public final static String PROPOSED = "Proposed";
+    public final static String IN_PROGRESS = "InProgress";
+    public final static String RESOLVED = "Resolved";
+    public final static String COMPLETED = "Completed";
+    public final static String REMOVED = "Removed";
+
+    private Map<String, String> stateCategories = new LinkedHashMap<>();
+
+    public WorkItemType() {
+
+    }
+
+    public WorkItemType(String name) {
+        super.setTitle(name);
+    }
+
+    /**
+     * @return the category of each state by state name, in workflow order, empty if TFS did not return the states
+     */
+    public Map<String, String> getStateCategories() {
+        return Collections.unmodifiableMap(stateCategories);
+    }
+
+    public void setStateCategories(Map<String, String> stateCategories) {
+        this.stateCategories = new LinkedHashMap<>(stateCategories);
+    }
+
+    public void addState(String state, String category) {
+        stateCategories.put(state, category);
+    }
+
+    /**
+     * Get the category of a state of this type.
+     *
+     * @param state  the name of the state
+     * @return the category, or the category of the well known state of that name if the state is not defined
+     */
+    public String getStateCategory(String state) {
+        if (state == null) {
+            return null;
+        }
+        String category = stateCategories.get(state);
+        if (category == null) {
+            for (Map.Entry<String, String> entry : stateCategories.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(state)) {
+                    return entry.getValue();
+                }
+            }
+            category = getDefaultCategory(state);
+        }
+        return category;
+    }
+
+    /**
+     * Get the category of the states of the standard process templates, for servers that do not return
+     * the states of Work Item types.
+     *
+     * @param state  the name of the state
+     * @return the category, or null if the state is not a standard state
+     */
+    public static String getDefaultCategory(String state) {
+        if (state == null) {
+            return null;
+        }
+        switch (state.toLowerCase(Locale.ROOT)) {
+            case "new":
+            case "proposed":
+            case "to do":
+            case "design":
+            case "approved":
+                return PROPOSED;
+            case "active":
+            case "committed":
+            case "in progress":
+            case "doing":
+            case "open":
+                return IN_PROGRESS;
+            case "resolved":
+                return RESOLVED;
+            case "closed":
+            case "done":
+            case "completed":
+                return COMPLETED;
+            case "removed":
+                return REMOVED;
+            default:
+                return null;
+        }
+    }
+
+    public static List<WorkItemType> parse(String options) {
+        JsonCodec codec = JsonCodecs.get();
+        try {
+            Object parsedObject = codec.parse(options);
+            return parse((JSONObject) parsedObject);
+        } catch (ParseException e) {
+            logger.error("Error while parsing input JSON - " + options, e);
+        }
+
+        return new ArrayList<>();
+    }
+
+    public static List<WorkItemType> parse(JSONObject jsonObject) {
+        List<WorkItemType> list = new ArrayList<>();
+        if (jsonObject != null) {
+            JSONArray jsonArray = (JSONArray) getJSONValue(jsonObject, "value");
+            for (Object object : jsonArray) {
+                WorkItemType witObj = parseSingle((JSONObject) object);
+                list.add(witObj);
+            }
+        }
+        return list;
+    }
+
+    public static WorkItemType parseSingle(JSONObject jsonObject) {
+        WorkItemType witObj = null;
+        if (jsonObject != null) {
+            witObj = new WorkItemType(StringPool.canonicalize((String) getJSONValue(jsonObject, "name")));
+            witObj.setDescription((String) getJSONValue(jsonObject, "description"));
+            witObj.setUrl((String) getJSONValue(jsonObject, "url"));
+            JSONArray states = (JSONArray) getJSONValue(jsonObject, "states");
+            if (states != null) {
+                for (Object state : states) {
+                    witObj.addState(StringPool.canonicalize((String) getJSONValue((JSONObject) state, "name")),
+                            StringPool.canonicalize((String) getJSONValue((JSONObject) state, "category")));
+                }
+            }
+        }
+        return witObj;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkItemType{" + "name=" + super.getTitle() + ", states=" + stateCategories.keySet() + '}';
+    }
+
+}
@@ -22,9 +22,16 @@ public class TFSClientException extends Exception {
 
     private static final Logger logger = LoggerFactory.getLogger(TFSClientException.class);
 
+    private int statusCode;
+
     public TFSClientException() {
     }
 
+    public TFSClientException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
     public TFSClientException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -36,4 +43,11 @@ public class TFSClientException extends Exception {
     public TFSClientException(Throwable cause) {
         super(cause);
     }
+
+    /**
+     * @return the HTTP status code of the failed request, 0 if the request did not fail with an HTTP error
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
 }
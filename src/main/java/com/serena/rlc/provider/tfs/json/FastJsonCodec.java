@@ -0,0 +1,382 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.json;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single pass JSON codec that builds the json-simple tree directly from UTF-8 input, without a separate
+ * tokenizer, per token objects or decoding the document to a String first. Object keys, which repeat across
+ * every element of a TFS response, are shared through a small cache instead of being allocated for each occurrence.
+ * Valid documents decode to the same tree as {@link SimpleJsonCodec}, missing separators and invalid escapes, which
+ * json-simple lets through, are rejected.
+ * <p>
+ * The codec is deliberately not streaming, the whole document must be in memory. {@code TFSClient} reads every
+ * response into a pooled buffer bounded by the maximum response size anyway, since the same bytes are stored in
+ * the response cache, recorded by the wire tap and cut back by {@code TFSResponseBody.truncateToLastElement()} when
+ * a list response hits the limit. Parsing from an {@code InputStream} would therefore save no copy, while the tree
+ * built from the document is far larger than the buffer it is parsed from.
+ * @author klee@serena.com
+ */
+public class FastJsonCodec implements JsonCodec {
+
+    public static final String NAME = "fast";
+
+    private static final int KEY_CACHE_SIZE = 1024;  // power of two
+    private static final int MAX_KEY_LENGTH = 64;
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+    private final CachedKey[] keyCache = new CachedKey[KEY_CACHE_SIZE];
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Object parse(String json) throws ParseException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return parse(data, 0, data.length);
+    }
+
+    @Override
+    public Object parse(byte[] data, int offset, int length) throws ParseException {
+        Parser parser = new Parser(data, offset, offset + length);
+        parser.skipWhitespace();
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.pos < parser.end) {
+            throw parser.unexpected();
+        }
+        return value;
+    }
+
+    /**
+     * Return the cached instance of a key, racy updates are harmless as cached keys are immutable.
+     */
+    private String key(byte[] data, int start, int end, int hash) {
+        int length = end - start;
+        if (length > MAX_KEY_LENGTH) {
+            return new String(data, start, length, StandardCharsets.UTF_8);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+        CachedKey cached = keyCache[slot];
+        if (cached != null && cached.matches(data, start, length)) {
+            return cached.value;
+        }
+        cached = new CachedKey(Arrays.copyOfRange(data, start, end));
+        keyCache[slot] = cached;
+        return cached.value;
+    }
+
+    private static final class CachedKey {
+        private final byte[] bytes;
+        private final String value;
+
+        CachedKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.value = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        boolean matches(byte[] data, int start, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != data[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private class Parser {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+        private int pos;
+        private StringBuilder builder;
+
+        Parser(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readValue() throws ParseException {
+            if (pos >= end) {
+                throw unexpected();
+            }
+            byte c = data[pos];
+            switch (c) {
+                case '{':
+                    pos++;
+                    JSONObject object = new JSONObject();
+                    skipWhitespace();
+                    if (peek() == '}') {
+                        pos++;
+                        return object;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        String key = readString(true);
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        object.put(key, readValue());
+                        skipWhitespace();
+                        byte next = peek();
+                        if (next == '}') {
+                            pos++;
+                            return object;
+                        } else if (next != ',') {
+                            throw unexpected();
+                        }
+                        pos++;
+                    }
+                case '[':
+                    pos++;
+                    JSONArray array = new JSONArray();
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        pos++;
+                        return array;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        array.add(readValue());
+                        skipWhitespace();
+                        byte next = peek();
+                        if (next == ']') {
+                            pos++;
+                            return array;
+                        } else if (next != ',') {
+                            throw unexpected();
+                        }
+                        pos++;
+                    }
+                case '"':
+                    return readString(false);
+                case 't':
+                    readLiteral(TRUE);
+                    return Boolean.TRUE;
+                case 'f':
+                    readLiteral(FALSE);
+                    return Boolean.FALSE;
+                case 'n':
+                    readLiteral(NULL);
+                    return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return readNumber();
+                    }
+                    throw unexpected();
+            }
+        }
+
+        String readString(boolean isKey) throws ParseException {
+            expect('"');
+            int first = pos;
+            int hash = 0;
+            while (pos < end) {
+                byte c = data[pos];
+                if (c == '"') {
+                    String value = (isKey ? key(data, first, pos, hash) : new String(data, first, pos - first, StandardCharsets.UTF_8));
+                    pos++;
+                    return value;
+                } else if (c == '\\') {
+                    pos = first;
+                    return readEscapedString();
+                }
+                hash = 31 * hash + c;
+                pos++;
+            }
+            throw unexpected();
+        }
+
+        /**
+         * Decode a string containing escapes, UTF-8 sequences are decoded as they are copied.
+         */
+        private String readEscapedString() throws ParseException {
+            if (builder == null) {
+                builder = new StringBuilder(64);
+            }
+            builder.setLength(0);
+            while (pos < end) {
+                int c = data[pos++];
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c >= 0 && c != '\\') {
+                    builder.append((char) c);
+                    continue;
+                } else if (c < 0) {
+                    pos--;
+                    builder.appendCodePoint(readCodePoint());
+                    continue;
+                }
+                if (pos >= end) {
+                    break;
+                }
+                byte escape = data[pos++];
+                switch (escape) {
+                    case '"': builder.append('"'); break;
+                    case '\\': builder.append('\\'); break;
+                    case '/': builder.append('/'); break;
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > end) {
+                            throw unexpected();
+                        }
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(data[pos], 16);
+                            if (digit < 0) {
+                                throw unexpected();
+                            }
+                            code = (code << 4) | digit;
+                            pos++;
+                        }
+                        builder.append((char) code);
+                        break;
+                    default:
+                        pos--;
+                        throw unexpected();
+                }
+            }
+            throw unexpected();
+        }
+
+        /**
+         * Decode a multi byte UTF-8 sequence, malformed sequences decode to the replacement character.
+         */
+        private int readCodePoint() {
+            int b = data[pos++] & 0xFF;
+            int count;
+            int codePoint;
+            if (b >= 0xF0 && b <= 0xF4) {
+                count = 3;
+                codePoint = b & 0x07;
+            } else if (b >= 0xE0) {
+                count = 2;
+                codePoint = b & 0x0F;
+            } else if (b >= 0xC2 && b < 0xE0) {
+                count = 1;
+                codePoint = b & 0x1F;
+            } else {
+                return 0xFFFD;
+            }
+            for (int i = 0; i < count; i++) {
+                if (pos >= end || (data[pos] & 0xC0) != 0x80) {
+                    return 0xFFFD;
+                }
+                codePoint = (codePoint << 6) | (data[pos++] & 0x3F);
+            }
+            return (codePoint > Character.MAX_CODE_POINT ? 0xFFFD : codePoint);
+        }
+
+        private Object readNumber() throws ParseException {
+            int first = pos;
+            boolean integer = true;
+            if (data[pos] == '-') {
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (pos < end) {
+                byte c = data[pos];
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    digits++;
+                    pos++;
+                } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    integer = false;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0) {
+                pos = first;
+                throw unexpected();
+            }
+            if (integer && digits < 19) {
+                return (data[first] == '-' ? -value : value);
+            }
+            String text = new String(data, first, pos - first, StandardCharsets.US_ASCII);
+            try {
+                return (integer ? (Object) Long.valueOf(text) : (Object) Double.valueOf(text));
+            } catch (NumberFormatException ex) {
+                if (integer) {
+                    return Double.valueOf(text);
+                }
+                pos = first;
+                throw unexpected();
+            }
+        }
+
+        private void readLiteral(byte[] literal) throws ParseException {
+            if (pos + literal.length > end) {
+                throw unexpected();
+            }
+            for (byte b : literal) {
+                if (data[pos] != b) {
+                    throw unexpected();
+                }
+                pos++;
+            }
+        }
+
+        private void expect(char c) throws ParseException {
+            if (pos >= end || data[pos] != c) {
+                throw unexpected();
+            }
+            pos++;
+        }
+
+        private byte peek() throws ParseException {
+            if (pos >= end) {
+                throw unexpected();
+            }
+            return data[pos];
+        }
+
+        void skipWhitespace() {
+            while (pos < end) {
+                byte c = data[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        ParseException unexpected() {
+            if (pos >= end) {
+                return new ParseException(pos - start, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+            }
+            return new ParseException(pos - start, ParseException.ERROR_UNEXPECTED_CHAR, (char) (data[pos] & 0xFF));
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.json;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * JSON decoding engine used by the domain classes. Implementations must be thread safe and produce the same
+ * tree as json-simple: {@link org.json.simple.JSONObject}, {@link org.json.simple.JSONArray}, String, Long,
+ * Double, Boolean and null.
+ * @author klee@serena.com
+ */
+public interface JsonCodec {
+
+    /**
+     * @return the name the codec is selected by, e.g. "json-simple"
+     */
+    String getName();
+
+    /**
+     * Parse a JSON document.
+     *
+     * @param json  the JSON text
+     * @return the root value of the document
+     * @throws ParseException if the text is not valid JSON
+     */
+    Object parse(String json) throws ParseException;
+
+    /**
+     * Parse a UTF-8 encoded JSON document without decoding it to a String first.
+     *
+     * @param data  the buffer holding the document
+     * @param offset  the offset of the document in the buffer
+     * @param length  the length of the document in bytes
+     * @return the root value of the document
+     * @throws ParseException if the data is not valid JSON
+     */
+    Object parse(byte[] data, int offset, int length) throws ParseException;
+
+}
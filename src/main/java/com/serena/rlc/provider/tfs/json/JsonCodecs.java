@@ -0,0 +1,72 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.json;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide selection of the {@link JsonCodec} used to decode TFS responses.
+ * @author klee@serena.com
+ */
+public final class JsonCodecs {
+    private static final Logger logger = LoggerFactory.getLogger(JsonCodecs.class);
+
+    public static final String DEFAULT_CODEC = SimpleJsonCodec.NAME;
+
+    private static volatile JsonCodec codec = new SimpleJsonCodec();
+
+    private JsonCodecs() {
+    }
+
+    /**
+     * @return the codec currently selected
+     */
+    public static JsonCodec get() {
+        return codec;
+    }
+
+    /**
+     * Select the codec by name: "json-simple" or "fast". Other implementations can only be installed through
+     * {@link #set(JsonCodec)}, a configured name is never used to load a class.
+     * An empty name selects the default codec and an unknown name leaves the current codec unchanged.
+     *
+     * @param name  the codec name
+     */
+    public static void select(String name) {
+        if (StringUtils.isBlank(name)) {
+            name = DEFAULT_CODEC;
+        }
+        name = name.trim();
+        if (name.equalsIgnoreCase(codec.getName())) {
+            return;
+        }
+
+        JsonCodec selected = null;
+        if (name.equalsIgnoreCase(SimpleJsonCodec.NAME)) {
+            selected = new SimpleJsonCodec();
+        } else if (name.equalsIgnoreCase(FastJsonCodec.NAME)) {
+            selected = new FastJsonCodec();
+        } else {
+            logger.warn("Unknown JSON codec \"{}\", using {}", name, codec.getName());
+            return;
+        }
+        logger.debug("Using JSON codec {}", selected.getName());
+        codec = selected;
+    }
+
+    public static void set(JsonCodec newCodec) {
+        if (newCodec != null) {
+            codec = newCodec;
+        }
+    }
+
+}
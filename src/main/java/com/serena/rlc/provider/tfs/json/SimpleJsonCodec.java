@@ -0,0 +1,48 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.json;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON codec backed by the json-simple parser, kept for compatibility.
+ * @author klee@serena.com
+ */
+public class SimpleJsonCodec implements JsonCodec {
+
+    public static final String NAME = "json-simple";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Object parse(String json) throws ParseException {
+        // JSONParser is not thread safe and cheap to create
+        return new JSONParser().parse(json);
+    }
+
+    @Override
+    public Object parse(byte[] data, int offset, int length) throws ParseException {
+        try {
+            return new JSONParser().parse(new InputStreamReader(new ByteArrayInputStream(data, offset, length), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_EXCEPTION, ex);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TFSIntMap} against a {@link HashMap}.
+ * @author klee@serena.com
+ */
+public class TFSIntMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        TFSIntMap<String> map = new TFSIntMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-5, "minus five"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals(3, map.size());
+        assertEquals("uno", map.get(1));
+        assertEquals("zero", map.get(0));
+        assertEquals("minus five", map.get(-5));
+        assertNull(map.get(2));
+        assertTrue(map.containsKey(0));
+
+        assertEquals("zero", map.remove(0));
+        assertNull(map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals("uno", map.put(1, null));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(-5));
+    }
+
+    @Test
+    public void testKeys() {
+        TFSIntMap<String> map = new TFSIntMap<>(2);
+        for (int id = 100; id < 200; id++) {
+            map.put(id, Integer.toString(id));
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertEquals(100, keys.length);
+        assertEquals(100, keys[0]);
+        assertEquals(199, keys[99]);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(42);
+        TFSIntMap<Integer> map = new TFSIntMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            // a small key range makes probe sequences collide and removals shift entries back
+            int key = random.nextInt(512) * (random.nextBoolean() ? 1 : 1024);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = 0; key < 512 * 1024; key += 512) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.keys().length);
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TFSIntSet} against a {@link HashSet}.
+ * @author klee@serena.com
+ */
+public class TFSIntSetTest {
+
+    @Test
+    public void testAddRemove() {
+        TFSIntSet set = new TFSIntSet();
+        assertTrue(set.add(7));
+        assertFalse(set.add(7));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(8));
+
+        int[] members = set.toArray();
+        Arrays.sort(members);
+        assertArrayEquals(new int[] { -1, 0, 7 }, members);
+
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        assertTrue(set.remove(7));
+        assertEquals(1, set.size());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(-1));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(42);
+        TFSIntSet set = new TFSIntSet(4);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(1024) - 16;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), set.remove(key));
+            } else {
+                assertEquals(expected.add(key), set.add(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (int key = -16; key < 1008; key++) {
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+        assertEquals(expected.size(), set.toArray().length);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the WIQL rewriting of {@link TFSQuerySync}.
+ * @author klee@serena.com
+ */
+public class TFSQuerySyncTest {
+
+    private static final String SELECT = "SELECT [System.Id] FROM WorkItems";
+
+    @Test
+    public void testAddWhere() {
+        assertEquals(SELECT + " WHERE [System.Id] > 10",
+                TFSQuerySync.addCondition(SELECT, "[System.Id] > 10", null));
+        assertEquals(SELECT + " WHERE [System.Id] > 10 ORDER BY [System.Id]",
+                TFSQuerySync.addCondition(SELECT + " ", "[System.Id] > 10", "[System.Id]"));
+    }
+
+    @Test
+    public void testExtendWhere() {
+        assertEquals(SELECT + " WHERE ([System.State] = 'Active' OR [System.State] = 'New') AND [System.Id] > 10",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.State] = 'Active' OR [System.State] = 'New'",
+                        "[System.Id] > 10", null));
+        assertEquals(SELECT + " where ([System.State] = 'Active') AND [System.Id] > 10",
+                TFSQuerySync.addCondition(SELECT + " where [System.State] = 'Active'", "[System.Id] > 10", null));
+    }
+
+    @Test
+    public void testKeepOrderBy() {
+        assertEquals(SELECT + " WHERE ([System.State] = 'Active') AND [System.Id] > 10 ORDER BY [System.Title] DESC",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.State] = 'Active' ORDER BY [System.Title] DESC",
+                        "[System.Id] > 10", null));
+        assertEquals(SELECT + " WHERE [System.Id] > 10 Order  By [System.Title]",
+                TFSQuerySync.addCondition(SELECT + " Order  By [System.Title]", "[System.Id] > 10", null));
+    }
+
+    @Test
+    public void testReplaceOrderBy() {
+        assertEquals(SELECT + " WHERE ([System.State] = 'Active') AND [System.Id] > 10 ORDER BY [System.Id]",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.State] = 'Active' ORDER BY [System.Title] DESC",
+                        "[System.Id] > 10", "[System.Id]"));
+    }
+
+    @Test
+    public void testLiteralsAreMasked() {
+        assertEquals(SELECT + " WHERE ([System.Title] = 'where to order by' AND [System.Tags] CONTAINS \"asof where\")"
+                        + " AND [System.Id] > 10 ORDER BY [System.Id]",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.Title] = 'where to order by' AND [System.Tags] CONTAINS \"asof where\""
+                        + " ORDER BY [System.Id]", "[System.Id] > 10", null));
+        assertEquals(SELECT + " WHERE [System.Id] > 10 ORDER BY [System.Id]",
+                TFSQuerySync.addCondition(SELECT + " ORDER BY [System.Id]", "[System.Id] > 10", null));
+        assertEquals(SELECT + " WHERE ([System.Title] = 'it''s where it ends') AND [System.Id] > 10",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.Title] = 'it''s where it ends'", "[System.Id] > 10", null));
+        assertEquals(SELECT + " WHERE ([System.Title] = 'from WorkItemLinks asof') AND [System.Id] > 10",
+                TFSQuerySync.addCondition(SELECT + " WHERE [System.Title] = 'from WorkItemLinks asof'", "[System.Id] > 10", null));
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNull(TFSQuerySync.addCondition(SELECT + " WHERE [System.State] = 'Active' ASOF '2016-03-01T00:00:00Z'",
+                "[System.Id] > 10", null));
+        assertNull(TFSQuerySync.addCondition("SELECT [System.Id] FROM WorkItemLinks WHERE [Source].[System.State] = 'Active'",
+                "[System.Id] > 10", null));
+        assertNull(TFSQuerySync.addCondition(null, "[System.Id] > 10", null));
+    }
+
+    @Test
+    public void testAddChangedSince() {
+        assertEquals(SELECT + " WHERE ([System.State] = 'Active') AND [System.ChangedDate] > '2016-03-01T10:15:30.123Z'",
+                TFSQuerySync.addChangedSince(SELECT + " WHERE [System.State] = 'Active'", "2016-03-01T10:15:30.123Z"));
+    }
+
+}
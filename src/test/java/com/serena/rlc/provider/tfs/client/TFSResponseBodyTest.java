@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TFSResponseBody#truncateToLastElement()} on list responses cut off at the size limit.
+ * @author klee@serena.com
+ */
+public class TFSResponseBodyTest {
+
+    @Test
+    public void testTruncateValueList() throws ParseException {
+        TFSResponseBody body = body("{\"count\":3,\"value\":[{\"id\":1,\"fields\":{\"System.Title\":\"One\"}},"
+                + "{\"id\":2,\"fields\":{\"System.Title\":\"Two\"}},{\"id\":3,\"fields\":{\"System.Ti");
+
+        assertTrue(body.truncateToLastElement());
+        JSONArray value = (JSONArray) ((JSONObject) body.parse()).get("value");
+        assertEquals(2, value.size());
+        assertEquals(2L, ((JSONObject) value.get(1)).get("id"));
+    }
+
+    @Test
+    public void testTruncateRootList() throws ParseException {
+        TFSResponseBody body = body("[{\"id\":1},{\"id\":2},{\"id\":3,\"name\":\"Thr");
+
+        assertTrue(body.truncateToLastElement());
+        assertEquals(2, ((JSONArray) body.parse()).size());
+    }
+
+    @Test
+    public void testBracketsInStrings() throws ParseException {
+        TFSResponseBody body = body("{\"value\":[{\"title\":\"closes }] early\"},{\"title\":\"say \\\"}]\\\" \\\\\"},"
+                + "{\"title\":\"still open }]");
+
+        assertTrue(body.truncateToLastElement());
+        JSONArray value = (JSONArray) ((JSONObject) body.parse()).get("value");
+        assertEquals(2, value.size());
+        assertEquals("closes }] early", ((JSONObject) value.get(0)).get("title"));
+        assertEquals("say \"}]\" \\", ((JSONObject) value.get(1)).get("title"));
+    }
+
+    @Test
+    public void testNestedElementsAreNotCut() throws ParseException {
+        TFSResponseBody body = body("{\"value\":[{\"id\":1,\"relations\":[{\"rel\":\"a\"},{\"rel\":\"b\"}]},"
+                + "{\"id\":2,\"relations\":[{\"rel\":\"c\"},{\"rel\":");
+
+        assertTrue(body.truncateToLastElement());
+        JSONArray value = (JSONArray) ((JSONObject) body.parse()).get("value");
+        assertEquals(1, value.size());
+        assertEquals(2, ((JSONArray) ((JSONObject) value.get(0)).get("relations")).size());
+    }
+
+    @Test
+    public void testGrowsForClosers() throws ParseException {
+        TFSResponseBody body = body("{\"value\":[{\"id\":1}");
+
+        assertTrue(body.truncateToLastElement());
+        assertEquals("{\"value\":[{\"id\":1}]}", body.toString());
+        assertEquals(1, ((JSONArray) ((JSONObject) body.parse()).get("value")).size());
+    }
+
+    @Test
+    public void testNoCompleteElement() {
+        String json = "{\"count\":3,\"value\":[{\"id\":1,\"fields\":{\"System.Title\":\"On";
+        TFSResponseBody body = body(json);
+
+        assertFalse(body.truncateToLastElement());
+        assertEquals(json, body.toString());
+
+        assertFalse(body("{\"count\":3,\"value\":[1,2,3").truncateToLastElement());
+        assertFalse(body("{\"fields\":{\"System.Id\":1},\"value\":[").truncateToLastElement());
+    }
+
+    @Test
+    public void testUnbalanced() {
+        assertFalse(body("]}").truncateToLastElement());
+        assertFalse(body("").truncateToLastElement());
+    }
+
+    //
+
+    private static TFSResponseBody body(String json) {
+        return TFSResponseBody.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.client;
+
+import com.serena.rlc.provider.tfs.exception.TFSClientException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of parsing and binding {@link TFSWiqlTemplate}.
+ * @author klee@serena.com
+ */
+public class TFSWiqlTemplateTest {
+
+    private static final String TEMPLATE = "SELECT [System.Id] FROM WorkItems WHERE [System.TeamProject] = {project}" +
+            "{? AND [System.AreaPath] UNDER {areaPath}?}{? AND [System.State] IN ({state*})?} ORDER BY [System.Id]";
+
+    @Test
+    public void testBind() throws TFSClientException {
+        assertEquals("select [system.id] from workitems where [system.teamproject] = 'Release' and [system.areapath] under 'Release\\Web'" +
+                        " and [system.state] in ('Active', 'New') order by [system.id]",
+                TFSWiqlTemplate.compile(TEMPLATE).bind(parameters("project", "Release", "areaPath", "Release\\Web", "state", "Active,New")));
+    }
+
+    @Test
+    public void testQuotesAreEscaped() throws TFSClientException {
+        TFSWiqlTemplate template = TFSWiqlTemplate.compile("SELECT [System.Id] FROM WorkItems WHERE [System.Title] = {title}");
+
+        assertEquals("select [system.id] from workitems where [system.title] = 'O''Brien'",
+                template.bind(parameters("title", "O'Brien")));
+        assertEquals("select [system.id] from workitems where [system.title] = 'x'' OR [System.Id] > 0 OR ''a'",
+                template.bind(parameters("title", "x' OR [System.Id] > 0 OR 'a")));
+        assertEquals("select [system.id] from workitems where [system.title] = '\"quoted\"'",
+                template.bind(parameters("title", "\"quoted\"")));
+    }
+
+    @Test
+    public void testList() throws TFSClientException {
+        TFSWiqlTemplate template = TFSWiqlTemplate.compile("SELECT [System.Id] FROM WorkItems WHERE [System.State] IN ({state*})");
+
+        assertEquals("select [system.id] from workitems where [system.state] in ('Active', 'New', 'Won''t Fix')",
+                template.bind(parameters("state", " Active ,New,, ,Won't Fix")));
+        assertEquals("select [system.id] from workitems where [system.state] in ('Active')",
+                template.bind(parameters("state", "Active")));
+    }
+
+    @Test
+    public void testSingleValueIsNotSplit() throws TFSClientException {
+        assertEquals("select [system.id] from workitems where [system.tags] contains 'web, ui'",
+                TFSWiqlTemplate.compile("SELECT [System.Id] FROM WorkItems WHERE [System.Tags] CONTAINS {tags}")
+                        .bind(parameters("tags", "web, ui")));
+    }
+
+    @Test
+    public void testOptionalClausesAreDropped() throws TFSClientException {
+        TFSWiqlTemplate template = TFSWiqlTemplate.compile(TEMPLATE);
+        String expected = "select [system.id] from workitems where [system.teamproject] = 'Release' order by [system.id]";
+
+        assertEquals(expected, template.bind(parameters("project", "Release")));
+        assertEquals(expected, template.bind(parameters("project", "Release", "areaPath", "  ", "state", ", ,")));
+        assertEquals("select [system.id] from workitems where [system.teamproject] = 'Release' and [system.state] in ('Done')" +
+                " order by [system.id]", template.bind(parameters("project", "Release", "state", "Done")));
+    }
+
+    @Test
+    public void testClauseNeedsAllParameters() throws TFSClientException {
+        TFSWiqlTemplate template = TFSWiqlTemplate.compile("SELECT [System.Id] FROM WorkItems WHERE [System.Id] > 0" +
+                "{? AND [System.ChangedDate] >= {from} AND [System.ChangedDate] < {to}?}");
+
+        assertEquals("select [system.id] from workitems where [system.id] > 0",
+                template.bind(parameters("from", "2016-03-01")));
+        assertEquals("select [system.id] from workitems where [system.id] > 0 and [system.changeddate] >= '2016-03-01'" +
+                " and [system.changeddate] < '2016-04-01'", template.bind(parameters("from", "2016-03-01", "to", "2016-04-01")));
+    }
+
+    @Test
+    public void testLiteralsAreNotNormalized() throws TFSClientException {
+        assertEquals("select [system.id] from workitems where [system.title] = 'Mixed  CASE {notAParameter} {?' and" +
+                        " [system.tags] contains \"It''s  Web\" and [system.reason] = 'Won''t {Fix}'",
+                TFSWiqlTemplate.compile("SELECT  [System.Id]\n FROM WorkItems\tWHERE [System.Title] = 'Mixed  CASE {notAParameter} {?'" +
+                        " AND [System.Tags] CONTAINS \"It''s  Web\" AND [System.Reason] = 'Won''t {Fix}'").bind(null));
+    }
+
+    @Test
+    public void testNormalizedText() throws TFSClientException {
+        Map<String, String> parameters = parameters("project", "Release");
+
+        assertEquals(TFSWiqlTemplate.compile("SELECT [System.Id] FROM WorkItems WHERE [System.TeamProject] = {project}").bind(parameters),
+                TFSWiqlTemplate.compile("  select   [System.ID]\r\nfrom WORKITEMS where [system.teamproject] = {project} ").bind(parameters));
+    }
+
+    @Test
+    public void testCompiledTemplatesAreReused() throws TFSClientException {
+        assertSame(TFSWiqlTemplate.compile(TEMPLATE), TFSWiqlTemplate.compile(TEMPLATE));
+        assertEquals(TEMPLATE, TFSWiqlTemplate.compile(TEMPLATE).getText());
+    }
+
+    @Test
+    public void testMissingParameter() throws TFSClientException {
+        TFSWiqlTemplate template = TFSWiqlTemplate.compile(TEMPLATE);
+        assertRejected(template, parameters("areaPath", "Release\\Web"));
+        assertRejected(template, parameters("project", " "));
+        assertRejected(template, null);
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        assertInvalid("");
+        assertInvalid("  ");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Title] = 'open");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Title] = \"open");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Title] = 'it''s");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Id] > 0 {? AND {? [System.State] = {state} ?}?}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Id] > 0 {? AND [System.State] = {state}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.Id] > 0 AND [System.State] = {state} ?}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.State] = {}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.State] = {*}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.State] = {1state}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.State] = {state name}");
+        assertInvalid("SELECT [System.Id] FROM WorkItems WHERE [System.State] = {state");
+    }
+
+    //
+
+    private static Map<String, String> parameters(String... namesAndValues) {
+        Map<String, String> parameters = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return parameters;
+    }
+
+    private static void assertRejected(TFSWiqlTemplate template, Map<String, String> parameters) {
+        try {
+            template.bind(parameters);
+            fail("Bound " + parameters);
+        } catch (TFSClientException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("project"));
+        }
+    }
+
+    private static void assertInvalid(String text) {
+        try {
+            TFSWiqlTemplate.compile(text);
+            fail("Compiled " + text);
+        } catch (TFSClientException ex) {
+            // expected
+        }
+    }
+
+}
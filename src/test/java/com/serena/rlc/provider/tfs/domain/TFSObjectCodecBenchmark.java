@@ -0,0 +1,157 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the encode and decode time and the encoded size of {@link TFSObjectCodec} with Java serialization on a
+ * list of sample Work Items and Releases. This is not a unit test and is not run by the build, run it from the test
+ * classpath with optional "count" (of each type) and "iterations" arguments, see {@link TFSObjectCodecTest} for the
+ * tests of the format.
+ * @author klee@serena.com
+ */
+public class TFSObjectCodecBenchmark {
+
+    static public void main(String[] args) throws Exception {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 300);
+        int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+
+        List<TFSObject> objects = new ArrayList<>(count * 2);
+        objects.addAll(createWorkItems(count));
+        objects.addAll(createReleases(count));
+        checkRoundTrip((WorkItem) objects.get(0));
+        int total = objects.size();
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "Warming up..." : "Results for " + count + " work items and " + count + " releases x " + iterations + ":");
+            for (boolean compress : new boolean[] { false, true }) {
+                TFSObjectCodec.Output out = new TFSObjectCodec.Output(64 * 1024, compress);
+                long encodeTime = 0, decodeTime = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    out.reset();
+                    out.writeVarInt(TFSObjectCodec.VERSION);
+                    out.writeList(objects);
+                    byte[] bytes = out.toByteArray();
+                    encodeTime += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    TFSObjectCodec.Input in = new TFSObjectCodec.Input(ByteBuffer.wrap(bytes));
+                    in.readVersion();
+                    if (in.readList().size() != total) throw new IllegalStateException("Round trip failed");
+                    decodeTime += System.nanoTime() - start;
+                }
+                if (round > 0) {
+                    System.out.println(String.format("  codec%s: %d bytes, encode %d ns/object, decode %d ns/object",
+                            (compress ? " (compressed)" : ""), out.size(), encodeTime / iterations / total, decodeTime / iterations / total));
+                }
+            }
+
+            long encodeTime = 0, decodeTime = 0;
+            int size = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(new ArrayList<>(objects));
+                }
+                encodeTime += System.nanoTime() - start;
+                size = bytes.size();
+                start = System.nanoTime();
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    if (((List<?>) ois.readObject()).size() != total) throw new IllegalStateException("Round trip failed");
+                }
+                decodeTime += System.nanoTime() - start;
+            }
+            if (round > 0) {
+                System.out.println(String.format("  java serialization: %d bytes, encode %d ns/object, decode %d ns/object",
+                        size, encodeTime / iterations / total, decodeTime / iterations / total));
+            }
+        }
+    }
+
+    //
+
+    private static List<WorkItem> createWorkItems(int count) {
+        List<WorkItem> workItems = new ArrayList<>(count);
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            description.append("<div>Steps to reproduce the problem in step ").append(i).append(" of the release</div>");
+        }
+        Identity owner = Identity.valueOf("6c3f8a2e-0b1d-4c59-9e7a-3d2f1b0a9c84", "Kevin Lee", "SERENA\\klee");
+        owner.setMail("klee@serena.com");
+        for (int i = 0; i < count; i++) {
+            // distinct descriptions, Java serialization would otherwise write a shared String only once
+            WorkItem wi = new WorkItem(String.valueOf(1000 + i), "Work item number " + i, description.toString() + i,
+                    (i % 3 == 0 ? "Active" : "Resolved"), "https://tfs.example.com/DefaultCollection/_apis/wit/workItems/" + (1000 + i));
+            wi.setRev((long) (i % 7));
+            wi.setProject("Release Project");
+            wi.setType("Bug");
+            wi.setSeverity("2 - High");
+            wi.setAssignedToIdentity(owner);
+            wi.setCreatedByIdentity(owner);
+            wi.setChangedBy("Build Service <SERENA\\build>");
+            wi.setDateCreated("2016-03-01T10:15:30.123Z");
+            wi.setDateChanged("2016-03-02T11:20:40.456Z");
+            wi.setAreaPath("Release Project\\Area");
+            wi.setIterationPath("Release Project\\Iteration 1");
+            wi.setReason("New");
+            workItems.add(wi);
+        }
+        return workItems;
+    }
+
+    private static List<Release> createReleases(int count) {
+        List<Release> releases = new ArrayList<>(count);
+        Project project = new Project("3b4f8c1e-9d2a-4e6b-8f0c-1a2b3c4d5e6f", "Release Project");
+        for (int i = 0; i < count; i++) {
+            ReleaseDefinition definition = new ReleaseDefinition(1 + i % 10, "Web Site " + (i % 10));
+            definition.setProject(project);
+            definition.setEnvironments(createEnvironments(100 + (i % 10) * 3, "notStarted"));
+            Release release = new Release(5000 + i, "Release-" + i);
+            release.setDescription("Release " + i + " of the web site");
+            release.setState(i % 4 == 0 ? "abandoned" : "active");
+            release.setUrl("https://tfs.example.com/DefaultCollection/Release%20Project/_apis/release/releases/" + (5000 + i));
+            release.setReleaseDefinition(definition);
+            release.setEnvironments(createEnvironments(10000 + i * 3, (i % 2 == 0 ? "succeeded" : "inProgress")));
+            releases.add(release);
+        }
+        return releases;
+    }
+
+    private static List<Environment> createEnvironments(int firstId, String state) {
+        List<Environment> environments = new ArrayList<>(3);
+        String[] names = { "Test", "Staging", "Production" };
+        for (int i = 0; i < names.length; i++) {
+            Environment environment = new Environment(firstId + i, names[i]);
+            environment.setState(state);
+            environments.add(environment);
+        }
+        return environments;
+    }
+
+    private static void checkRoundTrip(WorkItem workItem) throws Exception {
+        Identity expected = workItem.getAssignedToIdentity();
+        Identity.clear();
+        WorkItem decoded = (WorkItem) TFSObjectCodec.decode(TFSObjectCodec.encode(workItem, false));
+        Identity actual = decoded.getAssignedToIdentity();
+        if (actual == null || !expected.getId().equals(actual.getId()) || !expected.getUniqueName().equals(actual.getUniqueName())
+                || !expected.getMail().equals(actual.getMail()) || actual != decoded.getCreatedByIdentity()) {
+            throw new IllegalStateException("Identity round trip failed: " + actual);
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.domain;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests of {@link TFSObjectCodec}, the storage format of the metadata snapshots.
+ * @author klee@serena.com
+ */
+public class TFSObjectCodecTest {
+
+    @After
+    public void clearIdentities() {
+        Identity.clear();
+    }
+
+    @Test
+    public void testTFSObject() throws IOException {
+        TFSObject obj = new TFSObject("7", "Object", "An object");
+        obj.setRev(3L);
+        obj.setCreated(1457000000000L);
+        obj.setState("active");
+        obj.setUrl("https://tfs.example.com/DefaultCollection/_apis/objects/7");
+
+        TFSObject decoded = roundTrip(obj);
+        assertEquals(TFSObject.class, decoded.getClass());
+        assertBase(obj, decoded);
+    }
+
+    @Test
+    public void testProject() throws IOException {
+        Project project = new Project("3b4f8c1e-9d2a-4e6b-8f0c-1a2b3c4d5e6f", "Release Project");
+        project.setDescription("The release project");
+
+        Project decoded = (Project) roundTrip(project);
+        assertBase(project, decoded);
+        assertFalse(decoded.hasNumericId());
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        Query query = new Query("9a8b7c6d-5e4f-3a2b-1c0d-9e8f7a6b5c4d", "Active Bugs");
+        query.setPath("Shared Queries/Bugs/Active Bugs");
+        Query folder = new Query("1a2b3c4d-5e6f-7a8b-9c0d-1e2f3a4b5c6d", "Bugs");
+        folder.setIsFolder(true);
+
+        Query decoded = (Query) roundTrip(query);
+        assertBase(query, decoded);
+        assertEquals(query.getPath(), decoded.getPath());
+        assertFalse(decoded.getIsFolder());
+
+        Query decodedFolder = (Query) roundTrip(folder);
+        assertNull(decodedFolder.getPath());
+        assertTrue(decodedFolder.getIsFolder());
+    }
+
+    @Test
+    public void testBuildDefinitionAndQueue() throws IOException {
+        BuildDefinition definition = new BuildDefinition(12, "Nightly");
+        definition.setQuality("definition");
+        definition.setType("build");
+        BuildQueue queue = new BuildQueue(4, "Hosted");
+        queue.setType("agentPool");
+
+        BuildDefinition decodedDefinition = (BuildDefinition) roundTrip(definition);
+        assertBase(definition, decodedDefinition);
+        assertEquals(12, decodedDefinition.getNumericId());
+        assertEquals("definition", decodedDefinition.getQuality());
+        assertEquals("build", decodedDefinition.getType());
+
+        BuildQueue decodedQueue = (BuildQueue) roundTrip(queue);
+        assertBase(queue, decodedQueue);
+        assertEquals("agentPool", decodedQueue.getType());
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        Build build = new Build(1234, "20160301.1");
+        build.setBuildResult("succeeded");
+        build.setState("completed");
+        build.setBuildDefinition(new BuildDefinition(12, "Nightly"));
+
+        Build decoded = (Build) roundTrip(build);
+        assertBase(build, decoded);
+        assertEquals("20160301.1", decoded.getBuildNumber());
+        assertEquals("succeeded", decoded.getBuildResult());
+        assertEquals(12, decoded.getBuildDefinition().getNumericId());
+        assertEquals("Nightly", decoded.getBuildDefinition().getTitle());
+    }
+
+    @Test
+    public void testReleaseDefinitionAndRelease() throws IOException {
+        ReleaseDefinition definition = new ReleaseDefinition(5, "Web Site");
+        definition.setProject(new Project("3b4f8c1e-9d2a-4e6b-8f0c-1a2b3c4d5e6f", "Release Project"));
+        definition.setEnvironments(Arrays.asList(new Environment(21, "Test"), new Environment(22, "Production")));
+        Release release = new Release(77, "Release-77");
+        release.setReleaseDefinition(definition);
+        Environment environment = new Environment(31, "Test");
+        environment.setState("inProgress");
+        release.setEnvironments(Collections.singletonList(environment));
+
+        ReleaseDefinition decodedDefinition = (ReleaseDefinition) roundTrip(definition);
+        assertBase(definition, decodedDefinition);
+        assertEquals("Release Project", decodedDefinition.getProject().getTitle());
+        assertEquals(2, decodedDefinition.getEnvironments().size());
+        assertEquals(22, decodedDefinition.getEnvironments().get(1).getNumericId());
+        assertEquals("Production", decodedDefinition.getEnvironments().get(1).getTitle());
+
+        Release decodedRelease = (Release) roundTrip(release);
+        assertBase(release, decodedRelease);
+        assertEquals(5, decodedRelease.getReleaseDefinition().getNumericId());
+        assertEquals(1, decodedRelease.getEnvironments().size());
+        assertBase(environment, decodedRelease.getEnvironments().get(0));
+    }
+
+    @Test
+    public void testEnvironment() throws IOException {
+        Environment environment = new Environment(31, "Test");
+        environment.setState("succeeded");
+
+        Environment decoded = (Environment) roundTrip(environment);
+        assertBase(environment, decoded);
+    }
+
+    @Test
+    public void testWorkItem() throws IOException {
+        WorkItem workItem = createWorkItem(1001);
+        workItem.setTags("release; web");
+        workItem.setEffort("3");
+        workItem.setHeavyFieldsLoaded(true);
+
+        WorkItem decoded = (WorkItem) roundTrip(workItem);
+        assertBase(workItem, decoded);
+        assertEquals(workItem.getProject(), decoded.getProject());
+        assertEquals(workItem.getSeverity(), decoded.getSeverity());
+        assertEquals(workItem.getType(), decoded.getType());
+        assertEquals(workItem.getDateCreated(), decoded.getDateCreated());
+        assertEquals(workItem.getDateChanged(), decoded.getDateChanged());
+        assertEquals(workItem.getEffort(), decoded.getEffort());
+        assertEquals(workItem.getReason(), decoded.getReason());
+        assertEquals(workItem.getAreaPath(), decoded.getAreaPath());
+        assertEquals(workItem.getIterationPath(), decoded.getIterationPath());
+        assertEquals(workItem.getTags(), decoded.getTags());
+        assertTrue(decoded.isHeavyFieldsLoaded());
+        assertEquals(workItem.getAssignedTo(), decoded.getAssignedTo());
+        assertEquals(workItem.getCreatedBy(), decoded.getCreatedBy());
+        assertEquals(workItem.getChangedBy(), decoded.getChangedBy());
+    }
+
+    @Test
+    public void testWorkItemType() throws IOException {
+        WorkItemType type = new WorkItemType("Bug");
+        type.addState("New", WorkItemType.PROPOSED);
+        type.addState("Active", WorkItemType.IN_PROGRESS);
+        type.addState("Custom", null);
+        WorkItemType untyped = new WorkItemType("Task");
+
+        WorkItemType decoded = (WorkItemType) roundTrip(type);
+        assertEquals("Bug", decoded.getTitle());
+        assertEquals(Arrays.asList("New", "Active", "Custom"), Arrays.asList(decoded.getStateCategories().keySet().toArray()));
+        assertEquals(WorkItemType.PROPOSED, decoded.getStateCategories().get("New"));
+        assertEquals(WorkItemType.IN_PROGRESS, decoded.getStateCategories().get("Active"));
+        assertNull(decoded.getStateCategories().get("Custom"));
+        assertTrue(decoded.getStateCategories().containsKey("Custom"));
+
+        assertTrue(((WorkItemType) roundTrip(untyped)).getStateCategories().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        TFSObjectCodec.encode(new TFSObject() { }, false);
+    }
+
+    @Test
+    public void testSharedStrings() throws IOException {
+        WorkItem first = createWorkItem(1001);
+        WorkItem second = createWorkItem(1002);
+        int single = encodeList(Collections.singletonList(first), false).length;
+        byte[] bytes = encodeList(Arrays.asList(first, second), false);
+
+        // the repeated project, type, paths and identities of the second Work Item are written as references
+        assertTrue("second Work Item takes " + (bytes.length - single) + " bytes", bytes.length - single < single / 2);
+
+        List<TFSObject> decoded = decodeList(bytes);
+        assertEquals(2, decoded.size());
+        for (int i = 0; i < 2; i++) {
+            WorkItem workItem = (WorkItem) decoded.get(i);
+            assertEquals(1001 + i, workItem.getNumericId());
+            assertEquals("Release Project", workItem.getProject());
+            assertEquals("Release Project\\Area", workItem.getAreaPath());
+            assertEquals("Kevin Lee <SERENA\\klee>", workItem.getAssignedTo());
+        }
+        assertSame(((WorkItem) decoded.get(0)).getAssignedToIdentity(), ((WorkItem) decoded.get(1)).getAssignedToIdentity());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidSharedReference() throws IOException {
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(16, false);
+        out.writeVarInt((5 << 2) | 2);
+        new TFSObjectCodec.Input(ByteBuffer.wrap(out.toByteArray())).readString();
+    }
+
+    @Test
+    public void testDeflatedStrings() throws IOException {
+        StringBuilder description = new StringBuilder();
+        while (description.length() <= TFSObjectCodec.COMPRESSION_THRESHOLD * 4) {
+            description.append("<div>Steps to reproduce the problem in the release</div>");
+        }
+        WorkItem workItem = new WorkItem("1001", "Work item", description.toString(), "Active", null);
+
+        byte[] literal = TFSObjectCodec.encode(workItem, false);
+        byte[] deflated = TFSObjectCodec.encode(workItem, true);
+        assertTrue(literal.length > description.length());
+        assertTrue(deflated.length < description.length() / 2);
+
+        assertEquals(description.toString(), TFSObjectCodec.decode(literal).getDescription());
+        assertEquals(description.toString(), TFSObjectCodec.decode(deflated).getDescription());
+    }
+
+    @Test
+    public void testShortStringsAreNotDeflated() throws IOException {
+        char[] chars = new char[TFSObjectCodec.COMPRESSION_THRESHOLD];
+        Arrays.fill(chars, 'a');
+        WorkItem workItem = new WorkItem("1001", "Work item", new String(chars), "Active", null);
+
+        assertEquals(TFSObjectCodec.encode(workItem, false).length, TFSObjectCodec.encode(workItem, true).length);
+        assertEquals(new String(chars), TFSObjectCodec.decode(TFSObjectCodec.encode(workItem, true)).getDescription());
+    }
+
+    @Test
+    public void testIdentityWithMail() throws IOException {
+        WorkItem workItem = new WorkItem("1001", "Work item", null, "Active", null);
+        Identity owner = Identity.valueOf("6c3f8a2e-0b1d-4c59-9e7a-3d2f1b0a9c84", "Kevin Lee", "SERENA\\klee");
+        owner.setMail("klee@serena.com");
+        workItem.setAssignedToIdentity(owner);
+        workItem.setCreatedByIdentity(owner);
+        byte[] bytes = TFSObjectCodec.encode(workItem, false);
+
+        Identity.clear();
+        WorkItem decoded = (WorkItem) TFSObjectCodec.decode(bytes);
+        Identity identity = decoded.getAssignedToIdentity();
+        assertNotSame(owner, identity);
+        assertEquals(owner.getId(), identity.getId());
+        assertEquals("Kevin Lee", identity.getDisplayName());
+        assertEquals("SERENA\\klee", identity.getUniqueName());
+        assertEquals("klee@serena.com", identity.getMail());
+        assertTrue(identity.isResolved());
+        assertSame(identity, decoded.getCreatedByIdentity());
+        assertNull(decoded.getChangedByIdentity());
+    }
+
+    @Test
+    public void testIdentityWithoutMail() throws IOException {
+        WorkItem workItem = new WorkItem("1001", "Work item", null, "Active", null);
+        workItem.setAssignedToIdentity(Identity.valueOf("Build Service <SERENA\\build>"));
+        Identity resolved = Identity.valueOf(null, "Release Manager", "SERENA\\release");
+        resolved.setMail(null);
+        workItem.setChangedByIdentity(resolved);
+        byte[] bytes = TFSObjectCodec.encode(workItem, false);
+
+        Identity.clear();
+        WorkItem decoded = (WorkItem) TFSObjectCodec.decode(bytes);
+        Identity unresolved = decoded.getAssignedToIdentity();
+        assertNull(unresolved.getId());
+        assertEquals("Build Service <SERENA\\build>", unresolved.getDisplay());
+        assertNull(unresolved.getMail());
+        assertFalse(unresolved.isResolved());
+
+        Identity changedBy = decoded.getChangedByIdentity();
+        assertEquals("Release Manager <SERENA\\release>", changedBy.getDisplay());
+        assertNull(changedBy.getMail());
+        assertTrue(changedBy.isResolved());
+    }
+
+    @Test
+    public void testUnknownVersion() {
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(16, false);
+        out.writeVarInt(TFSObjectCodec.VERSION + 1);
+        out.writeObject(new Project("3b4f8c1e-9d2a-4e6b-8f0c-1a2b3c4d5e6f", "Release Project"));
+        try {
+            TFSObjectCodec.decode(out.toByteArray());
+            fail("Decoded an unknown version");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(String.valueOf(TFSObjectCodec.VERSION + 1)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownObjectType() throws IOException {
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(16, false);
+        out.writeVarInt(TFSObjectCodec.VERSION);
+        out.writeVarInt(99);
+        TFSObjectCodec.decode(out.toByteArray());
+    }
+
+    @Test
+    public void testVarInts() {
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(16, false);
+        int[] ints = { 0, 1, 127, 128, 16384, Integer.MAX_VALUE, -1 };
+        long[] longs = { 0L, 1457000000000L, Long.MAX_VALUE, -1L };
+        for (int value : ints) out.writeVarInt(value);
+        for (long value : longs) out.writeVarLong(value);
+
+        TFSObjectCodec.Input in = new TFSObjectCodec.Input(ByteBuffer.wrap(out.toByteArray()));
+        for (int value : ints) assertEquals(value, in.readVarInt());
+        for (long value : longs) assertEquals(value, in.readVarLong());
+    }
+
+    //
+
+    private static TFSObject roundTrip(TFSObject obj) throws IOException {
+        return TFSObjectCodec.decode(TFSObjectCodec.encode(obj, true));
+    }
+
+    private static byte[] encodeList(List<? extends TFSObject> list, boolean compress) {
+        TFSObjectCodec.Output out = new TFSObjectCodec.Output(256, compress);
+        out.writeVarInt(TFSObjectCodec.VERSION);
+        out.writeList(list);
+        return out.toByteArray();
+    }
+
+    private static List<TFSObject> decodeList(byte[] bytes) throws IOException {
+        TFSObjectCodec.Input in = new TFSObjectCodec.Input(ByteBuffer.wrap(bytes));
+        in.readVersion();
+        return in.readList();
+    }
+
+    private static void assertBase(TFSObject expected, TFSObject actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getNumericId(), actual.getNumericId());
+        assertEquals(expected.getRev(), actual.getRev());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getCreated(), actual.getCreated());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getUrl(), actual.getUrl());
+    }
+
+    private static WorkItem createWorkItem(int id) {
+        WorkItem wi = new WorkItem(String.valueOf(id), "Work item number " + id, "Description of " + id, "Active",
+                "https://tfs.example.com/DefaultCollection/_apis/wit/workItems/" + id);
+        wi.setRev(2L);
+        wi.setProject("Release Project");
+        wi.setType("Bug");
+        wi.setSeverity("2 - High");
+        wi.setAssignedToIdentity(Identity.valueOf("Kevin Lee <SERENA\\klee>"));
+        wi.setCreatedByIdentity(Identity.valueOf("Kevin Lee <SERENA\\klee>"));
+        wi.setChangedByIdentity(Identity.valueOf("Build Service <SERENA\\build>"));
+        wi.setDateCreated("2016-03-01T10:15:30.123Z");
+        wi.setDateChanged("2016-03-02T11:20:40.456Z");
+        wi.setAreaPath("Release Project\\Area");
+        wi.setIterationPath("Release Project\\Iteration 1");
+        wi.setReason("New");
+        return wi;
+    }
+
+}
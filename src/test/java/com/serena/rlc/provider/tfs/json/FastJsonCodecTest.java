@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.serena.rlc.provider.tfs.json;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Conformance tests of {@link FastJsonCodec} against {@link SimpleJsonCodec}, both codecs must produce the same tree.
+ * @author klee@serena.com
+ */
+public class FastJsonCodecTest {
+
+    private final JsonCodec simple = new SimpleJsonCodec();
+    private final JsonCodec fast = new FastJsonCodec();
+
+    @After
+    public void resetCodec() {
+        JsonCodecs.select(JsonCodecs.DEFAULT_CODEC);
+    }
+
+    @Test
+    public void testLiterals() throws ParseException {
+        assertSame("true", "true", "false", "null", " \t\r\n true \n");
+    }
+
+    @Test
+    public void testStrings() throws ParseException {
+        assertSame("\"\"", "\"Work item\"", "\"a\\\"b\\\\c\\/d\"", "\"\\b\\f\\n\\r\\t\"",
+                "\"\\u0041\\u00e9\\u4e2d\"", "\"Caf\u00e9 \u4e2d\u6587\"", "\"mixed \\n caf\u00e9\"");
+    }
+
+    @Test
+    public void testSurrogatePairs() throws ParseException {
+        String emoji = new String(Character.toChars(0x1F600));
+        assertSame("\"\\ud83d\\ude00\"", "\"" + emoji + "\"", "\"\\t" + emoji + "\"", "{\"" + emoji + "\":1}");
+        assertEquals(emoji, fast.parse("\"\\ud83d\\ude00\""));
+        assertEquals(emoji, fast.parse("\"\\n" + emoji + "\"").toString().substring(1));
+    }
+
+    @Test
+    public void testNumbers() throws ParseException {
+        assertSame("0", "-0", "42", "-42", "9223372036854775807", "-9223372036854775808", "1234567890123456789",
+                "1.5", "-0.25", "1e3", "1E3", "1e+3", "1e-3", "-2.5E-7", "6.02214076e23");
+        assertEquals(42L, fast.parse("42"));
+        assertEquals(1000.0, fast.parse("1e3"));
+    }
+
+    @Test
+    public void testNesting() throws ParseException {
+        assertSame("{}", "[]", "[[]]", "{\"a\":{}}",
+                "{\"count\":2,\"value\":[{\"id\":1,\"fields\":{\"System.Title\":\"One\",\"System.Tags\":null}},"
+                        + "{\"id\":2,\"fields\":{\"System.Title\":\"Two\",\"Effort\":1.5,\"Done\":false}}]}",
+                " { \"a\" : [ 1 , \"b\" , { \"c\" : [ true , null ] } ] } ");
+
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            deep.append("{\"a\":[");
+        }
+        for (int i = 0; i < 100; i++) {
+            deep.append("]}");
+        }
+        assertSame(deep.toString());
+    }
+
+    @Test
+    public void testRepeatedKeys() throws ParseException {
+        JSONArray array = (JSONArray) fast.parse("[{\"System.Id\":1},{\"System.Id\":2},{\"System.\\u0049d\":3}]");
+        for (int i = 0; i < array.size(); i++) {
+            assertEquals((long) i + 1, ((JSONObject) array.get(i)).get("System.Id"));
+        }
+    }
+
+    @Test
+    public void testOffset() throws ParseException {
+        byte[] data = "xx[1,\"two\"]yy".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(1L, "two"), fast.parse(data, 2, data.length - 4));
+        assertEquals(simple.parse(data, 2, data.length - 4), fast.parse(data, 2, data.length - 4));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertRejected("", " ", "{", "}", "[1", "{\"a\":1,}x", "{a:1}", "\"open",
+                "tru", "nul", "falsy", "-", "1.2.3", "1 2", "{\"a\":1}}", "[1]]");
+        // json-simple does not check separators or escapes, the fast codec is stricter
+        assertStricter("[1 2]", "[1,,2]", "{\"a\":1,,\"b\":2}", "{\"a\" 1}", "\"bad \\x escape\"", "\"\\u12\"");
+    }
+
+    @Test
+    public void testSelect() {
+        JsonCodecs.select(FastJsonCodec.NAME);
+        assertTrue(JsonCodecs.get() instanceof FastJsonCodec);
+        JsonCodecs.select(FastJsonCodec.class.getName());
+        assertTrue(JsonCodecs.get() instanceof FastJsonCodec);
+        JsonCodecs.select("java.lang.Object");
+        assertTrue(JsonCodecs.get() instanceof FastJsonCodec);
+        JsonCodecs.select(" ");
+        assertTrue(JsonCodecs.get() instanceof SimpleJsonCodec);
+    }
+
+    //
+
+    private void assertSame(String... documents) throws ParseException {
+        for (String json : documents) {
+            Object expected = simple.parse(json);
+            assertEquals(json, expected, fast.parse(json));
+            byte[] data = json.getBytes(StandardCharsets.UTF_8);
+            assertEquals(json, expected, fast.parse(data, 0, data.length));
+            if (expected != null) {
+                assertEquals(json, expected.getClass(), fast.parse(json).getClass());
+            }
+        }
+    }
+
+    private void assertRejected(String... documents) {
+        for (String json : documents) {
+            try {
+                simple.parse(json);
+                fail("json-simple accepted " + json);
+            } catch (ParseException ex) {
+                // expected
+            }
+            assertStricter(json);
+        }
+    }
+
+    private void assertStricter(String... documents) {
+        for (String json : documents) {
+            try {
+                fast.parse(json);
+                fail("fast accepted " + json);
+            } catch (ParseException ex) {
+                // expected
+            }
+        }
+    }
+
+}